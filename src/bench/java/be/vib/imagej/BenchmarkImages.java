@@ -0,0 +1,56 @@
+package be.vib.imagej;
+
+import java.util.Random;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// BenchmarkImages creates synthetic test images for the benchmarks: a smooth intensity gradient
+// with Gaussian noise, vaguely resembling an EM image. The images only depend on their size, bit depth
+// and slice number (the noise uses a fixed seed), so results of different benchmark runs can be compared.
+public class BenchmarkImages
+{
+	private BenchmarkImages()
+	{
+	}
+
+	// Returns a size x size 8- or 16-bit image.
+	public static ImageProcessor create(int size, int bitDepth)
+	{
+		return create(size, bitDepth, 1);
+	}
+
+	// Returns slice n (1-based) of a synthetic stack. Different slices have different noise and a slightly different brightness.
+	public static ImageProcessor create(int size, int bitDepth, int n)
+	{
+		assert(bitDepth == 8 || bitDepth == 16);
+
+		final int maxValue = (bitDepth == 8) ? 255 : 65535;
+		final double noiseSigma = 0.05 * maxValue;
+		final Random random = new Random(n);
+
+		ImageProcessor image = (bitDepth == 8) ? new ByteProcessor(size, size) : new ShortProcessor(size, size);
+		for (int y = 0; y < size; y++)
+		{
+			for (int x = 0; x < size; x++)
+			{
+				double signal = maxValue * (0.2 + 0.4 * (x + y) / (2.0 * size) + 0.1 * Math.sin(x * 0.05) * Math.cos(y * 0.03) + 0.02 * n);
+				double value = signal + noiseSigma * random.nextGaussian();
+				image.set(x, y, (int)Math.max(0, Math.min(maxValue, Math.round(value))));
+			}
+		}
+		return image;
+	}
+
+	// Returns a stack with numSlices size x size 8- or 16-bit slices.
+	public static ImagePlus createStack(int size, int bitDepth, int numSlices)
+	{
+		ImageStack stack = new ImageStack(size, size);
+		for (int n = 1; n <= numSlices; n++)
+			stack.addSlice("", create(size, bitDepth, n));
+		return new ImagePlus("benchmark", stack);
+	}
+}
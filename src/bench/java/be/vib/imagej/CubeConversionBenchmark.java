@@ -0,0 +1,72 @@
+package be.vib.imagej;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.vib.bits.QValue;
+import ij.process.ImageProcessor;
+
+// Benchmarks for copying images to and from Quasar cubes (ImageUtils.newCubeFromImage() and newImageFromCube()),
+// the host <-> device transfers of the Quasar backend. These need a working Quasar installation (see QuasarBackend),
+// so unlike the other benchmarks they are not run by default (see the bench target in build.xml).
+// Quasar can only be used from the Quasar thread, so that is where the conversions are run; the time includes
+// the hand-over to that thread.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CubeConversionBenchmark
+{
+	@Param({"512", "2048"})
+	public int size;
+
+	@Param({"8", "16"})
+	public int bitDepth;
+
+	private ComputeBackend backend;
+	private ImageProcessor image;
+	private QValue cube;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		backend = ComputeBackends.forName("quasar");
+		backend.initialize();
+
+		image = BenchmarkImages.create(size, bitDepth);
+		cube = backend.submit(() -> ImageUtils.newCubeFromImage(image)).get();
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException, ExecutionException
+	{
+		backend.submit(() -> { cube.dispose(); return null; }).get();
+	}
+
+	@Benchmark
+	public void newCubeFromImage() throws InterruptedException, ExecutionException
+	{
+		backend.submit(() -> { ImageUtils.newCubeFromImage(image).dispose(); return null; }).get();
+	}
+
+	@Benchmark
+	public ImageProcessor newImageFromCube() throws InterruptedException, ExecutionException
+	{
+		return backend.submit(() -> ImageUtils.newImageFromCube(image, cube)).get();
+	}
+}
@@ -0,0 +1,89 @@
+package be.vib.imagej;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+// End to end benchmark of the DenoiseEngine: denoising a small stack with a Gaussian filter on the Java backend,
+// in each of the engine's modes. The filter itself is cheap, so this mostly measures the engine overhead:
+// reading slices, tiling, normalization, scheduling the tiles, stitching and passing the slices to the sink.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-D" + ComputeBackends.BACKEND_PROPERTY + "=java")
+public class DenoiseEngineBenchmark
+{
+	@Param({"512", "2048"})
+	public int size;
+
+	@Param({"8", "16"})
+	public int bitDepth;
+
+	@Param({"SEQUENTIAL", "PIPELINED", "PARALLEL"})
+	public DenoiseEngine.Mode mode;
+
+	private static final int numSlices = 4;
+
+	private ImagePlus stack;
+	private ImageNormalizer normalizer;
+
+	// A sink that only hands the denoised slices to the blackhole
+	private static class BlackholeSink implements SliceSink
+	{
+		private final Blackhole blackhole;
+
+		BlackholeSink(Blackhole blackhole)
+		{
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public void open(int width, int height, int bitDepth, int numSlices, String info)
+		{
+		}
+
+		@Override
+		public void addSlice(ImageProcessor slice)
+		{
+			blackhole.consume(slice);
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+
+	@Setup
+	public void setup()
+	{
+		stack = BenchmarkImages.createStack(size, bitDepth, numSlices);
+		normalizer = new ImageNormalizer(stack);
+	}
+
+	@Benchmark
+	public void denoise(Blackhole blackhole) throws IOException
+	{
+		DenoiseEngine engine = new DenoiseEngine(new GaussianDenoiser(new GaussianParams(1.5f)));
+		engine.setMode(mode);
+
+		engine.denoise(stack, normalizer, ImageRange.makeAllSlicesRange(stack), new BlackholeSink(blackhole));
+	}
+}
@@ -0,0 +1,81 @@
+package be.vib.imagej;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.process.ImageProcessor;
+
+// Benchmarks for the intensity normalization: the histogram and its percentiles (computed for each
+// normalizer), and the conversion of the pixels to normalized floats and back, as done for each tile
+// by the Java backend.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NormalizationBenchmark
+{
+	@Param({"512", "2048", "4096"})
+	public int size;
+
+	@Param({"8", "16"})
+	public int bitDepth;
+
+	private ImageProcessor image;
+	private ImageNormalizer normalizer;
+	private float[] normalized;
+
+	@Setup
+	public void setup()
+	{
+		image = BenchmarkImages.create(size, bitDepth);
+		normalizer = new ImageNormalizer(image);
+		normalized = normalizer.normalizeToFloats(image, false);
+	}
+
+	@Benchmark
+	public IntensityHistogram histogram()
+	{
+		return IntensityHistogram.compute(image);
+	}
+
+	@Benchmark
+	public IntensityHistogram subsampledHistogram()
+	{
+		return IntensityHistogram.compute(image, 1 << 20);
+	}
+
+	// Histogram and the 2% and 98% percentiles
+	@Benchmark
+	public ImageNormalizer createNormalizer()
+	{
+		return new ImageNormalizer(image);
+	}
+
+	@Benchmark
+	public float[] normalizeToFloats()
+	{
+		return normalizer.normalizeToFloats(image, false, normalized);
+	}
+
+	// Denormalization, with the denoised pixels returned to the BufferPool as DenoiseEngine does once a tile is stitched
+	@Benchmark
+	public ImageProcessor denormalizeFromFloats()
+	{
+		ImageProcessor denormalized = normalizer.denormalizeFromFloats(image, normalized, false);
+		BufferPool.getInstance().release(denormalized);
+		return denormalized;
+	}
+}
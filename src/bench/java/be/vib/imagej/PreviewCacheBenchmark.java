@@ -0,0 +1,89 @@
+package be.vib.imagej;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Benchmarks for looking up denoised previews in the DenoisePreviewCache, which happens for every
+// change of a denoising parameter in the wizard. Includes creating the key, which copies the parameters.
+// The cache is full, so adding a preview evicts the least recently used one.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PreviewCacheBenchmark
+{
+	@Param({"16", "256"})
+	public int numEntries;
+
+	private DenoisePreviewCache cache;
+	private GaussianAlgorithm algorithm;
+	private GaussianParams params;
+	private float hitSigma;
+	private float missSigma;
+	private int nextEntry;
+
+	@Setup
+	public void setup()
+	{
+		algorithm = new GaussianAlgorithm();
+		params = (GaussianParams)algorithm.getParams();
+
+		cache = new DenoisePreviewCache(numEntries * previewBytes);
+		for (int i = 0; i < numEntries; i++)
+		{
+			params.sigma = sigma(i);
+			cache.put(new DenoisePreviewCacheKey(algorithm), newPreview());
+		}
+		nextEntry = numEntries + 1;
+
+		hitSigma = sigma(numEntries / 2);
+		missSigma = sigma(numEntries);
+	}
+
+	private static final int previewBytes = 256 * 256;
+
+	private static DenoisePreviewCacheValue newPreview()
+	{
+		return new DenoisePreviewCacheValue(new BufferedImage(256, 256, BufferedImage.TYPE_BYTE_GRAY), 0.05f, 0.5f);
+	}
+
+	private static float sigma(int i)
+	{
+		return 0.5f + 0.01f * i;
+	}
+
+	@Benchmark
+	public DenoisePreviewCacheValue lookupHit()
+	{
+		params.sigma = hitSigma;
+		return cache.get(new DenoisePreviewCacheKey(algorithm));
+	}
+
+	@Benchmark
+	public DenoisePreviewCacheValue lookupMiss()
+	{
+		params.sigma = missSigma;
+		return cache.get(new DenoisePreviewCacheKey(algorithm));
+	}
+
+	@Benchmark
+	public void putWithEviction()
+	{
+		params.sigma = sigma(nextEntry++);  // never the miss key, that one is numEntries
+		cache.put(new DenoisePreviewCacheKey(algorithm), newPreview());
+	}
+}
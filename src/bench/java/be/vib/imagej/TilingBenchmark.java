@@ -0,0 +1,94 @@
+package be.vib.imagej;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ij.process.ImageProcessor;
+
+// Benchmarks for splitting a slice into tiles: planning the tiles, iterating over them,
+// cropping the tiles (with margins) from the slice, and stitching the denoised tiles back together.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TilingBenchmark
+{
+	@Param({"512", "2048", "4096"})
+	public int size;
+
+	@Param({"8", "16"})
+	public int bitDepth;
+
+	@Param({"256", "1024"})
+	public int tileSize;  // without the margins
+
+	private static final int margin = 16;
+
+	private ImageProcessor image;
+	private ImageProcessor denoisedImage;
+	private ImageTiler tiler;
+	private ImageProcessor[] tiles;
+
+	@Setup
+	public void setup()
+	{
+		image = BenchmarkImages.create(size, bitDepth);
+		denoisedImage = image.duplicate();
+		tiler = new ImageTiler(image, tileSize, tileSize, margin);
+
+		List<ImageTile> tileList = tiler.getTiles();
+		tiles = new ImageProcessor[tileList.size()];
+		for (int i = 0; i < tiles.length; i++)
+			tiles[i] = tileList.get(i).getImageWithMargins(image);
+	}
+
+	@Benchmark
+	public ImageTiler createTiler()
+	{
+		return new ImageTiler(image, tileSize, tileSize, margin);
+	}
+
+	@Benchmark
+	public void iterateTiles(Blackhole blackhole)
+	{
+		for (ImageTile tile : tiler)
+			blackhole.consume(tile.getWidthWithoutMargins());
+	}
+
+	// Crops all tiles of the slice, and returns their pixels to the BufferPool (as DenoiseEngine does once a tile is denoised).
+	@Benchmark
+	public void extractTiles(Blackhole blackhole)
+	{
+		for (ImageTile tile : tiler)
+		{
+			ImageProcessor tileImage = tile.getImageWithMargins(image);
+			blackhole.consume(tileImage);
+			if (tileImage.getPixels() != image.getPixels())
+				BufferPool.getInstance().release(tileImage);
+		}
+	}
+
+	@Benchmark
+	public ImageProcessor stitchTiles()
+	{
+		List<ImageTile> tileList = tiler.getTiles();
+		for (int i = 0; i < tiles.length; i++)
+			tileList.get(i).writeWithoutMargins(tiles[i], denoisedImage);
+		return denoisedImage;
+	}
+}
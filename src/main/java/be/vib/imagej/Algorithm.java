@@ -1,5 +1,7 @@
 package be.vib.imagej;
 
+import java.util.List;
+
 // The Algorithm class groups three different facets of a denoising algorithm implementation:
 // - the denoiser itself, which is a wrapper around the Quasar implementation of the denoising algorithm
 // - the parameters that influence the denoising algorithm
@@ -48,9 +50,28 @@ public abstract class Algorithm
     
     abstract public DenoiseParamsPanelBase getPanel();
 
+	// Returns copies of the parameters with one parameter moved a few slider steps (at most maxSteps) in the user interface,
+	// nearest first. Previews for these can be denoised ahead of time (see SpeculativePreviewScheduler). Must be called on the EDT.
+	public List<DenoiseParams> getNeighbouringParams(int maxSteps)
+	{
+		return getPanel().getNeighbouringParams(this::getParamsCopy, maxSteps);
+	}
+
 	public void setDefaultParameters(float noiseEstimate)
 	{
 		getParams().setDefaultParameters(noiseEstimate);
-		getPanel().updatePanelFromParams();
+		getPanel().showParams();
+	}
+	
+	// Returns whether the user changed the parameters in the user interface since the last call to setParametersEdited(false).
+	// Must be called on the EDT.
+	public boolean areParametersEdited()
+	{
+		return getPanel().isEditedByUser();
+	}
+	
+	public void setParametersEdited(boolean edited)
+	{
+		getPanel().setEditedByUser(edited);
 	}
 }
@@ -1,7 +1,5 @@
 package be.vib.imagej;
 
-import be.vib.bits.QFunction;
-import be.vib.bits.QValue;
 import ij.process.ImageProcessor;
 
 public class AnisotropicDiffusionDenoiser extends Denoiser
@@ -12,27 +10,21 @@ public class AnisotropicDiffusionDenoiser extends Denoiser
 	}
 
 	@Override
-	public ImageProcessor call()
+	public ImageProcessor denoise(ImageProcessor image, ImageNormalizer normalizer)
+	{
+		return backend.anisotropicDiffusion(image, normalizer, (AnisotropicDiffusionParams)params);
+	}
+	
+	@Override
+	public int imageMargin()
 	{
-		QFunction diffusion = new QFunction("denoise_anisotropic_diffusion(mat,int,scalar,scalar,string)");
-		
-		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
-		QValue noisyImageCube = normalizer.normalize(image, byteRange);
-		
 		AnisotropicDiffusionParams params = (AnisotropicDiffusionParams)this.params;
-		
-		QValue denoisedImageCube = diffusion.apply(noisyImageCube,
-				                                   new QValue(params.numIterations),
-				                                   new QValue(params.stepSize),
-				                                   new QValue(params.diffusionFactor),
-				                                   new QValue(params.diffusionFunction));
-		
-		noisyImageCube.dispose();
-
-		ImageProcessor denoisedImage = normalizer.denormalize(image, denoisedImageCube, byteRange);
-
-		denoisedImageCube.dispose();
-
-		return denoisedImage;
+		return params.numIterations + 1;  // each iteration only looks at the direct neighbours of a pixel
+	}
+	
+	@Override
+	public int memoryCostPerPixel()
+	{
+		return 48;  // image, diffusion coefficients and gradients in 8 directions
 	}
-}
\ No newline at end of file
+}
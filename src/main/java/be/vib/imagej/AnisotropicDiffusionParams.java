@@ -58,6 +58,14 @@ public class AnisotropicDiffusionParams extends DenoiseParams
     	return props;
     }
 
+	@Override
+	public void setParameterList(Properties props)
+	{
+		diffusionFactor = getFloat(props, "anisotropicdiffusion.diffusionfactor", diffusionFactor);
+		numIterations = getInt(props, "anisotropicdiffusion.numiterations", numIterations);
+		stepSize = getFloat(props, "anisotropicdiffusion.stepsize", stepSize);
+	}
+
 	@Override
 	public String toString()
 	{
@@ -36,6 +36,7 @@ class AnisotropicDiffusionParamsPanel extends DenoiseParamsPanelBase
 		diffusionFactorPair = new SliderFieldPair(0, 100, floatFormat, params.diffusionFactorMin, params.diffusionFactorMax);
 		diffusionFactorPair.setValue(params.diffusionFactor);
 		diffusionFactorPair.addPropertyChangeListener(e -> { params.diffusionFactor = diffusionFactorPair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(diffusionFactorPair, (p, value) -> ((AnisotropicDiffusionParams)p).diffusionFactor = value);
 		
 		JSlider diffusionFactorSlider = diffusionFactorPair.getSlider();
 		
@@ -50,6 +51,7 @@ class AnisotropicDiffusionParamsPanel extends DenoiseParamsPanelBase
 		stepSizePair = new SliderFieldPair(0, 100, floatFormat, AnisotropicDiffusionParams.stepSizeMin, AnisotropicDiffusionParams.stepSizeMax);
 		stepSizePair.setValue(params.stepSize);
 		stepSizePair.addPropertyChangeListener(e -> { params.stepSize = stepSizePair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(stepSizePair, (p, value) -> ((AnisotropicDiffusionParams)p).stepSize = value);
 		
 		JSlider stepSizeSlider = stepSizePair.getSlider();
 		
@@ -61,6 +63,7 @@ class AnisotropicDiffusionParamsPanel extends DenoiseParamsPanelBase
 		iterationsPair = new SliderSpinnerPair(AnisotropicDiffusionParams.iterationsMin, AnisotropicDiffusionParams.iterationsMax);
 		iterationsPair.setValue(params.numIterations);
 		iterationsPair.addPropertyChangeListener(e -> { params.numIterations = iterationsPair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(iterationsPair, (p, value) -> ((AnisotropicDiffusionParams)p).numIterations = value);
 		
 		JSlider iterationsSlider = iterationsPair.getSlider();
 		
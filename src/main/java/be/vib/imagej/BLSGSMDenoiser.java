@@ -1,7 +1,5 @@
 package be.vib.imagej;
 
-import be.vib.bits.QFunction;
-import be.vib.bits.QValue;
 import ij.process.ImageProcessor;
 
 public class BLSGSMDenoiser extends Denoiser
@@ -12,25 +10,22 @@ public class BLSGSMDenoiser extends Denoiser
 	}
 	
 	@Override
-	public ImageProcessor call()
-	{		
-		QFunction blsgsm = new QFunction("denoise_blsgsm(mat,int,scalar)");
-
-		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
-		QValue noisyImageCube = normalizer.normalize(image, byteRange);
-				
+	public ImageProcessor denoise(ImageProcessor image, ImageNormalizer normalizer)
+	{
+		return backend.blsgsm(image, normalizer, (BLSGSMParams)params);
+	}
+	
+	@Override
+	public int imageMargin()
+	{
 		BLSGSMParams params = (BLSGSMParams)this.params;
-		
-		QValue denoisedImageCube = blsgsm.apply(noisyImageCube,
-							                    new QValue(params.scales),
-							                    new QValue(params.sigma));
-		
-		noisyImageCube.dispose();
-
-		ImageProcessor denoisedImage = normalizer.denormalize(image, denoisedImageCube, byteRange);
-
-		denoisedImageCube.dispose();
-
-		return denoisedImage;
+		return 6 * ((1 << params.scales) - 1);  // support of the wavelet filters at the coarsest scale, see WaveletThresholdingDenoiser
+	}
+	
+	@Override
+	public int memoryCostPerPixel()
+	{
+		BLSGSMParams params = (BLSGSMParams)this.params;
+		return 48 * params.scales;  // a redundant wavelet transform with all subbands of all scales in memory
 	}
 }
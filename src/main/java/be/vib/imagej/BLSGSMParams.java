@@ -47,6 +47,13 @@ public class BLSGSMParams extends DenoiseParams
     	return props;
     }
 
+	@Override
+	public void setParameterList(Properties props)
+	{
+		sigma = getFloat(props, "blsgsm.sigma", sigma);
+		scales = getInt(props, "blsgsm.scales", scales);
+	}
+
 	@Override
 	public String toString()
 	{
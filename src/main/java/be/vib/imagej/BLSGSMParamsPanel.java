@@ -31,6 +31,7 @@ class BLSGSMParamsPanel extends DenoiseParamsPanelBase
 		sigmaPair = new SliderFieldPair(0, 100, floatFormat, params.sigmaMin, params.sigmaMax);
 		sigmaPair.setValue(params.sigma);
 		sigmaPair.addPropertyChangeListener(e -> { params.sigma = sigmaPair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(sigmaPair, (p, value) -> ((BLSGSMParams)p).sigma = value);
 		
 		JSlider sigmaSlider = sigmaPair.getSlider();
 		
@@ -45,6 +46,7 @@ class BLSGSMParamsPanel extends DenoiseParamsPanelBase
 		scalesPair = new SliderSpinnerPair(BLSGSMParams.scalesMin, BLSGSMParams.scalesMax);
 		scalesPair.setValue(params.scales);
 		scalesPair.addPropertyChangeListener(e -> { params.scales = scalesPair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(scalesPair, (p, value) -> ((BLSGSMParams)p).scales = value);
 		
 		JSlider scalesSlider = scalesPair.getSlider();
 		
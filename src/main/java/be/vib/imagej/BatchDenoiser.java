@@ -0,0 +1,382 @@
+package be.vib.imagej;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.process.ImageProcessor;
+
+// The BatchDenoiser denoises all TIFF files in an input directory with the same algorithm and parameters,
+// and writes the denoised images with the same name to an output directory. It is meant for the many
+// independent images (e.g. SEM tiles) of an acquisition session, and is used by DenoisingCLI --batch.
+//
+// Several files are denoised at the same time, by one DenoiseEngine each. They all share the current compute
+// backend, so it is initialized only once and the Quasar functions and blur kernels it caches are reused for all files.
+// The number of files in progress is limited, and so is the memory that their slices may take.
+//
+// For each file a line with its timings is appended to a manifest (a tab separated text file) in the output directory.
+// Files that the manifest lists as done, and that were not modified since, are skipped. So a batch job that
+// was interrupted can simply be restarted. Denoised images are written to a temporary ".part" file first,
+// so an interrupted job never leaves a truncated output behind.
+//
+// In watch mode the input directory is polled for new files until the process is stopped.
+public class BatchDenoiser
+{
+	public static final String MANIFEST_NAME = "denoisem-manifest.tsv";
+
+	private static final String STATUS_DONE = "done";
+	private static final String STATUS_FAILED = "failed";
+
+	private final File inputDir;
+	private final File outputDir;
+	private final String algorithmName;
+	private final Properties paramList;  // null means: derive the parameters of each file from its noise level
+
+	private int numConcurrentFiles;
+	private long memoryBudget;  // bytes
+	private SliceNormalizations.Mode normalizationMode = SliceNormalizations.Mode.REFERENCE_SLICE;  // the reference slice is the middle slice
+	private boolean bigTiff;  // write the denoised files as BigTIFF instead of classic TIFF (see TiffSliceSink)
+
+	private Semaphore memory;  // one permit per megabyte of memoryBudget
+	private PrintWriter manifest;
+	private final Map<String, String[]> manifestEntries = new HashMap<String, String[]>();  // file name -> fields of its most recent manifest line
+
+	private final AtomicInteger numDenoised = new AtomicInteger(0);
+	private final AtomicInteger numSkipped = new AtomicInteger(0);
+	private final AtomicInteger numFailed = new AtomicInteger(0);
+	private double megapixels;  // total number of megapixels denoised, guarded by this
+
+	public BatchDenoiser(File inputDir, File outputDir, String algorithmName, Properties paramList)
+	{
+		this.inputDir = inputDir;
+		this.outputDir = outputDir;
+		this.algorithmName = algorithmName;
+		this.paramList = paramList;
+		this.numConcurrentFiles = Math.max(2, ComputeBackends.getCurrent().getParallelism());  // at least 2, so reading and writing files overlaps with denoising
+		this.memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+	}
+
+	public void setNumConcurrentFiles(int numConcurrentFiles)
+	{
+		assert(numConcurrentFiles > 0);
+		this.numConcurrentFiles = numConcurrentFiles;
+	}
+
+	public int getNumConcurrentFiles()
+	{
+		return numConcurrentFiles;
+	}
+
+	// Sets the amount of memory (in bytes) that the slices of the files in progress may use together.
+	// A file that does not fit in the remaining memory waits until other files are done.
+	public void setMemoryBudget(long memoryBudget)
+	{
+		this.memoryBudget = memoryBudget;
+	}
+
+	public void setNormalizationMode(SliceNormalizations.Mode normalizationMode)
+	{
+		this.normalizationMode = normalizationMode;
+	}
+
+	public void setBigTiff(boolean bigTiff)
+	{
+		this.bigTiff = bigTiff;
+	}
+
+	public int getNumDenoised()
+	{
+		return numDenoised.get();
+	}
+
+	public int getNumSkipped()
+	{
+		return numSkipped.get();
+	}
+
+	public int getNumFailed()
+	{
+		return numFailed.get();
+	}
+
+	public synchronized double getMegapixels()
+	{
+		return megapixels;
+	}
+
+	// Denoises the files in the input directory. If watch == false, returns when all files are done.
+	// If watch == true, keeps polling the input directory every pollInterval milliseconds for new files,
+	// until the thread is interrupted. A new file is only picked up once its size stopped changing.
+	public void run(boolean watch, long pollInterval) throws IOException, InterruptedException
+	{
+		if (inputDir.getCanonicalFile().equals(outputDir.getCanonicalFile()))
+			throw new IOException("The output directory must be different from the input directory.");
+
+		if (!outputDir.isDirectory() && !outputDir.mkdirs())
+			throw new IOException("Cannot create output directory " + outputDir);
+
+		memory = new Semaphore(megabytes(memoryBudget));
+		openManifest();
+
+		// Keep the blur kernels cached by the backend between the files, they typically all use the same parameters.
+		final ComputeBackend backend = ComputeBackends.getCurrent();
+		backend.acquireBlurKernels();
+
+		ExecutorService fileExecutor = Executors.newFixedThreadPool(numConcurrentFiles, r -> {
+			Thread thread = new Thread(r, "DenoisEM batch worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		try
+		{
+			List<Future<?>> pending = new ArrayList<Future<?>>();
+			Set<String> submitted = new HashSet<String>();
+			Map<String, Long> previousSizes = new HashMap<String, Long>();
+
+			do
+			{
+				for (File file : listInputFiles())
+				{
+					String name = file.getName();
+					if (submitted.contains(name))
+						continue;
+
+					// In watch mode, files that are still being written are picked up in a later poll.
+					Long previousSize = previousSizes.put(name, file.length());
+					if (watch && (previousSize == null || previousSize != file.length()))
+						continue;
+
+					submitted.add(name);
+
+					if (isDone(file))
+					{
+						numSkipped.incrementAndGet();
+						continue;
+					}
+
+					pending.add(fileExecutor.submit(() -> denoiseFile(file)));
+				}
+
+				if (watch)
+				{
+					pending.removeIf(f -> f.isDone());
+					Thread.sleep(pollInterval);
+				}
+			}
+			while (watch);
+
+			for (Future<?> f : pending)
+			{
+				try
+				{
+					f.get();
+				}
+				catch (ExecutionException e)
+				{
+					e.printStackTrace();  // not expected, denoiseFile() records its failures in the manifest
+				}
+			}
+		}
+		finally
+		{
+			fileExecutor.shutdownNow();
+			fileExecutor.awaitTermination(1, TimeUnit.MINUTES);
+
+			manifest.close();
+
+			backend.releaseBlurKernels();
+		}
+	}
+
+	private File[] listInputFiles()
+	{
+		File[] files = inputDir.listFiles(f -> {
+			String name = f.getName().toLowerCase(Locale.ROOT);
+			return f.isFile() && (name.endsWith(".tif") || name.endsWith(".tiff"));
+		});
+
+		if (files == null)
+			return new File[0];
+
+		Arrays.sort(files);
+		return files;
+	}
+
+	private void denoiseFile(File input)
+	{
+		final File output = new File(outputDir, input.getName());
+		final File partialOutput = new File(outputDir, input.getName() + ".part");
+
+		final long startTime = System.nanoTime();
+
+		SliceSource source = null;
+		int memoryPermits = 0;
+		try
+		{
+			source = MappedSliceSource.openTiff(input);
+
+			// A DenoiseEngine holds a few noisy and denoised slices at any time, and the source reads ahead a few more.
+			final long sliceBytes = (long)source.getWidth() * source.getHeight() * (source.getBitDepth() / 8);
+			final int permits = Math.min(Math.max(1, megabytes(6 * sliceBytes)), megabytes(memoryBudget));
+			memory.acquire(permits);
+			memoryPermits = permits;
+
+			ImageProcessor middleSlice = source.getSliceWithoutPrefetch((source.getNumSlices() + 1) / 2);
+			ImageNormalizer normalizer = new ImageNormalizer(middleSlice);
+
+			DenoiseParams params = Denoisers.newParams(algorithmName);
+			if (paramList == null)
+				params.setDefaultParameters(ComputeBackends.getCurrent().submit(new NoiseEstimator(middleSlice, normalizer)).get());
+			else
+				params.setParameterList(paramList);
+
+			DenoiseEngine engine = new DenoiseEngine(Denoisers.newDenoiser(params));  // no summary per file, see DenoiseMetrics.getTotals() for the whole batch
+
+			// The files themselves are denoised in parallel, so each file is denoised one tile at a time.
+			engine.setMode(DenoiseEngine.Mode.SEQUENTIAL);
+
+			ImageRange range = ImageRange.makeAllSlicesRange(source);
+			engine.denoise(source, SliceNormalizations.create(normalizationMode, source, range, normalizer), range, new TiffSliceSink(partialOutput, bigTiff));
+
+			// The engine stops without an exception when it is cancelled, which happens when the batch is stopped
+			// (the worker thread is interrupted). The partial output is then incomplete, so it must not be kept.
+			if (engine.isCancelled())
+				throw new InterruptedException("Denoising was interrupted");
+			if (engine.getMetrics().getNumFailedTiles() > 0)  // the engine throws a DenoiseException for failed tiles, but be safe
+				throw new DenoiseException(engine.getMetrics().getNumFailedTiles() + " tiles could not be denoised", null);
+
+			Files.move(partialOutput.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			final double seconds = (System.nanoTime() - startTime) * 1e-9;
+			final double mpix = (double)source.getWidth() * source.getHeight() * source.getNumSlices() / 1e6;
+
+			synchronized (this)
+			{
+				megapixels += mpix;
+			}
+			numDenoised.incrementAndGet();
+
+			writeManifestEntry(input, STATUS_DONE, source, seconds, mpix / seconds, "");
+		}
+		catch (Exception e)
+		{
+			partialOutput.delete();
+			numFailed.incrementAndGet();
+
+			final double seconds = (System.nanoTime() - startTime) * 1e-9;
+			writeManifestEntry(input, STATUS_FAILED, source, seconds, 0, String.valueOf(e.getMessage()));
+
+			if (e instanceof InterruptedException)
+				Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			memory.release(memoryPermits);
+
+			if (source != null)
+			{
+				try
+				{
+					source.close();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	// Returns true if the manifest says that the file was denoised, and neither the file nor its denoised version changed since.
+	private synchronized boolean isDone(File input)
+	{
+		String[] entry = manifestEntries.get(input.getName());
+		if (entry == null || !entry[3].equals(STATUS_DONE))
+			return false;
+
+		return entry[1].equals(Long.toString(input.length())) && entry[2].equals(Long.toString(input.lastModified()))
+			   && new File(outputDir, input.getName()).isFile();
+	}
+
+	// Reads the entries of an existing manifest, and opens it for appending new entries.
+	private void openManifest() throws IOException
+	{
+		File file = new File(outputDir, MANIFEST_NAME);
+
+		if (file.isFile())
+		{
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)))
+			{
+				String line;
+				while ((line = reader.readLine()) != null)
+				{
+					if (line.startsWith("#"))
+						continue;
+
+					String[] fields = line.split("\t", -1);
+					if (fields.length >= 4)
+						manifestEntries.put(fields[0], fields);  // later lines override earlier ones
+				}
+			}
+		}
+
+		final boolean newManifest = !file.isFile();
+
+		manifest = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+		if (newManifest)
+		{
+			manifest.println("# file\tsize\tlastmodified\tstatus\twidth\theight\tslices\tbitdepth\tseconds\tmegapixelspersecond\tmessage");
+			manifest.flush();
+		}
+	}
+
+	private synchronized void writeManifestEntry(File input, String status, SliceSource source, double seconds, double megapixelsPerSecond, String message)
+	{
+		String[] fields = { input.getName(),
+				            Long.toString(input.length()),
+				            Long.toString(input.lastModified()),
+				            status,
+				            (source != null) ? Integer.toString(source.getWidth()) : "",
+				            (source != null) ? Integer.toString(source.getHeight()) : "",
+				            (source != null) ? Integer.toString(source.getNumSlices()) : "",
+				            (source != null) ? Integer.toString(source.getBitDepth()) : "",
+				            String.format(Locale.ROOT, "%.3f", seconds),
+				            String.format(Locale.ROOT, "%.3f", megapixelsPerSecond),
+				            message.replace('\t', ' ').replace('\n', ' ') };
+
+		manifest.println(String.join("\t", fields));
+		manifest.flush();
+
+		manifestEntries.put(input.getName(), fields);
+	}
+
+	private static int megabytes(long bytes)
+	{
+		return (int)Math.min(Integer.MAX_VALUE, (bytes + (1 << 20) - 1) >> 20);
+	}
+}
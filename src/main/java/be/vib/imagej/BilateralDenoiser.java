@@ -1,7 +1,5 @@
 package be.vib.imagej;
 
-import be.vib.bits.QFunction;
-import be.vib.bits.QValue;
 import ij.process.ImageProcessor;
 
 public class BilateralDenoiser extends Denoiser
@@ -12,26 +10,21 @@ public class BilateralDenoiser extends Denoiser
 	}
 	
 	@Override
-	public ImageProcessor call()
+	public ImageProcessor denoise(ImageProcessor image, ImageNormalizer normalizer)
+	{
+		return backend.bilateral(image, normalizer, (BilateralParams)params);
+	}
+	
+	@Override
+	public int imageMargin()
 	{
-		QFunction bilateralFilter = new QFunction("bilateral_filter_denoise(cube,scalar,scalar,int)"); 
-				
-		final boolean byteRange = true;  // bilateral filter expects values in [0,255]
-		QValue noisyImageCube = normalizer.normalize(image, byteRange);
-
 		BilateralParams params = (BilateralParams)this.params;
-		
-		QValue denoisedImageCube = bilateralFilter.apply(noisyImageCube,
-				                                         new QValue(params.rangeSigma),
-				                                         new QValue(params.spatialSigma),
-				                                         new QValue(255));
-		
-		noisyImageCube.dispose();
-
-		ImageProcessor denoisedImage = normalizer.denormalize(image, denoisedImageCube, byteRange);
-
-		denoisedImageCube.dispose();
-
-		return denoisedImage;
+		return (int)Math.ceil(3 * params.spatialSigma) + 1;  // extent of the spatial Gaussian kernel
+	}
+	
+	@Override
+	public int memoryCostPerPixel()
+	{
+		return 40;  // input, numerator, denominator and 4 images per term of the range kernel expansion
 	}
 }
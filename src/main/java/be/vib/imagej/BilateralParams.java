@@ -57,6 +57,13 @@ public class BilateralParams extends DenoiseParams
     	return props;
     }
 
+	@Override
+	public void setParameterList(Properties props)
+	{
+		rangeSigma = getFloat(props, "bilateral.rangeSigma", rangeSigma);
+		spatialSigma = getFloat(props, "bilateral.spatialSigma", spatialSigma);
+	}
+
 	@Override
 	public String toString()
 	{
@@ -32,6 +32,7 @@ class BilateralParamsPanel extends DenoiseParamsPanelBase
 		spatialSigmaPair = new SliderFieldPair(0, 100, floatFormat, params.spatialSigmaMin, params.spatialSigmaMax);
 		spatialSigmaPair.setValue(params.spatialSigma);
 		spatialSigmaPair.addPropertyChangeListener(e -> { params.spatialSigma = spatialSigmaPair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(spatialSigmaPair, (p, value) -> ((BilateralParams)p).spatialSigma = value);
 		
 		JSlider spatialSigmaSlider = spatialSigmaPair.getSlider();
 		
@@ -46,6 +47,7 @@ class BilateralParamsPanel extends DenoiseParamsPanelBase
 		rangeSigmaPair = new SliderFieldPair(0, 100, floatFormat, params.rangeSigmaMin, params.rangeSigmaMax);
 		rangeSigmaPair.setValue(params.rangeSigma);
 		rangeSigmaPair.addPropertyChangeListener(e -> { params.rangeSigma = rangeSigmaPair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(rangeSigmaPair, (p, value) -> ((BilateralParams)p).rangeSigma = value);
 		
 		JSlider rangeSigmaSlider = rangeSigmaPair.getSlider();
 		
@@ -2,12 +2,9 @@ package be.vib.imagej;
 
 import java.util.concurrent.Callable;
 
-import be.vib.bits.QFunction;
-import be.vib.bits.QUtils;
-import be.vib.bits.QValue;
 import ij.process.ImageProcessor;
 
-// Java wrapper around the Quasar blurMetric() function for 
+// Java wrapper around the blur metric of the current compute backend for 
 // estimating the amount of blur in an image.
 public class BlurEstimator implements Callable<Float>
 {
@@ -18,21 +15,11 @@ public class BlurEstimator implements Callable<Float>
 		this.image = image;
 	}
 
+	// Important: call() *must* be run via ComputeBackends.getCurrent().submit()
 	@Override
 	public Float call() throws Exception
 	{
-		QValue imageCube = ImageUtils.newCubeFromImage(image);
-		
-		float r = ImageUtils.bitRange(image);
-		
-		QUtils.inplaceDivide(imageCube, r);  // scale pixels values from [0, 255] or [0, 65535] down to [0, 1]
-		
-		QFunction estimateBlur = new QFunction("blurMetric(mat)");			
-		QValue blur = estimateBlur.apply(imageCube);
-		
-		imageCube.dispose();
-		
-		return blur.getFloat();		
+		return ComputeBackends.getCurrent().estimateBlur(image);
 	}
 
 }
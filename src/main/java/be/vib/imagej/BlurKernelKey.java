@@ -0,0 +1,47 @@
+package be.vib.imagej;
+
+// Class representing a "key" for looking up Gaussian blur kernels in the compute backends' kernel caches:
+// a blur kernel is completely determined by its size and its standard deviation.
+public class BlurKernelKey
+{
+	private final int size;
+	private final float sigma;
+	
+	public BlurKernelKey(int size, float sigma)
+	{
+		this.size = size;
+		this.sigma = sigma;
+	}
+	
+	public int getSize()
+	{
+		return size;
+	}
+	
+	public float getSigma()
+	{
+		return sigma;
+	}
+	
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (!(obj instanceof BlurKernelKey))
+			return false;
+		
+		BlurKernelKey other = (BlurKernelKey)obj;
+		return (size == other.size) && (sigma == other.sigma);
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return Integer.valueOf(size).hashCode() ^ Float.valueOf(sigma).hashCode();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "BlurKernelKey(" + size + ", " + sigma + ")";
+	}
+}
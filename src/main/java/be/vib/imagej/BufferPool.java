@@ -0,0 +1,164 @@
+package be.vib.imagej;
+
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// The BufferPool keeps pixel arrays (float[], byte[] and short[]) that are no longer needed, so that they can be
+// reused instead of reallocated. Denoising a tile takes several tile-sized arrays: the cropped noisy tile, the normalized
+// floats, intermediate images of the algorithm and the denoised tile. For long runs that would be gigabytes of
+// short-lived garbage. Nearly all tiles of a stack have the same size, so the arrays are kept in buckets by their exact length.
+//
+// Borrowed arrays have undefined contents. An array must only be released by the code that owns it, only once,
+// and must not be used after it was released. Arrays that are never released are simply garbage collected.
+// The total size of the pooled arrays is limited (256 MB by default, it can be changed with -Dbe.vib.denoisem.bufferPoolMB=n);
+// arrays released beyond that limit are left to the garbage collector too.
+//
+// The pool is shared by all threads. Quasar cubes are allocated by Quasar itself, so they are not pooled.
+public class BufferPool
+{
+	private static final BufferPool instance = new BufferPool(Long.getLong("be.vib.denoisem.bufferPoolMB", 256) * 1024 * 1024);
+
+	private final long maxPooledBytes;
+	private final AtomicLong pooledBytes = new AtomicLong(0);
+
+	private final ConcurrentHashMap<Integer, Deque<float[]>> floatBuffers = new ConcurrentHashMap<Integer, Deque<float[]>>();
+	private final ConcurrentHashMap<Integer, Deque<byte[]>> byteBuffers = new ConcurrentHashMap<Integer, Deque<byte[]>>();
+	private final ConcurrentHashMap<Integer, Deque<short[]>> shortBuffers = new ConcurrentHashMap<Integer, Deque<short[]>>();
+
+	// Statistics
+	private final AtomicLong numReused = new AtomicLong(0);
+	private final AtomicLong numAllocated = new AtomicLong(0);
+
+	public BufferPool(long maxPooledBytes)
+	{
+		this.maxPooledBytes = maxPooledBytes;
+	}
+
+	public static BufferPool getInstance()
+	{
+		return instance;
+	}
+
+	public float[] borrowFloats(int length)
+	{
+		float[] buffer = take(floatBuffers, length, Float.BYTES);
+		return (buffer != null) ? buffer : new float[length];
+	}
+
+	public byte[] borrowBytes(int length)
+	{
+		byte[] buffer = take(byteBuffers, length, Byte.BYTES);
+		return (buffer != null) ? buffer : new byte[length];
+	}
+
+	public short[] borrowShorts(int length)
+	{
+		short[] buffer = take(shortBuffers, length, Short.BYTES);
+		return (buffer != null) ? buffer : new short[length];
+	}
+
+	// Returns a new 8- or 16-bit image (the same type as the given image) of the given size, with pooled (undefined) pixels.
+	public ImageProcessor borrowImage(ImageProcessor type, int width, int height)
+	{
+		if (type instanceof ByteProcessor)
+			return new ByteProcessor(width, height, borrowBytes(width * height));
+		else
+			return new ShortProcessor(width, height, borrowShorts(width * height), null);
+	}
+
+	public void release(float[] buffer)
+	{
+		put(floatBuffers, buffer, buffer.length, Float.BYTES);
+	}
+
+	public void release(byte[] buffer)
+	{
+		put(byteBuffers, buffer, buffer.length, Byte.BYTES);
+	}
+
+	public void release(short[] buffer)
+	{
+		put(shortBuffers, buffer, buffer.length, Short.BYTES);
+	}
+
+	// Releases the pixels of an 8- or 16-bit image. The image must not be used anymore.
+	public void release(ImageProcessor image)
+	{
+		Object pixels = image.getPixels();
+		if (pixels instanceof byte[])
+			release((byte[])pixels);
+		else if (pixels instanceof short[])
+			release((short[])pixels);
+	}
+
+	// Drops all pooled arrays. The pool is shared by all runs and previews, and its size is limited anyway,
+	// so this is only useful when the application stops denoising for good.
+	public void clear()
+	{
+		drain(floatBuffers, Float.BYTES);
+		drain(byteBuffers, Byte.BYTES);
+		drain(shortBuffers, Short.BYTES);
+	}
+
+	// Returns the total size (in bytes) of the arrays that are currently pooled.
+	public long getPooledBytes()
+	{
+		return pooledBytes.get();
+	}
+
+	// Returns how many borrowed arrays were taken from the pool.
+	public long getNumReused()
+	{
+		return numReused.get();
+	}
+
+	// Returns how many borrowed arrays had to be allocated because the pool had none of the right length.
+	public long getNumAllocated()
+	{
+		return numAllocated.get();
+	}
+
+	private <T> T take(ConcurrentHashMap<Integer, Deque<T>> buckets, int length, int elementSize)
+	{
+		Deque<T> bucket = buckets.get(length);
+		T buffer = (bucket != null) ? bucket.pollFirst() : null;  // most recently released first, it is most likely still in the CPU cache
+
+		if (buffer != null)
+		{
+			pooledBytes.addAndGet(-(long)length * elementSize);
+			numReused.incrementAndGet();
+		}
+		else
+		{
+			numAllocated.incrementAndGet();
+		}
+
+		return buffer;
+	}
+
+	private <T> void put(ConcurrentHashMap<Integer, Deque<T>> buckets, T buffer, int length, int elementSize)
+	{
+		final long bytes = (long)length * elementSize;
+		if (pooledBytes.addAndGet(bytes) > maxPooledBytes)
+		{
+			pooledBytes.addAndGet(-bytes);  // pool is full
+			return;
+		}
+
+		buckets.computeIfAbsent(length, k -> new ConcurrentLinkedDeque<T>()).offerFirst(buffer);
+	}
+
+	private <T> void drain(ConcurrentHashMap<Integer, Deque<T>> buckets, int elementSize)
+	{
+		for (Map.Entry<Integer, Deque<T>> bucket : buckets.entrySet())
+			while (bucket.getValue().pollFirst() != null)
+				pooledBytes.addAndGet(-(long)bucket.getKey() * elementSize);
+	}
+}
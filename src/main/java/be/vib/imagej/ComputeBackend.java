@@ -0,0 +1,71 @@
+package be.vib.imagej;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import ij.process.ImageProcessor;
+
+// The ComputeBackend interface is the service provider interface (SPI) between the denoisers
+// and the machinery that performs the actual pixel calculations. The Quasar backend runs
+// the algorithms on the GPU (or CPU) through the Java Quasar bridge, the Java backend runs
+// pure Java implementations of the same algorithms on all CPU cores.
+//
+// Each denoising method receives the noisy (8- or 16-bit) image and the normalizer that maps
+// its pixels to the range expected by the algorithm, and returns a denoised image of the same
+// size and type. The denoising methods must be called from a task that was submitted via submit(),
+// since some backends (e.g. Quasar) can only be used from one dedicated thread.
+public interface ComputeBackend
+{
+	// Short, lowercase name of the backend, e.g. "quasar" or "java". Used for selecting a backend.
+	public String getName();
+
+	// Returns a user readable description of the backend. Meant for displaying in the user interface.
+	public String getReadableName();
+
+	// Prepares the backend for use. Throws an exception if the backend cannot be used
+	// on this machine. Initializing an already initialized backend does nothing.
+	public void initialize() throws Exception;
+
+	public boolean isInitialized();
+
+	// Runs the given task on the backend's execution thread(s).
+	public <T> Future<T> submit(Callable<T> task);
+	
+	// Returns the number of submitted tasks that the backend can usefully run at the same time
+	// (1 if tasks are executed one after the other).
+	public int getParallelism();
+	
+	// Returns the amount of memory (in bytes) that a single denoising task may use.
+	// This is used for choosing the image tile size (see TilePlanner).
+	public long getMemoryBudget();
+	
+	// The Gaussian blur kernels that the backend caches for deconvolution are shared by all tiles and slices of a denoising run,
+	// by runs that happen at the same time and by the interactive previews. Each of them calls acquireBlurKernels() before it starts
+	// and releaseBlurKernels() when it is done. The kernels are released when the last user is done, and recreated when needed again.
+	public void acquireBlurKernels();
+	
+	public void releaseBlurKernels();
+
+	public ImageProcessor gaussian(ImageProcessor image, ImageNormalizer normalizer, GaussianParams params);
+
+	public ImageProcessor bilateral(ImageProcessor image, ImageNormalizer normalizer, BilateralParams params);
+
+	public ImageProcessor anisotropicDiffusion(ImageProcessor image, ImageNormalizer normalizer, AnisotropicDiffusionParams params);
+
+	public ImageProcessor blsgsm(ImageProcessor image, ImageNormalizer normalizer, BLSGSMParams params);
+
+	public ImageProcessor waveletThresholding(ImageProcessor image, ImageNormalizer normalizer, WaveletThresholdingParams params);
+
+	public ImageProcessor nonLocalMeans(ImageProcessor image, ImageNormalizer normalizer, NonLocalMeansParams params);
+
+	public ImageProcessor tikhonov(ImageProcessor image, ImageNormalizer normalizer, TikhonovParams params);
+
+	public ImageProcessor totalVariation(ImageProcessor image, ImageNormalizer normalizer, TotalVariationParams params);
+
+	// Returns an estimate for the standard deviation of the noise in the image,
+	// for image pixel intensities normalized to be in [0,1].
+	public float estimateNoise(ImageProcessor image, ImageNormalizer normalizer);
+
+	// Returns an estimate of the amount of blur in the image (between 0 and 1).
+	public float estimateBlur(ImageProcessor image);
+}
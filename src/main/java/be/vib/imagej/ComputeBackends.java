@@ -0,0 +1,52 @@
+package be.vib.imagej;
+
+// ComputeBackends keeps track of the available compute backends and of the one that is currently
+// used for denoising. By default the Quasar backend is used. The backend can be chosen
+// on the command line with the system property -Dbe.vib.denoisem.backend=java (or =quasar),
+// or switched at run time with setCurrent(), for example when Quasar fails to initialize.
+public class ComputeBackends
+{
+	public static final String BACKEND_PROPERTY = "be.vib.denoisem.backend";
+
+	private static final ComputeBackend quasarBackend = new QuasarBackend();
+	private static final ComputeBackend javaBackend = new JavaBackend();
+
+	private static volatile ComputeBackend current = forName(System.getProperty(BACKEND_PROPERTY, "quasar"));
+
+	private ComputeBackends()
+	{
+	}
+
+	// Returns the available backends, in the order in which they should be tried.
+	public static ComputeBackend[] getBackends()
+	{
+		ComputeBackend[] backends = { quasarBackend, javaBackend };
+		return backends;
+	}
+
+	// Returns the backend with the given name. Throws an IllegalArgumentException if there is no such backend.
+	public static ComputeBackend forName(String name)
+	{
+		for (ComputeBackend backend : getBackends())
+		{
+			if (backend.getName().equalsIgnoreCase(name))
+				return backend;
+		}
+		throw new IllegalArgumentException("Unknown compute backend '" + name + "'. Available backends are 'quasar' and 'java'.");
+	}
+
+	public static ComputeBackend getCurrent()
+	{
+		return current;
+	}
+
+	public static void setCurrent(ComputeBackend backend)
+	{
+		current = backend;
+	}
+
+	public static ComputeBackend getJavaBackend()
+	{
+		return javaBackend;
+	}
+}
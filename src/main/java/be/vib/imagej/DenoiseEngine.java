@@ -1,13 +1,25 @@
 package be.vib.imagej;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import be.vib.bits.QExecutor;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
@@ -20,112 +32,821 @@ import ij.process.ShortProcessor;
 // The DenoiseEngine class is the main access point from ImageJ scripts
 // to the denoising machinery.
 //
-// The publish(), process() and isCancelled() methods are useful when the DenoiseEngine
+// The progress listeners and the cancel() and isCancelled() methods are useful when the DenoiseEngine
 // is used in combination with user interface elements that allow the user to interrupt (cancel)
-// the denoising calculations and that provide progress feedback.
+// the denoising calculations and that provide progress feedback. Progress events are sent
+// from a separate thread, at a limited rate (see DenoiseProgressTracker).
+//
+// Three execution modes are available. In SEQUENTIAL mode each tile is cropped, denoised
+// and stitched into the result before the next tile is started. In PIPELINED mode
+// tile extraction, denoising and stitching run concurrently, so that tile N+1 is being
+// cropped and tile N-1 is being stitched while tile N is being denoised by the compute backend.
+// In PARALLEL mode the tiles of all slices are spread over a pool of worker threads,
+// which is useful for backends that can denoise several tiles at the same time (see ComputeBackend.getParallelism()).
+//
+// The noisy slices are read from a SliceSource and the denoised slices are passed, in order, to a SliceSink.
+// For interactive use these are the ImageJ image and an in-memory ImageStack. For stacks that do not fit
+// in memory they are files (see MappedSliceSource, TiffSliceSink and RawSliceSink).
+//
+// The time spent in each stage of a run (reading slices, cropping tiles, waiting for and denoising them in the backend,
+// stitching and writing) is recorded in a DenoiseMetrics object, see getMetrics(). When the run is over it is
+// passed to report(), which subclasses can override to print its summary.
 public class DenoiseEngine
 {
+	public enum Mode
+	{
+		SEQUENTIAL,
+		PIPELINED,
+		PARALLEL
+	}
+	
+	// Maximum number of tiles that are queued for denoising, or denoised but not yet stitched,
+	// in PIPELINED mode. This bounds the amount of memory held by the pipeline.
+	private static final int pipelineDepth = 2;
+	
+	// Interval (in milliseconds) at which threads that wait for a tile check whether the run was cancelled.
+	private static final long cancelPollInterval = 50;
+	
 	private Denoiser denoiser;
 	
+	private Mode mode;
+	
+	private int numThreads; // number of worker threads in PARALLEL mode
+	
+	private volatile boolean cancelled = false;
+	
+	private volatile DenoiseMetrics metrics = new DenoiseMetrics();  // of the current or most recent run
+	
+	private final List<DenoiseProgressEventListener> progressListeners = new CopyOnWriteArrayList<DenoiseProgressEventListener>();
+	
+	private volatile DenoiseProgressTracker progress;  // of the current run
+	
 	public DenoiseEngine(Denoiser denoiser)
 	{
 		this.denoiser = denoiser;
+		this.mode = Mode.SEQUENTIAL;
+		this.numThreads = denoiser.getBackend().getParallelism();
+	}
+	
+	public Mode getMode()
+	{
+		return mode;
+	}
+	
+	public void setMode(Mode mode)
+	{
+		this.mode = mode;
+	}
+	
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+	
+	// Sets the number of worker threads used in PARALLEL mode.
+	// By default this is the parallelism of the denoiser's compute backend.
+	public void setNumThreads(int numThreads)
+	{
+		assert(numThreads > 0);
+		this.numThreads = numThreads;
+	}
+	
+	// Adds a listener for the progress of the runs that start afterwards.
+	public void addProgressListener(DenoiseProgressEventListener listener)
+	{
+		progressListeners.add(listener);
 	}
 	
+	public void removeProgressListener(DenoiseProgressEventListener listener)
+	{
+		progressListeners.remove(listener);
+	}
+	
+	// Returns the metrics of the current run, or of the most recent run if no run is in progress.
+	public DenoiseMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	// Denoises the slices in the given range and returns them as a new (in-memory) ImagePlus,
+	// or null if denoising was cancelled. Throws a DenoiseException if a tile could not be denoised.
 	public ImagePlus denoise(ImagePlus noisyImagePlus, ImageNormalizer normalizer, ImageRange range, String title)
 	{
-		final int width = noisyImagePlus.getWidth();
-		final int height = noisyImagePlus.getHeight();
+		return denoise(noisyImagePlus, SliceNormalizations.fixed(normalizer), range, title);
+	}
+	
+	// Idem, with a normalization strategy instead of one normalizer for all slices.
+	public ImagePlus denoise(ImagePlus noisyImagePlus, SliceNormalization normalization, ImageRange range, String title)
+	{
+		ImageStackSink sink = new ImageStackSink();
+		try
+		{
+			denoise(new ImageStackSource(noisyImagePlus), normalization, range, sink);
+		}
+		catch (IOException e)  // not expected, ImageStackSink does no I/O
+		{
+			e.printStackTrace();
+			return null;
+		}
 		
-		final int tileSize = denoiser.imageTileSize();
-		final int margin = denoiser.imageMargin();
+		if (isCancelled())
+			return null;
 		
-		final ImageStack noisyStack = noisyImagePlus.getStack();
-						
-		ImageStack denoisedStack = new ImageStack(width, height);
+		title = ij.WindowManager.makeUniqueName(title);
 		
-		int tileNr = 0;
+		ImagePlus denoisedImagePlus = new ImagePlus(title, sink.getStack());
+
+		// Make sure the display range of our denoised result is the same as the noisy input.
+		// Otherwise the denoised image may appear too dark or bright compared to the noisy version
+		// even though the pixel values themselves are correct.
+		ImageUtils.CopyDisplayRange(noisyImagePlus.getProcessor(), denoisedImagePlus.getProcessor());
+		
+		// Add denoise parameters as properties to the denoised image.
+		// In the end we will probably want to store them as OME XML.
+		// For now use ordinary properties.
+		String info = getConcatenatedDenoisingParameters(denoiser.getParams());
+		denoisedImagePlus.setProperty("Info", info);
+
+		return denoisedImagePlus;
+	}
+	
+	// Denoises the slices in the given range of an ImageJ image and passes the denoised slices, in order, to the given sink.
+	public void denoise(ImagePlus noisyImagePlus, ImageNormalizer normalizer, ImageRange range, SliceSink sink) throws IOException
+	{
+		denoise(new ImageStackSource(noisyImagePlus), normalizer, range, sink);
+	}
+	
+	// Denoises the slices in the given range and passes the denoised slices, in order, to the given sink.
+	// The engine only holds a few noisy and denoised slices in memory at any time. So with a source that reads
+	// the slices from a file (e.g. MappedSliceSource) and a sink that writes them to a file (e.g. TiffSliceSink)
+	// stacks that are much larger than the available memory can be denoised.
+	// The sink is closed when denoising has finished, failed or was cancelled. The source is not closed.
+	// Throws an IOException if reading from the source or writing to the sink failed, and a DenoiseException if a tile
+	// could not be denoised. In both cases the sink holds fewer slices than requested.
+	public void denoise(SliceSource source, ImageNormalizer normalizer, ImageRange range, SliceSink sink) throws IOException
+	{
+		denoise(source, SliceNormalizations.fixed(normalizer), range, sink);
+	}
+	
+	// Idem, but the normalizer for each slice is chosen by the given normalization strategy (see SliceNormalizations).
+	public void denoise(SliceSource source, SliceNormalization normalization, ImageRange range, SliceSink sink) throws IOException
+	{
+		final int numSlices = range.getLast() - range.getFirst() + 1;
+		
+		final ImageTiler tiler = TilePlanner.createTiler(denoiser, source.getWidth(), source.getHeight());  // all slices have the same size, so share the tiling
+		
+		metrics = new DenoiseMetrics();
+		metrics.runStarted();
+		
+		progress = new DenoiseProgressTracker(this, new ArrayList<DenoiseProgressEventListener>(progressListeners), numSlices, tiler.getNumTiles() * numSlices,
+		                                      (long)source.getWidth() * source.getHeight() * numSlices, source.getBitDepth());
+		
+		sink.open(source.getWidth(), source.getHeight(), source.getBitDepth(), numSlices,
+				  getConcatenatedDenoisingParameters(denoiser.getParams()));
+		
+		// The blur kernels cached for deconvolution are kept until the last user of the backend's kernels
+		// (another run, the previews, a batch) is done. The pooled tile buffers stay pooled too, the BufferPool limits their size.
+		final ComputeBackend backend = denoiser.getBackend();
+		backend.acquireBlurKernels();
+		try
+		{
+			switch (mode)
+			{
+				case PIPELINED:
+					denoisePipelined(source, normalization, range, tiler, sink);
+					break;
+				case PARALLEL:
+					denoiseParallel(source, normalization, range, tiler, sink);
+					break;
+				default:
+					denoiseSequential(source, normalization, range, tiler, sink);
+					break;
+			}
+		}
+		finally
+		{
+			// The run is over even if the sink fails to close (e.g. a full disk),
+			// so the progress listeners are always told and the kernels released.
+			try
+			{
+				sink.close();
+			}
+			finally
+			{
+				metrics.runFinished();
+				progress.finish();
+				
+				backend.releaseBlurKernels();
+				
+				report(metrics);
+			}
+		}
+	}
+	
+	private void denoiseSequential(SliceSource source, SliceNormalization normalization, ImageRange range, ImageTiler tiler, SliceSink sink) throws IOException
+	{
 		for (int slice = range.getFirst(); slice <= range.getLast(); slice++)
 		{
 			if (isCancelled())
-				continue;
+				return;
 			
-			ImageProcessor noisyImage = noisyStack.getProcessor(slice);
-			ImageProcessor denoisedImage = (noisyImage instanceof ByteProcessor) ? new ByteProcessor(width, height) : new ShortProcessor(width, height); // blank image, will be filled below
+			ImageProcessor noisyImage = readSlice(source, slice);
+			ImageProcessor denoisedImage = newBlankSlice(source); // will be filled below
+			final ImageNormalizer normalizer = chooseNormalizer(normalization, slice, noisyImage);
 			
-			ImageTiler tiler = new ImageTiler(noisyImage, tileSize, tileSize, margin);
-			for (ImageTile tile : tiler)
+			for (int t = 0; t < tiler.getNumTiles(); t++)
 			{
-				if (isCancelled())
-					continue;
-								
+				ImageTile tile = tiler.getTile(t);
+				
 				// Get a noisy tile from the original image
-				ImageProcessor noisyTileImp = tile.getImageWithMargins();
+				final ImageProcessor noisyTileImp = extractTile(tile, noisyImage);
 				
 				// Denoise the tile
 				try
 				{
-					denoiser.setImage(noisyTileImp, normalizer);
-					ImageProcessor denoisedTileImp = QExecutor.getInstance().submit(denoiser).get(); // TODO: check what happens to quasar::exception_t if thrown from C++ during the denoiser task.
-
-					// Remove tile margins
-					denoisedTileImp.setRoi(tile.getLeftMargin(), tile.getTopMargin(), tile.getWidthWithoutMargins(), tile.getHeightWithoutMargins());
-					denoisedTileImp = denoisedTileImp.crop();
+					Future<ImageProcessor> denoisedTile = denoiser.getBackend().submit(denoiseTask(noisyImage, noisyTileImp, normalizer));
+					ImageProcessor denoisedTileImp = awaitDenoisedTile(denoisedTile); // TODO: check what happens to quasar::exception_t if thrown from C++ during the denoiser task.
+					if (denoisedTileImp == null)
+						return; // cancelled
 					
-					// Put denoised tile at the correct position in the result image
-					denoisedImage.insert(denoisedTileImp, tile.getXPositionWithoutMargins(), tile.getYPositionWithoutMargins());
+					stitchTile(denoisedImage, tile, denoisedTileImp);
 				}
-				catch (ExecutionException | InterruptedException e)
+				catch (ExecutionException e)
 				{
-					e.printStackTrace();
+					metrics.tileDone(true);
+					throw tileFailed(slice, t, e);
 				}
 				
 				// Progress feedback
-				tileNr++;
-				final int numTiles = tiler.getNumTiles() * (range.getLast() - range.getFirst() + 1);
-				publish((100 * tileNr) / numTiles);
+				progress.tileDone(slice, t, tile.getWidthWithoutMargins() * tile.getHeightWithoutMargins());
 			}
 
-			denoisedStack.addSlice("", denoisedImage);			
+			writeSlice(sink, denoisedImage);
 		}
+	}
+	
+	// A tile on its way through the pipeline: the tile geometry together with the pending denoising result.
+	private static class PipelineItem
+	{
+		final int slice;
+		final int tileIndex;
+		final ImageTile tile;
+		final Future<ImageProcessor> denoisedTile;
 		
-		if (isCancelled())
+		PipelineItem(int slice, int tileIndex, ImageTile tile, Future<ImageProcessor> denoisedTile)
+		{
+			this.slice = slice;
+			this.tileIndex = tileIndex;
+			this.tile = tile;
+			this.denoisedTile = denoisedTile;
+		}
+	}
+	
+	// Pipelined denoising uses three stages that run concurrently:
+	// - a producer thread crops the noisy tiles (with margins) and submits them for denoising,
+	// - the compute backend denoises the tiles (Quasar: one at a time, in the order they were submitted),
+	// - the calling thread waits for the denoised tiles, removes their margins and stitches them into the result.
+	// The producer blocks when pipelineDepth tiles are waiting to be stitched, so memory use stays bounded
+	// while the backend always has the next tile ready.
+	// When the run is cancelled the queued tiles are cancelled, and the producer is interrupted.
+	private void denoisePipelined(SliceSource source, SliceNormalization normalization, ImageRange range, ImageTiler tiler, SliceSink sink) throws IOException
+	{
+		final BlockingQueue<PipelineItem> queue = new ArrayBlockingQueue<PipelineItem>(pipelineDepth);
+		
+		ExecutorService producerExecutor = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "DenoisEM tile producer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		Future<?> producer = producerExecutor.submit(() -> {
+			for (int slice = range.getFirst(); slice <= range.getLast(); slice++)
+			{
+				ImageProcessor noisyImage = readSlice(source, slice);
+				final ImageNormalizer normalizer = chooseNormalizer(normalization, slice, noisyImage);
+				
+				for (int t = 0; t < tiler.getNumTiles(); t++)
+				{
+					if (isCancelled())
+						return null;
+					
+					ImageTile tile = tiler.getTile(t);
+					
+					// Some backends run several tasks at the same time, so the tile is passed
+					// to the denoiser explicitly instead of via setImage().
+					final ImageProcessor noisyTileImp = extractTile(tile, noisyImage);
+					Callable<ImageProcessor> task = denoiseTask(noisyImage, noisyTileImp, normalizer);
+					
+					Future<ImageProcessor> denoisedTile = denoiser.getBackend().submit(task);
+					try
+					{
+						queue.put(new PipelineItem(slice, t, tile, denoisedTile));
+					}
+					catch (InterruptedException e)  // cancelled while waiting for room in the queue
+					{
+						denoisedTile.cancel(false);
+						throw e;
+					}
+				}
+			}
 			return null;
+		});
 		
-		title = ij.WindowManager.makeUniqueName(title);
+		ImageProcessor denoisedImage = null;
+		int denoisedSlice = -1;
 		
-		ImagePlus denoisedImagePlus = new ImagePlus(title, denoisedStack);
-
-		// Make sure the display range of our denoised result is the same as the noisy input.
-		// Otherwise the denoised image may appear too dark or bright compared to the noisy version
-		// even though the pixel values themselves are correct.
-		ImageUtils.CopyDisplayRange(noisyImagePlus.getProcessor(), denoisedImagePlus.getProcessor());
+		try
+		{
+			while (true)
+			{
+				PipelineItem item = queue.poll(cancelPollInterval, TimeUnit.MILLISECONDS);
+				if (item == null)
+				{
+					if (isCancelled())
+						return;
+					
+					if (producer.isDone() && queue.isEmpty())  // the producer puts its last tile in the queue before it is done
+						break;
+					
+					continue;
+				}
+				
+				if (item.slice != denoisedSlice)
+				{
+					if (denoisedImage != null)
+						writeSlice(sink, denoisedImage);
+					
+					denoisedImage = newBlankSlice(source); // will be filled below
+					denoisedSlice = item.slice;
+				}
+				
+				try
+				{
+					ImageProcessor denoisedTileImp = awaitDenoisedTile(item.denoisedTile); // TODO: check what happens to quasar::exception_t if thrown from C++ during the denoiser task.
+					if (denoisedTileImp == null)
+						return; // cancelled
+					
+					stitchTile(denoisedImage, item.tile, denoisedTileImp);
+				}
+				catch (ExecutionException e)
+				{
+					metrics.tileDone(true);
+					throw tileFailed(item.slice, item.tileIndex, e);
+				}
+				
+				// Progress feedback
+				progress.tileDone(item.slice, item.tileIndex, item.tile.getWidthWithoutMargins() * item.tile.getHeightWithoutMargins());
+			}
+			
+			producer.get(); // rethrows exceptions that occurred in the producer thread, if any
+			
+			if (denoisedImage != null)
+				writeSlice(sink, denoisedImage);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();  // reading a slice from the source failed
+			throw new DenoiseException("Preparing the tiles failed", e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			cancel();
+		}
+		finally
+		{
+			producerExecutor.shutdownNow();
+			
+			// Cancel the tiles that are still waiting in the queue (if the run was cancelled or failed)
+			for (PipelineItem item : queue)
+				item.denoisedTile.cancel(false);
+			queue.clear();
+		}
+	}
+	
+	// The SliceWindow keeps track of the denoised slices that are being filled in by the worker threads
+	// in PARALLEL mode. Only a limited number of slices can be in progress at the same time. As soon as
+	// the first slice in the window is complete it is passed to the sink, and the window moves on.
+	//
+	// Only the bookkeeping is done while holding the window's lock. Reading a slice (and choosing its normalizer)
+	// and writing a completed slice can take a long time, so they happen outside the lock: the first worker
+	// that needs a slice loads it while the others wait for that slice only, and one worker at a time writes
+	// the completed slices, in order, while the others keep denoising.
+	private class SliceWindow
+	{
+		// A slice in the window.
+		private class WindowSlice
+		{
+			private FutureTask<Void> load;  // reads the noisy image and prepares the fields below
+			private ImageProcessor noisyImage;
+			private ImageProcessor denoisedImage;
+			private ImageNormalizer normalizer;
+			private int tilesLeft; // number of tiles that still need to be stitched into the slice, guarded by the window's lock
+		}
 		
-		// Add denoise parameters as properties to the denoised image.
-		// In the end we will probably want to store them as OME XML.
-		// For now use ordinary properties.
-		String info = getConcatenatedDenoisingParameters(denoiser.getParams());
-		denoisedImagePlus.setProperty("Info", info);
-
-		return denoisedImagePlus;
+		private final SliceSource source;
+		private final ImageRange range;
+		private final SliceSink sink;
+		private final int tilesPerSlice;
+		private final int maxSlicesInProgress;
+		private final SliceNormalization normalization;
+		
+		private final WindowSlice[] slices;  // null for slices that were not started yet or were already passed to the sink
+		private int firstSlice = 0; // index (relative to range.getFirst()) of the first slice that was not passed to the sink yet
+		private boolean writing = false; // a worker is passing completed slices to the sink
+		private boolean failed = false; // a worker failed, the slice it was working on will never be complete
+		
+		SliceWindow(SliceSource source, SliceNormalization normalization, ImageRange range, int tilesPerSlice, int maxSlicesInProgress, SliceSink sink)
+		{
+			final int numSlices = range.getLast() - range.getFirst() + 1;
+			
+			this.source = source;
+			this.normalization = normalization;
+			this.range = range;
+			this.sink = sink;
+			this.tilesPerSlice = tilesPerSlice;
+			this.maxSlicesInProgress = maxSlicesInProgress;
+			this.slices = new WindowSlice[numSlices];
+		}
+		
+		// Waits until the given slice is inside the window and its noisy image is loaded from the source
+		// and its normalizer is known, and returns it.
+		// Returns null if denoising was cancelled, or another worker failed, while waiting.
+		WindowSlice startSlice(int sliceIndex) throws InterruptedException, IOException
+		{
+			WindowSlice windowSlice;
+			boolean load = false;
+			synchronized (this)
+			{
+				while (sliceIndex >= firstSlice + maxSlicesInProgress)
+				{
+					if (isCancelled() || failed)
+						return null;
+					wait(100);
+				}
+				
+				if (failed)
+					return null;
+				
+				windowSlice = slices[sliceIndex];
+				if (windowSlice == null)
+				{
+					windowSlice = newWindowSlice(range.getFirst() + sliceIndex);
+					slices[sliceIndex] = windowSlice;
+					load = true;
+				}
+			}
+			
+			if (load)
+				windowSlice.load.run();
+			
+			try
+			{
+				windowSlice.load.get();
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof IOException)
+					throw (IOException)e.getCause();
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException)e.getCause();
+				throw new DenoiseException("Reading slice " + (range.getFirst() + sliceIndex) + " failed", e.getCause());
+			}
+			
+			return windowSlice;
+		}
+		
+		private WindowSlice newWindowSlice(int slice)
+		{
+			final WindowSlice windowSlice = new WindowSlice();
+			windowSlice.tilesLeft = tilesPerSlice;
+			windowSlice.load = new FutureTask<Void>(() -> {
+				windowSlice.noisyImage = readSlice(source, slice);
+				windowSlice.normalizer = chooseNormalizer(normalization, slice, windowSlice.noisyImage);
+				windowSlice.denoisedImage = newBlankSlice(source);  // will be filled by the workers
+				return null;
+			});
+			return windowSlice;
+		}
+		
+		// Must be called when a worker fails. The other workers stop as soon as they need a new slice or are done with their tile.
+		synchronized void fail()
+		{
+			failed = true;
+			notifyAll();
+		}
+		
+		synchronized boolean isFailed()
+		{
+			return failed;
+		}
+		
+		// Must be called after a tile was stitched into the given slice. If this completes the first slice(s) of the window,
+		// and no other worker is writing, the calling worker passes them to the sink.
+		void tileDone(WindowSlice windowSlice) throws IOException
+		{
+			WindowSlice completed;
+			synchronized (this)
+			{
+				windowSlice.tilesLeft--;
+				
+				if (writing)
+					return;  // the writing worker passes this slice to the sink too, once it is its turn
+				
+				completed = firstCompletedSlice();
+				if (completed == null)
+					return;
+				
+				writing = true;
+			}
+			
+			try
+			{
+				while (completed != null)
+				{
+					writeSlice(sink, completed.denoisedImage);
+					
+					synchronized (this)
+					{
+						slices[firstSlice] = null;
+						firstSlice++;
+						notifyAll();
+						
+						completed = firstCompletedSlice();
+						if (completed == null)
+							writing = false;
+					}
+				}
+			}
+			catch (IOException | RuntimeException e)
+			{
+				synchronized (this)
+				{
+					writing = false;
+				}
+				throw e;
+			}
+		}
+		
+		// Returns the first slice of the window if it is complete, and null otherwise. Called with the lock held.
+		private WindowSlice firstCompletedSlice()
+		{
+			if (failed || firstSlice >= slices.length || slices[firstSlice] == null || slices[firstSlice].tilesLeft > 0)
+				return null;
+			return slices[firstSlice];
+		}
 	}
 	
-	public void publish(Integer... chunks)
+	// Parallel denoising splits the work in units of one tile of one slice. The worker threads
+	// repeatedly take the next unit, crop the tile from its slice, have it denoised by the backend
+	// and stitch it into the corresponding denoised slice. Completed slices are passed to the sink in order.
+	// Since units are handed out in slice order, only a few slices are in progress at any time (see SliceWindow).
+	private void denoiseParallel(SliceSource source, SliceNormalization normalization, ImageRange range, ImageTiler tiler, SliceSink sink) throws IOException
 	{
-		process(Arrays.asList(chunks));
+		final int numSlices = range.getLast() - range.getFirst() + 1;
+		final int tilesPerSlice = tiler.getNumTiles();
+		final int numUnits = tilesPerSlice * numSlices;
+		
+		final int numWorkers = Math.max(1, Math.min(numThreads, numUnits));
+		
+		// Allow enough slices in progress to keep all workers busy, plus one so that workers
+		// can start on the next slice while the last tiles of the first slice are being finished.
+		final int maxSlicesInProgress = (numWorkers + tilesPerSlice - 1) / tilesPerSlice + 1;
+		
+		final SliceWindow window = new SliceWindow(source, normalization, range, tilesPerSlice, maxSlicesInProgress, sink);
+		
+		final AtomicInteger nextUnit = new AtomicInteger(0);
+		
+		Callable<Void> worker = () -> {
+			try
+			{
+				denoiseUnits(window, nextUnit, numUnits, tiler);
+			}
+			catch (Exception e)
+			{
+				window.fail();  // so that the other workers do not wait forever for the slice of the failed tile
+				throw e;
+			}
+			return null;
+		};
+		
+		ExecutorService workerExecutor = Executors.newFixedThreadPool(numWorkers, r -> {
+			Thread thread = new Thread(r, "DenoisEM tile worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		try
+		{
+			// Wait for the workers in the order they finish, so that the first failure is noticed right away.
+			CompletionService<Void> workers = new ExecutorCompletionService<Void>(workerExecutor);
+			for (int i = 0; i < numWorkers; i++)
+				workers.submit(worker);
+			
+			for (int i = 0; i < numWorkers; i++)
+				workers.take().get();
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();  // reading from the source or writing to the sink failed
+			if (e.getCause() instanceof DenoiseException)
+				throw (DenoiseException)e.getCause();
+			throw new DenoiseException("Denoising failed", e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			cancel();
+		}
+		finally
+		{
+			// After a failure the other workers stop by themselves once their current tile is done. Interrupting them
+			// would make them cancel the run (see awaitDenoisedTile()), and then the run would be reported as cancelled.
+			if (window.isFailed())
+				workerExecutor.shutdown();
+			else
+				workerExecutor.shutdownNow();
+		}
 	}
 	
-	public void process(List<Integer> chunks)
+	// The loop of a worker thread in PARALLEL mode: takes the next unit (one tile of one slice) until there are none left,
+	// the run is cancelled or another worker failed.
+	private void denoiseUnits(SliceWindow window, AtomicInteger nextUnit, int numUnits, ImageTiler tiler) throws InterruptedException, IOException
 	{
-		for (Integer chunk : chunks)
+		final int tilesPerSlice = tiler.getNumTiles();
+		final ImageRange range = window.range;
+		
+		int unit;
+		while ((unit = nextUnit.getAndIncrement()) < numUnits && !isCancelled() && !window.isFailed())
 		{
-			System.out.println("Denoised: " + chunk + "%");
+			final int sliceIndex = unit / tilesPerSlice;
+			
+			SliceWindow.WindowSlice windowSlice = window.startSlice(sliceIndex);
+			if (windowSlice == null)
+				break; // cancelled, or another worker failed
+			
+			ImageProcessor noisyImage = windowSlice.noisyImage;
+			ImageProcessor denoisedImage = windowSlice.denoisedImage;
+			final ImageNormalizer normalizer = windowSlice.normalizer;
+			final int tileIndex = unit % tilesPerSlice;
+			ImageTile tile = tiler.getTile(tileIndex);
+			
+			final ImageProcessor noisyTileImp = extractTile(tile, noisyImage);
+			ImageProcessor denoisedTileImp;
+			try
+			{
+				denoisedTileImp = awaitDenoisedTile(denoiser.getBackend().submit(denoiseTask(noisyImage, noisyTileImp, normalizer)));
+			}
+			catch (ExecutionException e)
+			{
+				metrics.tileDone(true);
+				throw tileFailed(range.getFirst() + sliceIndex, tileIndex, e);
+			}
+			if (denoisedTileImp == null)
+				break; // cancelled
+			
+			// Tiles do not overlap (without their margins), so several threads can safely stitch into the same slice.
+			stitchTile(denoisedImage, tile, denoisedTileImp);
+			
+			// Progress feedback
+			progress.tileDone(range.getFirst() + sliceIndex, tileIndex, tile.getWidthWithoutMargins() * tile.getHeightWithoutMargins());
+			
+			window.tileDone(windowSlice);  // passes the slice to the sink if it is complete
+		}
+	}
+	
+	// Waits for a tile that was submitted to the compute backend, and returns the denoised tile.
+	// Returns null if the run is cancelled (or the waiting thread is interrupted) in the meantime.
+	// The backend task is then cancelled if it did not start yet, or abandoned if it did.
+	private ImageProcessor awaitDenoisedTile(Future<ImageProcessor> denoisedTile) throws ExecutionException
+	{
+		while (true)
+		{
+			if (isCancelled())
+			{
+				denoisedTile.cancel(false);
+				return null;
+			}
+			
+			try
+			{
+				return denoisedTile.get(cancelPollInterval, TimeUnit.MILLISECONDS);
+			}
+			catch (TimeoutException e)
+			{
+				// Not ready yet, check for cancellation and wait some more
+			}
+			catch (InterruptedException e)
+			{
+				cancel();
+			}
 		}
 	}
 	
+	// Returns the exception that stops the run when the given tile (of the given ImageJ slice) could not be denoised.
+	private static DenoiseException tileFailed(int slice, int tileIndex, ExecutionException e)
+	{
+		return new DenoiseException("Denoising tile " + tileIndex + " of slice " + slice + " failed", e.getCause());
+	}
+	
+	// Returns a new blank image for a denoised slice of the given source.
+	private static ImageProcessor newBlankSlice(SliceSource source)
+	{
+		final int width = source.getWidth();
+		final int height = source.getHeight();
+		return (source.getBitDepth() == 8) ? new ByteProcessor(width, height) : new ShortProcessor(width, height);
+	}
+	
+	// Returns the task that denoises a tile cropped from the given noisy slice. Once the tile is denoised,
+	// its noisy pixels are returned to the BufferPool (unless the tile is the complete slice, and shares its pixels).
+	private Callable<ImageProcessor> denoiseTask(ImageProcessor noisyImage, ImageProcessor noisyTileImp, ImageNormalizer normalizer)
+	{
+		final DenoiseMetrics metrics = this.metrics;
+		final long submitNanos = System.nanoTime();
+		return () -> {
+			metrics.record(DenoiseMetrics.Stage.QUEUE_WAIT, submitNanos);
+			
+			ImageProcessor denoisedTileImp;
+			DenoiseMetrics.TileTiming timing = metrics.beginTile();
+			try
+			{
+				denoisedTileImp = denoiser.denoise(noisyTileImp, normalizer);
+			}
+			finally
+			{
+				metrics.endTile(timing);
+			}
+			
+			if (noisyTileImp.getPixels() != noisyImage.getPixels() && noisyTileImp.getPixels() != denoisedTileImp.getPixels())
+				BufferPool.getInstance().release(noisyTileImp);
+			return denoisedTileImp;
+		};
+	}
+	
+	// Removes the margins from a denoised tile and puts it at the correct position in the denoised image.
+	// The denoised tile is no longer needed afterwards, so its pixels are returned to the BufferPool.
+	private void stitchTile(ImageProcessor denoisedImage, ImageTile tile, ImageProcessor denoisedTileImp)
+	{
+		final long startNanos = System.nanoTime();
+		tile.writeWithoutMargins(denoisedTileImp, denoisedImage);
+		BufferPool.getInstance().release(denoisedTileImp);
+		metrics.record(DenoiseMetrics.Stage.STITCH, startNanos);
+		metrics.tileDone(false);
+	}
+	
+	// The methods below perform one stage of a run, and record its duration in the run's metrics.
+	
+	private ImageProcessor readSlice(SliceSource source, int slice) throws IOException
+	{
+		final long startNanos = System.nanoTime();
+		ImageProcessor image = source.getSlice(slice);
+		metrics.record(DenoiseMetrics.Stage.READ_SLICE, startNanos);
+		return image;
+	}
+	
+	private ImageNormalizer chooseNormalizer(SliceNormalization normalization, int slice, ImageProcessor image)
+	{
+		final long startNanos = System.nanoTime();
+		ImageNormalizer normalizer = normalization.getNormalizer(slice, image);
+		metrics.record(DenoiseMetrics.Stage.SLICE_NORMALIZER, startNanos);
+		return normalizer;
+	}
+	
+	private ImageProcessor extractTile(ImageTile tile, ImageProcessor image)
+	{
+		final long startNanos = System.nanoTime();
+		ImageProcessor tileImage = tile.getImageWithMargins(image);
+		metrics.record(DenoiseMetrics.Stage.TILE_EXTRACTION, startNanos);
+		return tileImage;
+	}
+	
+	private void writeSlice(SliceSink sink, ImageProcessor denoisedImage) throws IOException
+	{
+		final long startNanos = System.nanoTime();
+		sink.addSlice(denoisedImage);
+		metrics.record(DenoiseMetrics.Stage.WRITE_SLICE, startNanos);
+		metrics.sliceDone(denoisedImage);
+		progress.sliceDone();
+	}
+	
+	// Called when a run is over (also if it was cancelled or failed), with the metrics of the run.
+	// Does nothing by default, so interactive runs do not fill the ImageJ console. The command line tool
+	// overrides it to print the summary, others can use getMetrics() or the totals over JMX (see DenoiseMetrics).
+	public void report(DenoiseMetrics metrics)
+	{
+	}
+	
+	// Requests the denoising run to stop as soon as possible. Tiles that were submitted to the compute backend
+	// but did not start yet are cancelled, tiles that are being denoised are abandoned (their result is ignored).
+	// Slices that were not completely denoised are not passed to the sink.
+	public void cancel()
+	{
+		cancelled = true;
+	}
+	
 	public boolean isCancelled()
 	{
-		return false;
+		return cancelled;
 	}
 	
 	static private String getConcatenatedDenoisingParameters(DenoiseParams params)
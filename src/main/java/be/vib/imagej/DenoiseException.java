@@ -0,0 +1,13 @@
+package be.vib.imagej;
+
+// Thrown by the DenoiseEngine when a tile could not be denoised (for example because the compute backend failed).
+// The run is stopped, the denoised slices that were complete before the failure were passed to the sink.
+public class DenoiseException extends RuntimeException
+{
+	private static final long serialVersionUID = 1L;
+
+	public DenoiseException(String message, Throwable cause)
+	{
+		super(message, cause);
+	}
+}
@@ -0,0 +1,367 @@
+package be.vib.imagej;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import ij.process.ImageProcessor;
+
+// DenoiseMetrics collects where the time of denoising runs goes: a latency histogram per stage
+// (see Stage), and the number of slices, tiles and pixels that were denoised.
+//
+// Each DenoiseEngine run has its own DenoiseMetrics (see DenoiseEngine.getMetrics()). Everything that is recorded
+// for a run is also added to the process-wide totals (see getTotals()), which are available via JMX
+// (see DenoiseMetricsMXBean), so that long-running jobs can be watched without attaching a profiler.
+//
+// Normalization and denormalization happen inside the compute backend, while it denoises a tile. The backends report
+// them with recordTileStage(). They are left out of the COMPUTE time of that tile, so COMPUTE is the time spent
+// in the denoising algorithm itself. For the Quasar backend the stage times are those of launching the kernels:
+// if Quasar runs them asynchronously on the GPU some of their time ends up in the stage that waits for the result.
+public class DenoiseMetrics implements DenoiseMetricsMXBean
+{
+	public enum Stage
+	{
+		READ_SLICE("read slice"),               // reading a noisy slice from the SliceSource
+		SLICE_NORMALIZER("slice normalizer"),   // choosing the normalizer of a slice (see SliceNormalization)
+		TILE_EXTRACTION("tile extraction"),     // cropping a tile (with margins) from its noisy slice
+		QUEUE_WAIT("queue wait"),               // from submitting a tile to the compute backend until the backend starts on it
+		NORMALIZE("normalize"),                 // normalizing the intensities of a tile (in the backend)
+		COMPUTE("compute"),                     // denoising a tile (in the backend), without normalization and denormalization
+		DENORMALIZE("denormalize"),             // mapping the denoised intensities back to the original range (in the backend)
+		STITCH("stitch"),                       // copying a denoised tile (without margins) into its denoised slice
+		WRITE_SLICE("write slice");             // passing a denoised slice to the SliceSink
+
+		private final String label;
+
+		private Stage(String label)
+		{
+			this.label = label;
+		}
+
+		public String getLabel()
+		{
+			return label;
+		}
+	}
+
+	public static final String OBJECT_NAME = "be.vib.denoisem:type=DenoiseMetrics";
+
+	private static final DenoiseMetrics totals = new DenoiseMetrics(null);
+	private static boolean registered = false;
+
+	// Timing of a tile that is being denoised on the current thread (see beginTile()).
+	// With the Java backend a thread that waits for its parallel loops can pick up another tile in the meantime,
+	// so tiles can be nested. The time of a nested tile is left out of the COMPUTE time of the outer tile.
+	public static final class TileTiming
+	{
+		private final DenoiseMetrics metrics;
+		private final TileTiming outer;
+		private final long startNanos;
+		private long excludedNanos;  // normalization, denormalization and nested tiles
+
+		private TileTiming(DenoiseMetrics metrics, TileTiming outer)
+		{
+			this.metrics = metrics;
+			this.outer = outer;
+			this.startNanos = System.nanoTime();
+		}
+	}
+
+	private static final ThreadLocal<TileTiming> currentTile = new ThreadLocal<TileTiming>();
+
+	private final DenoiseMetrics parent;  // the totals, or null for the totals themselves
+
+	private final EnumMap<Stage, LatencyHistogram> stages = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+
+	private final LongAdder numRuns = new LongAdder();
+	private final LongAdder numSlices = new LongAdder();
+	private final LongAdder numTiles = new LongAdder();
+	private final LongAdder numFailedTiles = new LongAdder();
+	private final LongAdder numPixels = new LongAdder();  // pixels of the denoised slices
+	private final LongAdder busyNanos = new LongAdder();  // duration of the finished runs
+	private final AtomicLong runStartNanos = new AtomicLong(0);
+
+	// Returns new metrics for one run, that also add to the totals.
+	public DenoiseMetrics()
+	{
+		this(getTotals());
+	}
+
+	private DenoiseMetrics(DenoiseMetrics parent)
+	{
+		this.parent = parent;
+		for (Stage stage : Stage.values())
+			stages.put(stage, new LatencyHistogram());
+	}
+
+	// Returns the totals of all runs in this process. The first call registers them with the platform MBean server.
+	public static synchronized DenoiseMetrics getTotals()
+	{
+		if (!registered)
+		{
+			registered = true;
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().registerMBean(totals, new ObjectName(OBJECT_NAME));
+			}
+			catch (JMException | SecurityException e)  // e.g. a second copy of the plugin in another class loader
+			{
+				System.err.println("DenoiseMetrics not available via JMX: " + e.getMessage());
+			}
+		}
+		return totals;
+	}
+
+	public void runStarted()
+	{
+		runStartNanos.set(System.nanoTime());
+		numRuns.increment();
+		if (parent != null)
+			parent.numRuns.increment();
+	}
+
+	public void runFinished()
+	{
+		final long nanos = System.nanoTime() - runStartNanos.get();
+		busyNanos.add(nanos);
+		if (parent != null)
+			parent.busyNanos.add(nanos);
+	}
+
+	// Records that the given stage started at startNanos (a System.nanoTime() value) and ended now.
+	public void record(Stage stage, long startNanos)
+	{
+		recordNanos(stage, System.nanoTime() - startNanos);
+	}
+
+	public void recordNanos(Stage stage, long nanos)
+	{
+		stages.get(stage).record(nanos);
+		if (parent != null)
+			parent.stages.get(stage).record(nanos);
+	}
+
+	public void tileDone(boolean failed)
+	{
+		(failed ? numFailedTiles : numTiles).increment();
+		if (parent != null)
+			parent.tileDone(failed);
+	}
+
+	public void sliceDone(ImageProcessor slice)
+	{
+		numSlices.increment();
+		numPixels.add(slice.getPixelCount());
+		if (parent != null)
+			parent.sliceDone(slice);
+	}
+
+	// Must be called on the thread that denoises a tile, right before the backend starts on it.
+	// The returned timing must be passed to endTile() when the tile is denoised (or failed), on the same thread.
+	public TileTiming beginTile()
+	{
+		TileTiming tile = new TileTiming(this, currentTile.get());
+		currentTile.set(tile);
+		return tile;
+	}
+
+	public void endTile(TileTiming tile)
+	{
+		final long nanos = System.nanoTime() - tile.startNanos;
+		recordNanos(Stage.COMPUTE, nanos - tile.excludedNanos);
+
+		currentTile.set(tile.outer);
+		if (tile.outer != null)
+			tile.outer.excludedNanos += nanos;
+	}
+
+	// Records a stage (NORMALIZE or DENORMALIZE) of the tile that is being denoised on the current thread.
+	// Does nothing if no tile is being denoised by a DenoiseEngine, e.g. for previews and noise estimates.
+	public static void recordTileStage(Stage stage, long startNanos)
+	{
+		TileTiming tile = currentTile.get();
+		if (tile == null)
+			return;
+
+		final long nanos = System.nanoTime() - startNanos;
+		tile.metrics.recordNanos(stage, nanos);
+		tile.excludedNanos += nanos;
+	}
+
+	public LatencyHistogram getHistogram(Stage stage)
+	{
+		return stages.get(stage);
+	}
+
+	@Override
+	public long getNumRuns()
+	{
+		return numRuns.sum();
+	}
+
+	@Override
+	public long getNumSlices()
+	{
+		return numSlices.sum();
+	}
+
+	@Override
+	public long getNumTiles()
+	{
+		return numTiles.sum();
+	}
+
+	@Override
+	public long getNumFailedTiles()
+	{
+		return numFailedTiles.sum();
+	}
+
+	@Override
+	public double getMegapixels()
+	{
+		return numPixels.sum() / 1e6;
+	}
+
+	// Returns the total duration of the finished runs. For the totals, runs that overlapped in time are counted separately.
+	@Override
+	public double getBusySeconds()
+	{
+		return busyNanos.sum() * 1e-9;
+	}
+
+	@Override
+	public double getMegapixelsPerSecond()
+	{
+		final double seconds = getBusySeconds();
+		return (seconds > 0) ? getMegapixels() / seconds : 0;
+	}
+
+	@Override
+	public double getTilesPerSecond()
+	{
+		final double seconds = getBusySeconds();
+		return (seconds > 0) ? getNumTiles() / seconds : 0;
+	}
+
+	@Override
+	public Map<String, Long> getStageCounts()
+	{
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (Stage stage : Stage.values())
+			counts.put(stage.getLabel(), stages.get(stage).getCount());
+		return counts;
+	}
+
+	@Override
+	public Map<String, Double> getStageMeanMillis()
+	{
+		return stageValues(h -> h.getMeanNanos() * 1e-6);
+	}
+
+	@Override
+	public Map<String, Double> getStageMedianMillis()
+	{
+		return stageValues(h -> h.getPercentileNanos(50) * 1e-6);
+	}
+
+	@Override
+	public Map<String, Double> getStageP95Millis()
+	{
+		return stageValues(h -> h.getPercentileNanos(95) * 1e-6);
+	}
+
+	@Override
+	public Map<String, Double> getStageMaxMillis()
+	{
+		return stageValues(h -> h.getMaxNanos() * 1e-6);
+	}
+
+	@Override
+	public Map<String, Double> getStageTotalSeconds()
+	{
+		return stageValues(h -> h.getTotalNanos() * 1e-9);
+	}
+
+	private Map<String, Double> stageValues(ToDoubleFunction<LatencyHistogram> value)
+	{
+		Map<String, Double> values = new LinkedHashMap<String, Double>();
+		for (Stage stage : Stage.values())
+			values.put(stage.getLabel(), value.applyAsDouble(stages.get(stage)));
+		return values;
+	}
+
+	@Override
+	public long getPooledBufferBytes()
+	{
+		return BufferPool.getInstance().getPooledBytes();
+	}
+
+	@Override
+	public long getNumReusedBuffers()
+	{
+		return BufferPool.getInstance().getNumReused();
+	}
+
+	@Override
+	public long getNumAllocatedBuffers()
+	{
+		return BufferPool.getInstance().getNumAllocated();
+	}
+
+	// Returns a human readable table with the counters and the latency of each stage.
+	@Override
+	public String getSummary()
+	{
+		StringBuilder summary = new StringBuilder();
+		summary.append(String.format(Locale.ROOT, "%d slices, %d tiles (%d failed), %.1f Mpixel in %.2f s: %.2f Mpixel/s, %.2f tiles/s%n",
+		                             getNumSlices(), getNumTiles(), getNumFailedTiles(), getMegapixels(), getBusySeconds(),
+		                             getMegapixelsPerSecond(), getTilesPerSecond()));
+		summary.append(String.format(Locale.ROOT, "%-17s %8s %10s %10s %10s %10s %10s",
+		                             "stage", "count", "mean ms", "p50 ms", "p95 ms", "max ms", "total s"));
+		for (Stage stage : Stage.values())
+		{
+			LatencyHistogram h = stages.get(stage);
+			if (h.getCount() == 0)
+				continue;
+
+			summary.append(String.format(Locale.ROOT, "%n%-17s %8d %10.3f %10.3f %10.3f %10.3f %10.3f",
+			                             stage.getLabel(), h.getCount(), h.getMeanNanos() * 1e-6, h.getPercentileNanos(50) * 1e-6,
+			                             h.getPercentileNanos(95) * 1e-6, h.getMaxNanos() * 1e-6, h.getTotalNanos() * 1e-9));
+		}
+		return summary.toString();
+	}
+
+	// Returns the latency of each stage as a JSON object, for example for the run statistics of DenoisingCLI.
+	public String toJson()
+	{
+		StringBuilder json = new StringBuilder("{");
+		for (Stage stage : Stage.values())
+		{
+			LatencyHistogram h = stages.get(stage);
+			if (json.length() > 1)
+				json.append(", ");
+			json.append(String.format(Locale.ROOT, "\"%s\": {\"count\": %d, \"meanMillis\": %.3f, \"p50Millis\": %.3f, \"p95Millis\": %.3f, \"maxMillis\": %.3f, \"totalSeconds\": %.3f}",
+			                          camelCase(stage), h.getCount(), h.getMeanNanos() * 1e-6, h.getPercentileNanos(50) * 1e-6,
+			                          h.getPercentileNanos(95) * 1e-6, h.getMaxNanos() * 1e-6, h.getTotalNanos() * 1e-9));
+		}
+		return json.append("}").toString();
+	}
+
+	// READ_SLICE -> readSlice
+	private static String camelCase(Stage stage)
+	{
+		StringBuilder name = new StringBuilder();
+		for (String word : stage.name().toLowerCase(Locale.ROOT).split("_"))
+			name.append(name.length() == 0 ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1));
+		return name.toString();
+	}
+}
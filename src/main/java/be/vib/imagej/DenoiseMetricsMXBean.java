@@ -0,0 +1,32 @@
+package be.vib.imagej;
+
+import java.util.Map;
+
+// Management interface of the DenoiseMetrics totals, registered with the platform MBean server as
+// be.vib.denoisem:type=DenoiseMetrics. It can be inspected with JConsole or VisualVM, or any other JMX client.
+//
+// The maps are keyed by stage name (see DenoiseMetrics.Stage).
+public interface DenoiseMetricsMXBean
+{
+	long getNumRuns();
+	long getNumSlices();
+	long getNumTiles();
+	long getNumFailedTiles();
+	double getMegapixels();
+	double getBusySeconds();
+	double getMegapixelsPerSecond();
+	double getTilesPerSecond();
+
+	Map<String, Long> getStageCounts();
+	Map<String, Double> getStageMeanMillis();
+	Map<String, Double> getStageMedianMillis();
+	Map<String, Double> getStageP95Millis();
+	Map<String, Double> getStageMaxMillis();
+	Map<String, Double> getStageTotalSeconds();
+
+	long getPooledBufferBytes();
+	long getNumReusedBuffers();
+	long getNumAllocatedBuffers();
+
+	String getSummary();
+}
@@ -12,8 +12,31 @@ public abstract class DenoiseParams
 	// Together they precisely specify the denoising algorithm and its parameters.
     public abstract Properties getParameterList();
 
+	// Sets the denoising parameters from "properties" with the same keys as in getParameterList()
+	// (for example read from a parameter file). Parameters that are missing keep their current value.
+	// Throws a NumberFormatException if a value is not a valid number.
+	public abstract void setParameterList(Properties props);
+
 	// Set default algorithm parameters based on the image noise estimate 'noiseEstimate'.
     // noiseEstimate is an estimate for the standard deviation of the noise in the image,
     // assuming the image pixel intensities are in the range [0, 1].
 	public abstract void setDefaultParameters(float noiseEstimate);
+	
+	protected static float getFloat(Properties props, String key, float defaultValue)
+	{
+		String value = props.getProperty(PREFIX + key);
+		return (value == null) ? defaultValue : Float.parseFloat(value.trim());
+	}
+	
+	protected static int getInt(Properties props, String key, int defaultValue)
+	{
+		String value = props.getProperty(PREFIX + key);
+		return (value == null) ? defaultValue : Integer.parseInt(value.trim());
+	}
+	
+	protected static boolean getBoolean(Properties props, String key, boolean defaultValue)
+	{
+		String value = props.getProperty(PREFIX + key);
+		return (value == null) ? defaultValue : Boolean.parseBoolean(value.trim());
+	}
 }
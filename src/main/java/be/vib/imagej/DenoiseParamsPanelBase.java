@@ -2,12 +2,28 @@ package be.vib.imagej;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
 
 import javax.swing.JPanel;
 
 public abstract class DenoiseParamsPanelBase extends JPanel
 {
 	private ArrayList<DenoiseParamsChangeEventListener> listeners = new ArrayList<DenoiseParamsChangeEventListener>();
+	
+	// A parameter that is controlled by a slider. setValueAtStep() sets the parameter in a copy of the parameters
+	// to its value a number of slider steps away from the slider's current position, or returns false if there is no such position.
+	private interface SteppableParameter
+	{
+		boolean setValueAtStep(DenoiseParams params, int steps);
+	}
+	
+	private ArrayList<SteppableParameter> steppableParameters = new ArrayList<SteppableParameter>();
+	
+	private boolean editedByUser = false;  // whether the user changed a parameter since the last setEditedByUser(false)
+	private boolean updatingFromParams = false;  // true while showParams() updates the widgets
 
 	public synchronized void addEventListener(DenoiseParamsChangeEventListener listener)
 	{
@@ -21,6 +37,9 @@ public abstract class DenoiseParamsPanelBase extends JPanel
 
 	protected synchronized void fireParamsChangeEvent()
 	{
+		if (!updatingFromParams)
+			editedByUser = true;
+		
 		DenoiseParamsChangeEvent event = new DenoiseParamsChangeEvent(this);
 
 		Iterator<DenoiseParamsChangeEventListener> i = listeners.iterator();
@@ -32,4 +51,72 @@ public abstract class DenoiseParamsPanelBase extends JPanel
 	
 	// Update the panel's widgets so they reflect the current parameter values.
 	abstract public void updatePanelFromParams();
-}
\ No newline at end of file
+	
+	// Calls updatePanelFromParams() after the parameters were changed by the program.
+	// The resulting change events do not count as edits by the user. Must be called on the EDT.
+	public void showParams()
+	{
+		updatingFromParams = true;
+		try
+		{
+			updatePanelFromParams();
+		}
+		finally
+		{
+			updatingFromParams = false;
+		}
+	}
+	
+	public boolean isEditedByUser()
+	{
+		return editedByUser;
+	}
+	
+	public void setEditedByUser(boolean editedByUser)
+	{
+		this.editedByUser = editedByUser;
+	}
+	
+	// Registers a slider parameter, so that getNeighbouringParams() varies it.
+	protected void addSteppableParameter(SliderFieldPair pair, BiConsumer<DenoiseParams, Float> setter)
+	{
+		steppableParameters.add((params, steps) -> {
+			float value = pair.getValueAtStep(steps);
+			if (Float.isNaN(value))
+				return false;
+			setter.accept(params, value);
+			return true;
+		});
+	}
+	
+	protected void addSteppableParameter(SliderSpinnerPair pair, ObjIntConsumer<DenoiseParams> setter)
+	{
+		steppableParameters.add((params, steps) -> {
+			if (!pair.hasValueAtStep(steps))
+				return false;
+			setter.accept(params, pair.getValue() + steps);
+			return true;
+		});
+	}
+	
+	// Returns the parameters that the user is likely to try next: copies of the current parameters (made by paramsCopy)
+	// with one slider parameter moved 1 up to maxSteps slider steps, nearest first.
+	// Must be called on the EDT, since it reads the slider positions.
+	public List<DenoiseParams> getNeighbouringParams(Supplier<DenoiseParams> paramsCopy, int maxSteps)
+	{
+		List<DenoiseParams> neighbours = new ArrayList<DenoiseParams>();
+		for (int steps = 1; steps <= maxSteps; steps++)
+		{
+			for (SteppableParameter parameter : steppableParameters)
+			{
+				for (int direction = 1; direction >= -1; direction -= 2)
+				{
+					DenoiseParams params = paramsCopy.get();
+					if (parameter.setValueAtStep(params, direction * steps))
+						neighbours.add(params);
+				}
+			}
+		}
+		return neighbours;
+	}
+}
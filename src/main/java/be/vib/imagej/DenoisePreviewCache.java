@@ -1,21 +1,203 @@
 package be.vib.imagej;
 
-import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
-public class DenoisePreviewCache extends LinkedHashMap<DenoisePreviewCacheKey, DenoisePreviewCacheValue>
+// The DenoisePreviewCache holds the denoised previews (and their noise and blur estimates) for the algorithm
+// and parameter settings that the user tried, so that going back to earlier settings shows the preview immediately.
+//
+// The cache is limited by the total size of the preview images, not by their number: a 512x512 16-bit preview is
+// a thousand times larger than a small 8-bit one. The budget is 64 MB by default, it can be changed with
+// -Dbe.vib.denoisem.previewCacheMB=n. When the cache is over budget, the least recently used previews are evicted.
+//
+// Several threads (the preview worker, and workers that denoise previews ahead of time) can use the cache
+// at the same time. Lookups do not lock, only evictions are serialized.
+//
+// The cache key does not identify the preview image, so the cache must be cleared when the preview image changes.
+// Previews are denoised asynchronously, and one that was requested for the old image may only be finished after
+// the clear. To keep it out, the requester takes the cache's generation when the preview is requested and passes it
+// to put(): the preview is not cached if the cache was cleared in the meantime.
+public class DenoisePreviewCache
 {
-    private int capacity;
- 
-    public DenoisePreviewCache(final int capacity)
-    {
-        super(16, 0.75f, true);
-        this.capacity = capacity;
-    }
- 
-    @Override
-    protected boolean removeEldestEntry(final Map.Entry<DenoisePreviewCacheKey, DenoisePreviewCacheValue> eldest)
-    {
-        return size() >= capacity;
-    }
-}
\ No newline at end of file
+	private static final long defaultMaxBytes = Long.getLong("be.vib.denoisem.previewCacheMB", 64) * 1024 * 1024;
+
+	private static class Entry
+	{
+		final DenoisePreviewCacheValue value;
+		final long bytes;
+		volatile long lastAccess;  // value of accessClock when the entry was last used
+
+		Entry(DenoisePreviewCacheValue value, long lastAccess)
+		{
+			this.value = value;
+			this.bytes = value.getSizeInBytes();
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	private final long maxBytes;
+
+	private final ConcurrentHashMap<DenoisePreviewCacheKey, Entry> entries = new ConcurrentHashMap<DenoisePreviewCacheKey, Entry>();
+	private final AtomicLong bytes = new AtomicLong(0);
+	private final AtomicLong accessClock = new AtomicLong(0);
+	private final Object evictionLock = new Object();
+	
+	private final Object generationLock = new Object();
+	private volatile int generation = 0;  // incremented by clear(), guarded by generationLock
+
+	// Statistics
+	private final LongAdder numHits = new LongAdder();
+	private final LongAdder numMisses = new LongAdder();
+	private final LongAdder numEvictions = new LongAdder();
+
+	public DenoisePreviewCache()
+	{
+		this(defaultMaxBytes);
+	}
+
+	// Returns a cache that holds at most maxBytes of preview images.
+	public DenoisePreviewCache(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	// Returns the cached preview, or null if there is none.
+	public DenoisePreviewCacheValue get(DenoisePreviewCacheKey key)
+	{
+		Entry entry = entries.get(key);
+		if (entry == null)
+		{
+			numMisses.increment();
+			return null;
+		}
+
+		entry.lastAccess = accessClock.incrementAndGet();
+		numHits.increment();
+		return entry.value;
+	}
+
+	// Returns true if a preview is cached for the key. Unlike get(), this does not count as a use of the preview.
+	public boolean containsKey(DenoisePreviewCacheKey key)
+	{
+		return entries.containsKey(key);
+	}
+
+	// Adds or replaces a preview. A preview that is larger than the complete budget is not cached.
+	public void put(DenoisePreviewCacheKey key, DenoisePreviewCacheValue value)
+	{
+		Entry entry = new Entry(value, accessClock.incrementAndGet());
+		if (entry.bytes > maxBytes)
+			return;
+
+		Entry previous = entries.put(key, entry);
+		bytes.addAndGet(entry.bytes - (previous != null ? previous.bytes : 0));
+
+		if (bytes.get() > maxBytes)
+			evict();
+	}
+
+	// Adds or replaces a preview, unless the cache was cleared after getGeneration() returned the given generation.
+	// Returns true if the preview was added.
+	public boolean put(DenoisePreviewCacheKey key, DenoisePreviewCacheValue value, int generation)
+	{
+		synchronized (generationLock)  // so that clear() cannot happen between the check and the put
+		{
+			if (generation != this.generation)
+				return false;
+			
+			put(key, value);
+			return true;
+		}
+	}
+	
+	public int getGeneration()
+	{
+		return generation;
+	}
+	
+	public void clear()
+	{
+		synchronized (generationLock)
+		{
+			generation++;
+			removeAll();
+		}
+	}
+	
+	private void removeAll()
+	{
+		for (DenoisePreviewCacheKey key : entries.keySet())
+		{
+			Entry entry = entries.remove(key);
+			if (entry != null)
+				bytes.addAndGet(-entry.bytes);
+		}
+	}
+
+	// Returns the number of cached previews.
+	public int size()
+	{
+		return entries.size();
+	}
+
+	// Returns the total size (in bytes) of the cached previews.
+	public long getSizeInBytes()
+	{
+		return bytes.get();
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public long getNumHits()
+	{
+		return numHits.sum();
+	}
+
+	public long getNumMisses()
+	{
+		return numMisses.sum();
+	}
+
+	public long getNumEvictions()
+	{
+		return numEvictions.sum();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(Locale.ROOT, "%d previews, %.1f of %.1f MB, %d hits, %d misses, %d evictions",
+		                     size(), getSizeInBytes() / 1048576.0, maxBytes / 1048576.0, getNumHits(), getNumMisses(), getNumEvictions());
+	}
+
+	// Evicts the least recently used previews until the cache is within budget.
+	// The cache holds at most a few hundred previews, so a linear search for the oldest one is cheap enough.
+	private void evict()
+	{
+		synchronized (evictionLock)
+		{
+			while (bytes.get() > maxBytes)
+			{
+				Map.Entry<DenoisePreviewCacheKey, Entry> oldest = null;
+				for (Map.Entry<DenoisePreviewCacheKey, Entry> e : entries.entrySet())
+					if (oldest == null || e.getValue().lastAccess < oldest.getValue().lastAccess)
+						oldest = e;
+
+				if (oldest == null)
+					return;
+
+				if (entries.remove(oldest.getKey(), oldest.getValue()))  // not replaced or removed in the meantime
+				{
+					bytes.addAndGet(-oldest.getValue().bytes);
+					numEvictions.increment();
+				}
+			}
+		}
+	}
+}
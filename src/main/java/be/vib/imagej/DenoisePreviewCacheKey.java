@@ -13,6 +13,13 @@ public class DenoisePreviewCacheKey
 		this.params = algorithm.getParamsCopy();
 	}
 	
+	// The params must not be modified after the key was made.
+	public DenoisePreviewCacheKey(Algorithm.Name name, DenoiseParams params)
+	{
+		this.name = name;
+		this.params = params;
+	}
+	
 	@Override
 	public boolean equals(Object obj)
 	{
@@ -1,19 +1,56 @@
 package be.vib.imagej;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+
+import ij.process.ImageProcessor;
 
 // Class representing a "value" in our cache with denoising previews:
 // the denoised image and an estimate of its noise and blur levels.
+//
+// The estimates are only computed when the user wants to see them, and after the preview is shown.
+// Until then they are NaN, and the denoised image (8 or 16 bit) is kept so they can be computed later.
 public class DenoisePreviewCacheValue
 {
 	public BufferedImage denoisedPreview;
-	public float noiseEstimate;
-	public float blurEstimate;
-	
+	public ImageProcessor denoisedImage;  // null if the estimates were known when the value was made
+	public volatile float noiseEstimate;
+	public volatile float blurEstimate;
+
 	public DenoisePreviewCacheValue(BufferedImage denoisedPreview, float noiseEstimate, float blurEstimate)
 	{
 		this.denoisedPreview = denoisedPreview;
+		this.denoisedImage = null;
 		this.noiseEstimate = noiseEstimate;
 		this.blurEstimate = blurEstimate;
 	}
+
+	// A value without noise and blur estimates yet.
+	public DenoisePreviewCacheValue(BufferedImage denoisedPreview, ImageProcessor denoisedImage)
+	{
+		this.denoisedPreview = denoisedPreview;
+		this.denoisedImage = denoisedImage;
+		this.noiseEstimate = Float.NaN;
+		this.blurEstimate = Float.NaN;
+	}
+
+	public boolean hasNoiseEstimate()
+	{
+		return !Float.isNaN(noiseEstimate);
+	}
+
+	public boolean hasBlurEstimate()
+	{
+		return !Float.isNaN(blurEstimate);
+	}
+
+	// Returns the (approximate) amount of memory taken by the preview image.
+	public long getSizeInBytes()
+	{
+		DataBuffer buffer = denoisedPreview.getRaster().getDataBuffer();
+		long bytes = (long)buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+		if (denoisedImage != null)
+			bytes += (long)denoisedImage.getPixelCount() * denoisedImage.getBitDepth() / 8;
+		return bytes;
+	}
 }
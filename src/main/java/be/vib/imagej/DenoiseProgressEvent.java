@@ -0,0 +1,122 @@
+package be.vib.imagej;
+
+import java.util.Locale;
+
+// A snapshot of the progress of a DenoiseEngine run. The source of the event is the DenoiseEngine.
+//
+// Progress is counted in tiles: a tile is done once it is denoised and stitched into its denoised slice.
+// Bytes are those of the noisy input (tiles without their margins), so the total is the size of the denoised range.
+public class DenoiseProgressEvent extends java.util.EventObject
+{
+	private static final long serialVersionUID = 1L;
+
+	private final int slice;  // ImageJ slice number of the most recently completed tile, 0 if no tile is done yet
+	private final int tile;   // index of that tile in its slice
+	private final int slicesDone;
+	private final int numSlices;
+	private final int tilesDone;
+	private final int numTiles;
+	private final long bytesProcessed;
+	private final long totalBytes;
+	private final long elapsedNanos;
+	private final double megapixelsPerSecond;
+	private final boolean finished;
+
+	public DenoiseProgressEvent(Object source, int slice, int tile, int slicesDone, int numSlices, int tilesDone, int numTiles,
+	                            long bytesProcessed, long totalBytes, long elapsedNanos, double megapixelsPerSecond, boolean finished)
+	{
+		super(source);
+		this.slice = slice;
+		this.tile = tile;
+		this.slicesDone = slicesDone;
+		this.numSlices = numSlices;
+		this.tilesDone = tilesDone;
+		this.numTiles = numTiles;
+		this.bytesProcessed = bytesProcessed;
+		this.totalBytes = totalBytes;
+		this.elapsedNanos = elapsedNanos;
+		this.megapixelsPerSecond = megapixelsPerSecond;
+		this.finished = finished;
+	}
+
+	public int getSlice()
+	{
+		return slice;
+	}
+
+	public int getTile()
+	{
+		return tile;
+	}
+
+	public int getSlicesDone()
+	{
+		return slicesDone;
+	}
+
+	public int getNumSlices()
+	{
+		return numSlices;
+	}
+
+	public int getTilesDone()
+	{
+		return tilesDone;
+	}
+
+	public int getNumTiles()
+	{
+		return numTiles;
+	}
+
+	public long getBytesProcessed()
+	{
+		return bytesProcessed;
+	}
+
+	public long getTotalBytes()
+	{
+		return totalBytes;
+	}
+
+	public int getPercentage()
+	{
+		return (numTiles == 0) ? 100 : (int)((100L * tilesDone) / numTiles);
+	}
+
+	public double getElapsedSeconds()
+	{
+		return elapsedNanos * 1e-9;
+	}
+
+	// Returns the estimated time (in seconds) until all tiles are done, based on the average throughput so far,
+	// or a negative value if no estimate is available yet.
+	public double getEstimatedRemainingSeconds()
+	{
+		if (finished)
+			return 0;
+		if (bytesProcessed == 0)
+			return -1;
+		return getElapsedSeconds() * (totalBytes - bytesProcessed) / bytesProcessed;
+	}
+
+	// Returns the recent throughput, in megapixels of the noisy input per second.
+	public double getMegapixelsPerSecond()
+	{
+		return megapixelsPerSecond;
+	}
+
+	// Returns true for the last event of a run. It is sent when the run is over, also if it was cancelled or failed.
+	public boolean isFinished()
+	{
+		return finished;
+	}
+
+	@Override
+	public String toString()
+	{
+		String remaining = (getEstimatedRemainingSeconds() < 0) ? "" : String.format(Locale.ROOT, ", %.0f s left", getEstimatedRemainingSeconds());
+		return String.format(Locale.ROOT, "Denoised: %d%% (slice %d/%d done, %.1f Mpixel/s%s)",
+		                     getPercentage(), slicesDone, numSlices, megapixelsPerSecond, remaining);
+	}
+}
@@ -0,0 +1,9 @@
+package be.vib.imagej;
+
+// Listener for the progress of a DenoiseEngine run, see DenoiseEngine.addProgressListener().
+// Events are delivered on a separate thread, never on the threads that denoise the tiles, so a slow listener
+// does not slow down denoising. Listeners that update Swing components must hand the event over to the EDT.
+public interface DenoiseProgressEventListener
+{
+    public void handleDenoiseProgressEvent(DenoiseProgressEvent e);
+}
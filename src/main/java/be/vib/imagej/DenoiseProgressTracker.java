@@ -0,0 +1,172 @@
+package be.vib.imagej;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The DenoiseProgressTracker counts the tiles and slices that a DenoiseEngine run has completed,
+// and sends DenoiseProgressEvents to the run's listeners.
+//
+// tileDone() and sliceDone() are called by the threads that denoise the tiles, so they only update a few counters.
+// The events are sent by a separate dispatcher thread, at most once every minEventInterval milliseconds:
+// all progress made in the meantime is coalesced into a single event. The last event is sent by finish().
+// Without listeners no dispatcher thread is started at all.
+public class DenoiseProgressTracker
+{
+	// Minimum time (in milliseconds) between two progress events.
+	private static final long minEventInterval = 100;
+
+	// Weight of the most recent interval in the smoothed throughput.
+	private static final double throughputSmoothing = 0.3;
+
+	private final Object source;
+	private final List<DenoiseProgressEventListener> listeners;
+	private final int numSlices;
+	private final int numTiles;
+	private final long totalBytes;
+	private final int bytesPerPixel;
+	private final long startNanos;
+
+	private final AtomicInteger tilesDone = new AtomicInteger(0);
+	private final AtomicInteger slicesDone = new AtomicInteger(0);
+	private final AtomicLong bytesProcessed = new AtomicLong(0);
+	private volatile int lastSlice = 0;
+	private volatile int lastTile = 0;
+
+	private final ScheduledExecutorService dispatcher;  // null if there are no listeners
+	private final AtomicBoolean eventScheduled = new AtomicBoolean(false);
+	private volatile boolean finished = false;
+
+	private volatile long lastEventNanos;  // only written by the dispatcher thread
+
+	// Only used on the dispatcher thread
+	private long lastEventBytes = 0;
+	private double megapixelsPerSecond = 0;
+
+	public DenoiseProgressTracker(Object source, List<DenoiseProgressEventListener> listeners, int numSlices, int numTiles, long totalPixels, int bitDepth)
+	{
+		this.source = source;
+		this.listeners = listeners;
+		this.numSlices = numSlices;
+		this.numTiles = numTiles;
+		this.bytesPerPixel = bitDepth / 8;
+		this.totalBytes = totalPixels * bytesPerPixel;
+		this.startNanos = System.nanoTime();
+		this.lastEventNanos = startNanos;
+
+		if (listeners.isEmpty())
+		{
+			dispatcher = null;
+		}
+		else
+		{
+			dispatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "DenoisEM progress");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	// Must be called when a tile (of numPixels pixels, without margins) of the given ImageJ slice was denoised and stitched.
+	public void tileDone(int slice, int tile, int numPixels)
+	{
+		lastSlice = slice;
+		lastTile = tile;
+		bytesProcessed.addAndGet((long)numPixels * bytesPerPixel);
+		tilesDone.incrementAndGet();
+
+		scheduleEvent();
+	}
+
+	// Must be called when a denoised slice was passed to the sink.
+	public void sliceDone()
+	{
+		slicesDone.incrementAndGet();
+
+		scheduleEvent();
+	}
+
+	// Sends the last event and waits until it was handled. Must be called once, when the run is over.
+	public void finish()
+	{
+		if (dispatcher == null)
+			return;
+
+		finished = true;  // an event that is still scheduled is skipped, the last event has more recent progress
+		dispatcher.execute(() -> sendEvent(true));
+		dispatcher.shutdown();
+		try
+		{
+			dispatcher.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void scheduleEvent()
+	{
+		if (dispatcher == null || finished)
+			return;
+
+		// At most one event is scheduled at any time. Progress made before it is sent is included in it.
+		if (eventScheduled.compareAndSet(false, true))
+		{
+			final long delay = Math.max(0, TimeUnit.MILLISECONDS.toNanos(minEventInterval) - (System.nanoTime() - lastEventNanos));
+			try
+			{
+				dispatcher.schedule(() -> sendEvent(false), delay, TimeUnit.NANOSECONDS);
+			}
+			catch (RejectedExecutionException e)
+			{
+				// finish() was called in the meantime
+			}
+		}
+	}
+
+	// Runs on the dispatcher thread.
+	private void sendEvent(boolean last)
+	{
+		eventScheduled.set(false);  // progress from now on needs a new event
+
+		if (finished && !last)
+			return;
+
+		final long now = System.nanoTime();
+		final long bytes = bytesProcessed.get();
+
+		if (last)
+		{
+			megapixelsPerSecond = bytes / (double)bytesPerPixel / 1e6 / ((now - startNanos) * 1e-9);  // average of the whole run
+		}
+		else if (now > lastEventNanos)
+		{
+			final double recent = (bytes - lastEventBytes) / (double)bytesPerPixel / 1e6 / ((now - lastEventNanos) * 1e-9);
+			megapixelsPerSecond = (lastEventBytes == 0) ? recent : throughputSmoothing * recent + (1 - throughputSmoothing) * megapixelsPerSecond;
+		}
+		lastEventNanos = now;
+		lastEventBytes = bytes;
+
+		DenoiseProgressEvent event = new DenoiseProgressEvent(source, lastSlice, lastTile, slicesDone.get(), numSlices, tilesDone.get(), numTiles,
+		                                                      bytes, totalBytes, now - startNanos, megapixelsPerSecond, last);
+
+		for (DenoiseProgressEventListener listener : listeners)
+		{
+			try
+			{
+				listener.handleDenoiseProgressEvent(event);
+			}
+			catch (RuntimeException e)  // a broken listener must not stop the progress reports for the others
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -1,7 +1,9 @@
 package be.vib.imagej;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.swing.JProgressBar;
 import javax.swing.SwingWorker;
@@ -12,11 +14,12 @@ import ij.ImagePlus;
 // The DenoiseSwingWorker class is a wrapper around the DenoiseEngine class.
 // Its main task is to provide denoising progress feedback to the
 // user interface, and to allow the user to cancel the denoising calculations.
-public class DenoiseSwingWorker extends SwingWorker<ImagePlus, Integer>
+public class DenoiseSwingWorker extends SwingWorker<ImagePlus, DenoiseProgressEvent>
 {
 	private Algorithm algorithm;
 	private ImagePlus noisyImagePlus;
-	private ImageNormalizer normalizer;
+	private Future<ImageNormalizer> normalizer;  // the normalizer of the reference slice
+	private SliceNormalizations.Mode normalizationMode;
 	private ImageRange range;
 	private JProgressBar progressBar;
 	private Runnable whenDone;  // Will be run on the EDT as soon as the DenoiseSwingWorker is done denoising. Can be used to indicate in the UI that we are done.
@@ -26,24 +29,15 @@ public class DenoiseSwingWorker extends SwingWorker<ImagePlus, Integer>
 		SwingDenoiseEngine(Algorithm algorithm)
 		{
 			super(algorithm.getDenoiserCopy());
-		}
-		
-		@Override 
-		public void publish(Integer... chunks )
-		{
-			DenoiseSwingWorker.this.publish(chunks);
-		}
-		
-		@Override 
-		public void process(List<Integer> chunks)
-		{
-			DenoiseSwingWorker.this.process(chunks);
+			
+			// Progress events arrive on the engine's progress thread, process() hands them over to the EDT.
+			addProgressListener(e -> DenoiseSwingWorker.this.publish(e));
 		}
 		
 		@Override 
 		public boolean isCancelled()
 		{
-			return DenoiseSwingWorker.this.isCancelled();
+			return super.isCancelled() || DenoiseSwingWorker.this.isCancelled();
 		}
 	}
 	
@@ -76,35 +70,50 @@ public class DenoiseSwingWorker extends SwingWorker<ImagePlus, Integer>
 		return title;
 	}
 	
-	public DenoiseSwingWorker(Algorithm algorithm, ImagePlus noisyImagePlus, ImageNormalizer normalizer, ImageRange range, JProgressBar progressBar, Runnable whenDone)
+	public DenoiseSwingWorker(Algorithm algorithm, ImagePlus noisyImagePlus, Future<ImageNormalizer> normalizer, SliceNormalizations.Mode normalizationMode, ImageRange range, JProgressBar progressBar, Runnable whenDone)
 	{
 		this.algorithm = algorithm;
 		this.noisyImagePlus = noisyImagePlus;
 		this.normalizer = normalizer;
+		this.normalizationMode = normalizationMode;
 		this.range = range;
 		this.progressBar = progressBar;
 		this.whenDone = whenDone;
 	}
 	
 	@Override
-	public ImagePlus doInBackground()
+	public ImagePlus doInBackground() throws IOException, InterruptedException, ExecutionException
 	{
 		// The method doInBackground is run is a thread different from the Java Event Dispatch Thread (EDT).
 		// Do not update Java Swing components here.
 		
 		DenoiseEngine engine = new SwingDenoiseEngine(algorithm);
-		return engine.denoise(noisyImagePlus, normalizer, range, getTitle());
+		
+		// Backends that can denoise several tiles at the same time are kept busy with tiles from all slices,
+		// the others get a pipeline that prepares the next tile while the current one is being denoised.
+		boolean concurrentBackend = ComputeBackends.getCurrent().getParallelism() > 1;
+		engine.setMode(concurrentBackend ? DenoiseEngine.Mode.PARALLEL : DenoiseEngine.Mode.PIPELINED);
+		
+		SliceNormalization normalization = SliceNormalizations.create(normalizationMode, new ImageStackSource(noisyImagePlus), range, normalizer.get());
+		
+		return engine.denoise(noisyImagePlus, normalization, range, getTitle());
 	}
 	
 	@Override
-	protected void process(List<Integer> chunks)
+	protected void process(List<DenoiseProgressEvent> events)
 	{
 		// Method process() is executed on the Java EDT, so we can update the UI here.
+		// Only the most recent progress event matters.
 		
-		for (Integer slice : chunks)
-		{
-			progressBar.setValue(slice);
-		}
+		DenoiseProgressEvent event = events.get(events.size() - 1);
+		
+		progressBar.setValue(event.getPercentage());
+		
+		final double remaining = event.getEstimatedRemainingSeconds();
+		if (remaining > 0)
+			progressBar.setString(String.format("%d%% (%d:%02d left)", event.getPercentage(), (int)remaining / 60, (int)remaining % 60));
+		else
+			progressBar.setString(event.getPercentage() + "%");
 	}
 	
 	@Override
@@ -9,12 +9,14 @@ public abstract class Denoiser implements Callable<ImageProcessor>
 	protected ImageProcessor image; // original, noisy source image
 	protected ImageNormalizer normalizer;
 	protected DenoiseParams params;
+	protected ComputeBackend backend; // the backend that performs the actual pixel calculations
 	
 	public Denoiser(DenoiseParams params)
 	{
 		this.image = null;
 		this.normalizer = null;
 		this.params = params;
+		this.backend = ComputeBackends.getCurrent();
 	}
 	
 	public DenoiseParams getParams()
@@ -22,39 +24,55 @@ public abstract class Denoiser implements Callable<ImageProcessor>
 		return params;
 	}
 	
+	public ComputeBackend getBackend()
+	{
+		return backend;
+	}
+	
 	public void setImage(ImageProcessor image, ImageNormalizer normalizer)
 	{
 		this.image = image;
 		this.normalizer = normalizer;
 	}
 
-	// Important: call() *must* be run on the Quasar thread!
+	// Important: call() *must* be run via getBackend().submit() (for Quasar: on the Quasar thread)!
 	// Returns a denoised version of the original image.
 	// Its width and height will be the same as in the original image.
 	@Override
 	public ImageProcessor call() throws Exception
 	{
-		return null;
+		return denoise(image, normalizer);
 	}
 	
+	// Returns a denoised version of the given image. Unlike call(), denoise() does not
+	// use the image set with setImage(), so the same denoiser can be used for several images
+	// (e.g. tiles) at the same time. It must be run via getBackend().submit() too.
+	public abstract ImageProcessor denoise(ImageProcessor image, ImageNormalizer normalizer);
+	
+	// Returns the size of the image tiles (without margins) in which the image will be denoised.
+	// Normally the tiling is planned by TilePlanner.createTiler() which also takes the image size into account.
 	public int imageTileSize()
 	{
 		// Bigger tiles lead to significant performance improvements on the Quasar side,
 		// but this needs to be balanced against graphics card memory constraints.
 		// For each pixel in a tile some denoising algorithms allocate a significant
-		// amount of memory on the Quasar side.
-		// We may want to make the tile size dependent on amount of free graphics memory
-		// as well as on the memory requirements of the particular denoising algorithm.
-		return 1024;
+		// amount of memory on the Quasar side, see memoryCostPerPixel().
+		return TilePlanner.tileSize(memoryCostPerPixel(), TilePlanner.margin(this), backend.getMemoryBudget(), Integer.MAX_VALUE, Integer.MAX_VALUE);
 	}
 	
+	// Returns the size of the margin that is added around each tile to avoid artifacts along tile boundaries.
+	// Subclasses derive it from the extent of the neighbourhood of a pixel that their algorithm looks at
+	// for the current parameters. TilePlanner limits the margin to TilePlanner.maxMargin.
 	public int imageMargin()
 	{
-		// IMPROVEME: The margin must be dependent on algorithm parameters to avoid artifacts along tile boundaries.
-		// For normal parameter values however, tests show that a 16 pixel margin amply suffices, but it is in principle 
-		// possible to manually enter large parameter values in the user interface that might trigger tiling artifacts.
-		// (In practice this is not likely to happen because these large values would imply blurring
-		// so large as to make the denoised image useless.)
+		// For normal parameter values tests show that a 16 pixel margin amply suffices.
 		return 16;
 	}
-}
\ No newline at end of file
+	
+	// Returns an estimate of the amount of memory (in bytes) that the algorithm needs per pixel of the tile
+	// being denoised. This is dominated by the number of intermediate float images the algorithm keeps around.
+	public int memoryCostPerPixel()
+	{
+		return 32;
+	}
+}
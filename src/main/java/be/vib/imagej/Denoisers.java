@@ -0,0 +1,62 @@
+package be.vib.imagej;
+
+// Denoisers creates denoising parameters and denoisers from an algorithm name, without going through
+// the Algorithm classes (which also build the Swing parameter panels). This is used by the headless
+// command line runner. The algorithm names are the ones stored in the "algorithm" denoising parameter,
+// e.g. "gaussian" or "nonlocalmeans" (see DenoiseParams.getParameterList()).
+public class Denoisers
+{
+	private static final String[] algorithmNames = { "gaussian", "bilateral", "anisotropicdiffusion", "blsgsm",
+			                                          "waveletthresholding", "nonlocalmeans", "tikhonov", "totalvariation" };
+	
+	private Denoisers()
+	{
+	}
+	
+	public static String[] getAlgorithmNames()
+	{
+		return algorithmNames.clone();
+	}
+	
+	// Returns default parameters for the algorithm with the given name.
+	// Throws an IllegalArgumentException if there is no such algorithm.
+	public static DenoiseParams newParams(String algorithmName)
+	{
+		switch (algorithmName.toLowerCase())
+		{
+			case "gaussian":             return new GaussianParams();
+			case "bilateral":            return new BilateralParams();
+			case "anisotropicdiffusion": return new AnisotropicDiffusionParams();
+			case "blsgsm":               return new BLSGSMParams();
+			case "waveletthresholding":  return new WaveletThresholdingParams();
+			case "nonlocalmeans":        return new NonLocalMeansParams();
+			case "tikhonov":             return new TikhonovParams();
+			case "totalvariation":       return new TotalVariationParams();
+			default:
+				throw new IllegalArgumentException("Unknown denoising algorithm '" + algorithmName + "'. Available algorithms are " + String.join(", ", algorithmNames) + ".");
+		}
+	}
+	
+	// Returns a denoiser for the given parameters (not a copy).
+	public static Denoiser newDenoiser(DenoiseParams params)
+	{
+		if (params instanceof GaussianParams)
+			return new GaussianDenoiser((GaussianParams)params);
+		else if (params instanceof BilateralParams)
+			return new BilateralDenoiser((BilateralParams)params);
+		else if (params instanceof AnisotropicDiffusionParams)
+			return new AnisotropicDiffusionDenoiser((AnisotropicDiffusionParams)params);
+		else if (params instanceof BLSGSMParams)
+			return new BLSGSMDenoiser((BLSGSMParams)params);
+		else if (params instanceof WaveletThresholdingParams)
+			return new WaveletThresholdingDenoiser((WaveletThresholdingParams)params);
+		else if (params instanceof NonLocalMeansParams)
+			return new NonLocalMeansDenoiser((NonLocalMeansParams)params);
+		else if (params instanceof TikhonovParams)
+			return new TikhonovDenoiser((TikhonovParams)params);
+		else if (params instanceof TotalVariationParams)
+			return new TotalVariationDenoiser((TotalVariationParams)params);
+		else
+			throw new IllegalArgumentException("No denoiser for " + params.getClass().getName());
+	}
+}
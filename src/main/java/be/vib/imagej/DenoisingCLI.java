@@ -0,0 +1,411 @@
+package be.vib.imagej;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.Properties;
+
+import ij.process.ImageProcessor;
+
+// DenoisingCLI is a headless command line entry point to the denoising machinery, meant for running
+// denoising in batch jobs (e.g. on cluster nodes) instead of via the wizard in ImageJ. No AWT/Swing is initialized.
+//
+// The noisy stack is read slice by slice (MappedSliceSource) and the denoised stack is written slice by slice
+// (TiffSliceSink or RawSliceSink), so stacks that do not fit in memory can be denoised.
+//
+// Progress is reported on stderr. When done, a single line with the run statistics (including the
+// throughput in slices/s and megapixels/s, and the latency of each stage, see DenoiseMetrics) is written to stdout as a JSON object.
+// A table with the stage latencies is written to stderr too.
+//
+// Example:
+//   java -cp <classpath> be.vib.imagej.DenoisingCLI --backend java noisy.tif nonlocalmeans params.txt denoised.tif
+public class DenoisingCLI
+{
+	private static final int EXIT_OK = 0;
+	private static final int EXIT_FAILED = 1;
+	private static final int EXIT_USAGE = 2;
+
+	private String inputPath;
+	private String algorithmName;
+	private String paramsPath;
+	private String outputPath;
+
+	private String backendName;  // null means: Quasar if it can be initialized, Java otherwise
+	private int numThreads;      // 0 means: the parallelism of the backend
+	private DenoiseEngine.Mode mode;  // null means: choose based on the backend
+	private String rawLayout;    // <width>x<height>x<slices>:<bits>[:little], only for raw input files
+	private int rawWidth, rawHeight, rawNumSlices, rawBitDepth;  // parsed from rawLayout
+	private ByteOrder rawByteOrder;
+	private SliceNormalizations.Mode normalizationMode = SliceNormalizations.Mode.REFERENCE_SLICE;
+	private boolean bigTiff;     // write .tif output as BigTIFF instead of classic TIFF
+	
+	private boolean batch;       // input and output are directories (see BatchDenoiser)
+	private boolean watch;       // in batch mode: keep watching the input directory for new files
+	private int numConcurrentFiles;  // in batch mode: 0 means the BatchDenoiser default
+
+	// A DenoiseEngine that reports progress and the summary of the run on stderr, so that stdout only holds the run statistics.
+	private static class CommandLineDenoiseEngine extends DenoiseEngine
+	{
+		private int lastPercentage = -1;  // only used on the engine's progress thread
+
+		CommandLineDenoiseEngine(Denoiser denoiser)
+		{
+			super(denoiser);
+
+			addProgressListener(e -> {
+				if (e.getPercentage() > lastPercentage)
+				{
+					System.err.println(e);
+					lastPercentage = e.getPercentage();
+				}
+			});
+		}
+
+		@Override
+		public void report(DenoiseMetrics metrics)
+		{
+			System.err.println(metrics.getSummary());
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		System.setProperty("java.awt.headless", "true");
+
+		DenoisingCLI cli = new DenoisingCLI();
+
+		try
+		{
+			cli.parseArguments(args);
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("Error: " + e.getMessage());
+			printUsage();
+			System.exit(EXIT_USAGE);
+		}
+
+		try
+		{
+			System.out.println(cli.batch ? cli.runBatch() : cli.run());
+			System.exit(EXIT_OK);
+		}
+		catch (Exception e)
+		{
+			System.err.println("Error: " + e.getMessage());
+			e.printStackTrace();
+			System.exit(EXIT_FAILED);
+		}
+	}
+
+	private static void printUsage()
+	{
+		System.err.println("Usage: java -cp <classpath> be.vib.imagej.DenoisingCLI [options] <input> <algorithm> <params> <output>");
+		System.err.println("       java -cp <classpath> be.vib.imagej.DenoisingCLI --batch [options] <input dir> <algorithm> <params> <output dir>");
+		System.err.println("  <input>      noisy stack: uncompressed 8- or 16-bit TIFF or BigTIFF, or raw (requires --raw)");
+		System.err.println("  <algorithm>  " + String.join(", ", Denoisers.getAlgorithmNames()));
+		System.err.println("  <params>     file with denoising parameters, as in the Info property of images denoised in ImageJ");
+		System.err.println("               (e.g. be.vib.emdenoising.gaussian.sigma = 1.5), or 'auto' for parameters based on the noise level");
+		System.err.println("  <output>     denoised stack: .tif (TIFF, or BigTIFF with --bigtiff) or .raw (big-endian)");
+		System.err.println("Options:");
+		System.err.println("  --backend <name>   compute backend: quasar or java (default: quasar if available, java otherwise)");
+		System.err.println("  --threads <n>      number of tiles denoised at the same time (default: backend parallelism)");
+		System.err.println("  --mode <mode>      sequential, pipelined or parallel (default: based on the backend)");
+		System.err.println("  --raw <layout>     layout of a raw input file: <width>x<height>x<slices>:<bits>[:little]");
+		System.err.println("  --normalization <n>  intensity normalization based on the middle slice (reference, default), each slice (slice),");
+		System.err.println("                     a few slices spread over the stack (sampled) or all slices (stack)");
+		System.err.println("  --bigtiff          write .tif output as BigTIFF (ImageJ needs Bio-Formats to open it)");
+		System.err.println("  --batch            denoise all TIFF files in the input directory, skipping files that were already done");
+		System.err.println("  --watch            in batch mode: keep watching the input directory for new files");
+		System.err.println("  --files <n>        in batch mode: number of files denoised at the same time");
+	}
+
+	private void parseArguments(String[] args)
+	{
+		int i = 0;
+		while (i < args.length && args[i].startsWith("--"))
+		{
+			String option = args[i];
+			
+			// Options without a value
+			if (option.equals("--batch") || option.equals("--watch"))
+			{
+				batch = true;
+				watch = watch || option.equals("--watch");
+				i++;
+				continue;
+			}
+			
+			if (option.equals("--bigtiff"))
+			{
+				bigTiff = true;
+				i++;
+				continue;
+			}
+			
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value for " + option);
+			String value = args[i + 1];
+
+			switch (option)
+			{
+				case "--backend":
+					backendName = value;
+					break;
+				case "--threads":
+					numThreads = Integer.parseInt(value);
+					if (numThreads < 1)
+						throw new IllegalArgumentException("The number of threads must be at least 1");
+					break;
+				case "--mode":
+					mode = DenoiseEngine.Mode.valueOf(value.toUpperCase());
+					break;
+				case "--raw":
+					parseRawLayout(value);
+					break;
+				case "--normalization":
+					normalizationMode = parseNormalizationMode(value);
+					break;
+				case "--files":
+					numConcurrentFiles = Integer.parseInt(value);
+					if (numConcurrentFiles < 1)
+						throw new IllegalArgumentException("The number of files must be at least 1");
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + option);
+			}
+			i += 2;
+		}
+
+		if (args.length - i != 4)
+			throw new IllegalArgumentException("Expected 4 arguments, got " + (args.length - i));
+
+		inputPath = args[i];
+		algorithmName = args[i + 1];
+		paramsPath = args[i + 2];
+		outputPath = args[i + 3];
+		
+		if (batch && rawLayout != null)
+			throw new IllegalArgumentException("--raw cannot be combined with --batch");
+	}
+
+	// Parses a raw file layout: <width>x<height>x<slices>:<bits>[:little]
+	private void parseRawLayout(String value)
+	{
+		final String expected = "Invalid raw layout '" + value + "', expected <width>x<height>x<slices>:<bits>[:little]";
+		
+		String[] parts = value.split(":");
+		String[] dims = parts[0].split("x");
+		if (dims.length != 3 || parts.length < 2 || parts.length > 3 || (parts.length == 3 && !parts[2].equals("little")))
+			throw new IllegalArgumentException(expected);
+		
+		try
+		{
+			rawWidth = Integer.parseInt(dims[0]);
+			rawHeight = Integer.parseInt(dims[1]);
+			rawNumSlices = Integer.parseInt(dims[2]);
+			rawBitDepth = Integer.parseInt(parts[1]);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException(expected);
+		}
+		
+		if (rawWidth < 1 || rawHeight < 1 || rawNumSlices < 1)
+			throw new IllegalArgumentException(expected);
+		if (rawBitDepth != 8 && rawBitDepth != 16)
+			throw new IllegalArgumentException("Only 8- and 16-bit raw files are supported, not " + rawBitDepth + "-bit");
+		
+		rawByteOrder = (parts.length == 3) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		rawLayout = value;
+	}
+
+	private static SliceNormalizations.Mode parseNormalizationMode(String value)
+	{
+		switch (value.toLowerCase())
+		{
+			case "reference":
+				return SliceNormalizations.Mode.REFERENCE_SLICE;
+			case "slice":
+				return SliceNormalizations.Mode.PER_SLICE;
+			case "sampled":
+				return SliceNormalizations.Mode.SAMPLED_SLICES;
+			case "stack":
+				return SliceNormalizations.Mode.WHOLE_STACK;
+			default:
+				throw new IllegalArgumentException("Unknown normalization " + value);
+		}
+	}
+
+	// Denoises the input stack, and returns the run statistics in JSON format.
+	private String run() throws Exception
+	{
+		initializeBackend();
+		ComputeBackend backend = ComputeBackends.getCurrent();
+
+		SliceSource source = openSource();
+		try
+		{
+			// Like the wizard, estimate the noise level on one slice (here the middle slice).
+			// By default the intensities of all slices are normalized based on that slice too.
+			ImageProcessor middleSlice = source.getSliceWithoutPrefetch((source.getNumSlices() + 1) / 2);
+			ImageNormalizer normalizer = new ImageNormalizer(middleSlice);
+
+			DenoiseParams params = Denoisers.newParams(algorithmName);
+			if (paramsPath.equals("auto"))
+			{
+				float noiseEstimate = backend.submit(new NoiseEstimator(middleSlice, normalizer)).get();
+				params.setDefaultParameters(noiseEstimate);
+				System.err.println("Estimated noise level: " + noiseEstimate);
+			}
+			else
+			{
+				params.setParameterList(readParams(paramsPath));
+			}
+			System.err.println("Denoising " + inputPath + " with " + algorithmName + " (" + params + ") on " + backend.getReadableName());
+
+			DenoiseEngine engine = new CommandLineDenoiseEngine(Denoisers.newDenoiser(params));
+			engine.setMode(mode != null ? mode : (backend.getParallelism() > 1 ? DenoiseEngine.Mode.PARALLEL : DenoiseEngine.Mode.PIPELINED));
+			if (numThreads > 0)
+				engine.setNumThreads(numThreads);
+
+			final long startTime = System.nanoTime();
+			ImageRange range = ImageRange.makeAllSlicesRange(source);
+			try
+			{
+				engine.denoise(source, SliceNormalizations.create(normalizationMode, source, range, normalizer), range, openSink());
+			}
+			catch (IOException | RuntimeException e)
+			{
+				// Do not leave a truncated or partly blank output behind, it could be mistaken for a complete result.
+				new File(outputPath).delete();
+				throw e;
+			}
+			final double seconds = (System.nanoTime() - startTime) * 1e-9;
+
+			final int numSlices = source.getNumSlices();
+			final double megapixels = (double)source.getWidth() * source.getHeight() * numSlices / 1e6;
+
+			return String.format(Locale.ROOT,
+					             "{\"input\": %s, \"output\": %s, \"algorithm\": %s, \"backend\": %s, \"mode\": %s, \"threads\": %d, " +
+			                     "\"width\": %d, \"height\": %d, \"slices\": %d, \"seconds\": %.3f, \"slicesPerSecond\": %.3f, \"megapixelsPerSecond\": %.3f, \"stages\": %s}",
+			                     jsonString(inputPath), jsonString(outputPath), jsonString(algorithmName.toLowerCase()), jsonString(backend.getName()),
+			                     jsonString(engine.getMode().name().toLowerCase()), engine.getNumThreads(),
+			                     source.getWidth(), source.getHeight(), numSlices, seconds, numSlices / seconds, megapixels / seconds,
+			                     engine.getMetrics().toJson());
+		}
+		finally
+		{
+			source.close();
+		}
+	}
+
+	// Denoises all files in the input directory, and returns the batch statistics in JSON format.
+	private String runBatch() throws Exception
+	{
+		initializeBackend();
+		ComputeBackend backend = ComputeBackends.getCurrent();
+		
+		Properties paramList = paramsPath.equals("auto") ? null : readParams(paramsPath);
+		Denoisers.newParams(algorithmName);  // fail early on an unknown algorithm name
+		
+		BatchDenoiser batchDenoiser = new BatchDenoiser(new File(inputPath), new File(outputPath), algorithmName, paramList);
+		if (numConcurrentFiles > 0)
+			batchDenoiser.setNumConcurrentFiles(numConcurrentFiles);
+		batchDenoiser.setNormalizationMode(normalizationMode);
+		batchDenoiser.setBigTiff(bigTiff);
+		
+		System.err.println("Denoising the files in " + inputPath + " with " + algorithmName + " on " + backend.getReadableName() +
+		                   ", " + batchDenoiser.getNumConcurrentFiles() + " files at a time");
+		
+		final long startTime = System.nanoTime();
+		batchDenoiser.run(watch, 5000);
+		final double seconds = (System.nanoTime() - startTime) * 1e-9;
+		
+		DenoiseMetrics totals = DenoiseMetrics.getTotals();  // of all files
+		System.err.println(totals.getSummary());
+		
+		return String.format(Locale.ROOT,
+		                     "{\"input\": %s, \"output\": %s, \"algorithm\": %s, \"backend\": %s, \"files\": %d, \"denoised\": %d, \"skipped\": %d, \"failed\": %d, " +
+		                     "\"seconds\": %.3f, \"filesPerSecond\": %.3f, \"megapixelsPerSecond\": %.3f, \"stages\": %s}",
+		                     jsonString(inputPath), jsonString(outputPath), jsonString(algorithmName.toLowerCase()), jsonString(backend.getName()),
+		                     batchDenoiser.getNumConcurrentFiles(), batchDenoiser.getNumDenoised(), batchDenoiser.getNumSkipped(), batchDenoiser.getNumFailed(),
+		                     seconds, batchDenoiser.getNumDenoised() / seconds, batchDenoiser.getMegapixels() / seconds, totals.toJson());
+	}
+	
+	private void initializeBackend() throws Exception
+	{
+		if (backendName != null)
+		{
+			ComputeBackend backend = ComputeBackends.forName(backendName);
+			backend.initialize();
+			ComputeBackends.setCurrent(backend);
+			return;
+		}
+
+		try
+		{
+			ComputeBackends.getCurrent().initialize();
+		}
+		catch (Throwable e)
+		{
+			System.err.println("Warning: " + ComputeBackends.getCurrent().getReadableName() + " could not be initialized (" + e.getMessage() + "), using the Java backend instead.");
+			ComputeBackends.setCurrent(ComputeBackends.getJavaBackend());
+			ComputeBackends.getCurrent().initialize();
+		}
+	}
+
+	private SliceSource openSource() throws IOException
+	{
+		File file = new File(inputPath);
+
+		if (rawLayout == null)
+			return MappedSliceSource.openTiff(file);
+
+		return MappedSliceSource.openRaw(file, rawWidth, rawHeight, rawBitDepth, rawNumSlices, 0, rawByteOrder);
+	}
+
+	private SliceSink openSink()
+	{
+		File file = new File(outputPath);
+		String name = file.getName().toLowerCase();
+
+		if (name.endsWith(".raw"))
+			return new RawSliceSink(file);
+		else
+			return new TiffSliceSink(file, bigTiff);
+	}
+
+	private Properties readParams(String path) throws IOException
+	{
+		Properties props = new Properties();
+		try (InputStream in = new FileInputStream(path))
+		{
+			props.load(in);
+		}
+
+		String algorithm = props.getProperty("be.vib.emdenoising.algorithm");
+		if (algorithm != null && !algorithm.trim().equalsIgnoreCase(algorithmName))
+			throw new IllegalArgumentException("The parameter file " + path + " is for algorithm '" + algorithm.trim() + "', not '" + algorithmName + "'");
+
+		return props;
+	}
+
+	private static String jsonString(String s)
+	{
+		StringBuilder json = new StringBuilder("\"");
+		for (char c : s.toCharArray())
+		{
+			if (c == '"' || c == '\\')
+				json.append('\\').append(c);
+			else if (c < 0x20)
+				json.append(String.format("\\u%04x", (int)c));
+			else
+				json.append(c);
+		}
+		return json.append('"').toString();
+	}
+}
@@ -1,7 +1,5 @@
 package be.vib.imagej;
 
-import be.vib.bits.QFunction;
-import be.vib.bits.QValue;
 import ij.process.ImageProcessor;
 
 public class GaussianDenoiser extends Denoiser
@@ -12,27 +10,21 @@ public class GaussianDenoiser extends Denoiser
 	}
 	
 	@Override
-	public ImageProcessor call()
-	{		
-		QFunction gaussian = new QFunction("gaussian_filter(mat,scalar,int,string)");
-		
-		final boolean byteRange = false; // normalize to/from [0,1]
-		
-		QValue noisyImageCube = normalizer.normalize(image, byteRange);
-		
+	public ImageProcessor denoise(ImageProcessor image, ImageNormalizer normalizer)
+	{
+		return backend.gaussian(image, normalizer, (GaussianParams)params);
+	}
+	
+	@Override
+	public int imageMargin()
+	{
 		GaussianParams params = (GaussianParams)this.params;
-
-		QValue denoisedImageCube = gaussian.apply(noisyImageCube,
-							                      new QValue(params.sigma),
-							                      new QValue(0),
-							                      new QValue("mirror"));
-		
-		noisyImageCube.dispose();
-
-		ImageProcessor denoisedImage = normalizer.denormalize(image, denoisedImageCube, byteRange);
-		
-		denoisedImageCube.dispose();
-
-		return denoisedImage;
+		return (int)Math.ceil(3 * params.sigma) + 1;  // the Gaussian kernel is negligible beyond 3 sigma
+	}
+	
+	@Override
+	public int memoryCostPerPixel()
+	{
+		return 16;  // noisy and denoised image, plus a temporary image for the separable filter
 	}
 }
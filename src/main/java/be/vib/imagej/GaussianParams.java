@@ -37,6 +37,12 @@ public class GaussianParams extends DenoiseParams
     	props.setProperty(PREFIX + "gaussian.sigma", Float.toString(sigma));
     	return props;
     }
+
+	@Override
+	public void setParameterList(Properties props)
+	{
+		sigma = getFloat(props, "gaussian.sigma", sigma);
+	}
 	
 	@Override
 	public String toString()
@@ -29,6 +29,7 @@ class GaussianParamsPanel extends DenoiseParamsPanelBase
 		sigmaPair = new SliderFieldPair(0, 100, floatFormat, params.sigmaMin, params.sigmaMax);
 		sigmaPair.setValue(params.sigma);
 		sigmaPair.addPropertyChangeListener(e -> { params.sigma = sigmaPair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(sigmaPair, (p, value) -> ((GaussianParams)p).sigma = value);
 		
 		JSlider sigmaSlider = sigmaPair.getSlider();
 		
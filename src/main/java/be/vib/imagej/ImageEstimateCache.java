@@ -0,0 +1,149 @@
+package be.vib.imagej;
+
+import java.awt.Rectangle;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+// The ImageEstimateCache remembers the noise and blur estimates of the (noisy) input images, so that going back and forth
+// between the wizard pages does not estimate them again. An estimate is identified by the image, the slice, the region of interest
+// (null for the complete slice) and, for noise, the normalizer. Pixel edits in ImageJ are not detected.
+//
+// The estimates are computed asynchronously: the methods return immediately, with a future that completes
+// when the estimate is known. Since the futures complete on a worker thread, Swing code must handle the result
+// with for example future.thenAcceptAsync(..., SwingUtilities::invokeLater), and never wait for it.
+public class ImageEstimateCache
+{
+	private static final int maxEntries = 64;  // the estimates are tiny, this only avoids growing forever in a long session
+
+	private enum Kind { NOISE, BLUR }
+
+	private static class Key
+	{
+		private final Kind kind;
+		private final int imageID;
+		private final int slice;
+		private final Rectangle roi;  // null for the complete slice
+		private final ImageNormalizer normalizer;  // compared by identity, null for blur estimates
+
+		Key(Kind kind, ImagePlus image, int slice, Rectangle roi, ImageNormalizer normalizer)
+		{
+			this.kind = kind;
+			this.imageID = image.getID();
+			this.slice = slice;
+			this.roi = (roi != null) ? new Rectangle(roi) : null;
+			this.normalizer = normalizer;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+				return false;
+
+			Key other = (Key)obj;
+			return kind == other.kind && imageID == other.imageID && slice == other.slice &&
+			       (roi == null ? other.roi == null : roi.equals(other.roi)) && normalizer == other.normalizer;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return ((kind.hashCode() * 31 + imageID) * 31 + slice) * 31 + (roi != null ? roi.hashCode() : 0);
+		}
+	}
+
+	// Least recently used order, guarded by synchronized (estimates).
+	private final Map<Key, CompletableFuture<Float>> estimates = new LinkedHashMap<Key, CompletableFuture<Float>>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, CompletableFuture<Float>> eldest)
+		{
+			return size() > maxEntries;
+		}
+	};
+
+	// Waits for the compute backend, so that the callers never have to.
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "DenoisEM image estimates");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Returns the estimated standard deviation of the noise (for intensities normalized to [0, 1]) in the given slice and region of interest
+	// of the image. pixels must return exactly those pixels. It is only called if the estimate is not known yet, and not on the
+	// calling thread, so it may read the slice from disk (for a virtual stack).
+	public CompletableFuture<Float> getNoiseEstimate(ImagePlus image, int slice, Rectangle roi, ImageNormalizer normalizer, Supplier<ImageProcessor> pixels)
+	{
+		return getEstimate(new Key(Kind.NOISE, image, slice, roi, normalizer), () -> new NoiseEstimator(pixels.get(), normalizer));
+	}
+
+	// Returns the estimated amount of blur (between 0 and 1) in the given slice and region of interest of the image.
+	public CompletableFuture<Float> getBlurEstimate(ImagePlus image, int slice, Rectangle roi, Supplier<ImageProcessor> pixels)
+	{
+		return getEstimate(new Key(Kind.BLUR, image, slice, roi, null), () -> new BlurEstimator(pixels.get()));
+	}
+
+	public void clear()
+	{
+		synchronized (estimates)
+		{
+			estimates.clear();
+		}
+	}
+
+	private CompletableFuture<Float> getEstimate(Key key, Supplier<Callable<Float>> estimator)
+	{
+		CompletableFuture<Float> future;
+		synchronized (estimates)
+		{
+			future = estimates.get(key);
+			if (future != null)
+				return future;
+
+			future = CompletableFuture.supplyAsync(() -> estimate(estimator.get()), executor);
+			estimates.put(key, future);
+		}
+
+		// A failed estimate is forgotten, so that it is tried again next time.
+		final CompletableFuture<Float> result = future;
+		result.whenComplete((value, exception) -> {
+			if (exception != null)
+			{
+				synchronized (estimates)
+				{
+					estimates.remove(key, result);
+				}
+			}
+		});
+
+		return result;
+	}
+
+	// Runs on the executor thread.
+	private static Float estimate(Callable<Float> estimator)
+	{
+		try
+		{
+			return ComputeBackends.getCurrent().submit(estimator).get();
+		}
+		catch (ExecutionException e)
+		{
+			throw new CompletionException(e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new CompletionException(e);
+		}
+	}
+}
@@ -1,8 +1,7 @@
 package be.vib.imagej;
 
-import be.vib.bits.QUtils;
-import be.vib.bits.QValue;
 import ij.ImagePlus;
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 
@@ -11,6 +10,9 @@ public class ImageNormalizer
 	final static int LO_PERCENTILE = 2;  // 2%
 	final static int HI_PERCENTILE = 98; // 98%
 	
+	// The percentiles of larger images are estimated from a subsample of this many pixels.
+	final static long MAX_HISTOGRAM_SAMPLES = 1 << 24;
+	
 	boolean imageIs8Bit; // is the input image 8 or 16-bits/pixel?
 	
 	// 2% and 98% percentiles of the image, only used if imageIs8Bit == false (i.e. we are dealing with 16-bit images)
@@ -19,20 +21,19 @@ public class ImageNormalizer
 	
 	public ImageNormalizer(ImagePlus image)
 	{
-		ImageProcessor ip = ImageUtils.currentProcessor(image);
+		this(ImageUtils.currentProcessor(image));
+	}
+	
+	// Builds a normalizer from the intensities of the given (8- or 16-bit) image,
+	// typically one slice of a stack that is not loaded in ImageJ (see SliceSource).
+	public ImageNormalizer(ImageProcessor ip)
+	{
 		final int dynamicRange = (int)ImageUtils.bitRange(ip);
 		imageIs8Bit = (dynamicRange == 255);
 		if (!imageIs8Bit)
 		{
 			assert(ip instanceof ShortProcessor);
-			final int[] hist = build_histogram((ShortProcessor)ip);
-			loPercentile = ith_percentile(hist, ip.getPixelCount(), LO_PERCENTILE);
-			hiPercentile = ith_percentile(hist, ip.getPixelCount(), HI_PERCENTILE);
-			if (loPercentile == hiPercentile)
-			{
-				loPercentile = 0;
-				hiPercentile = dynamicRange;
-			}
+			setPercentiles(IntensityHistogram.compute(ip, MAX_HISTOGRAM_SAMPLES));
 		}
 		else
 		{
@@ -40,126 +41,118 @@ public class ImageNormalizer
 		}
 	}
 	
-	private static int[] build_histogram(ShortProcessor image)  // for 16-bit images only
+	// Builds a normalizer from an intensity histogram, for example of a complete stack (see SliceNormalizations).
+	public ImageNormalizer(IntensityHistogram hist)
 	{
-		// Create array to hold histogram of our 16-bit pixel intensities
-		final int histogram_size = 65536;
-		int hist[] = new int[histogram_size];
-		for (int i = 0; i < histogram_size; i++)
-			hist[i] = 0;
-			
-		// Fill histogram
-		final int num_pixels_in_image = image.getPixelCount();
-		short[] pixels = (short[])image.getPixels();
-		for (int i = 0; i < num_pixels_in_image; i++)
-		{
-			// ShortProcessor stores the true unsigned 16-bit image pixel intensities in the Java datatype 'short',
-			// which is a signed 16-bit number, so we need to convert it back to _un_signed 16-bit.
-			int intensity = Short.toUnsignedInt(pixels[i]);  
-
-			// Accumulate in histogram
-			hist[intensity]++;
-		}		
-		return hist;
+		imageIs8Bit = (hist.getNumBins() == 256);
+		if (!imageIs8Bit)
+			setPercentiles(hist);
+		else
+			loPercentile = hiPercentile = -1; // unused
 	}
 	
-	private static int ith_percentile(int[] hist, int num_pixels_in_image, int percentile)
+	private void setPercentiles(IntensityHistogram hist)  // for 16-bit images only
 	{
-		assert(percentile >= 0 && percentile <= 100);	
-		
-		// Find the percentile by summing over the histogram until we 
-		// hit the desired number of pixels.
-		float target_fraction = percentile / 100.0f;
-		int target_num_pixels = (int)Math.ceil(target_fraction * num_pixels_in_image);
-		
-		int cumul = 0;
-		for (int i = 0; i < hist.length; i++)
+		loPercentile = hist.getPercentile(LO_PERCENTILE);
+		hiPercentile = hist.getPercentile(HI_PERCENTILE);
+		if (loPercentile == hiPercentile)
 		{
-			if (cumul >= target_num_pixels)
-				return i;
-			cumul += hist[i];
+			loPercentile = 0;
+			hiPercentile = 65535;
 		}
-
-		return target_num_pixels;
 	}
 	
-	public QValue normalize(ImageProcessor ip, boolean toByteRange)  // if toByteRange==true then normalize to [0,255] otherwise to [0,1]
+	// Normalization maps a raw 8- or 16-bit intensity x to min(max((x - getOffset()) * getScale(toByteRange), 0), r)
+	// with r = 255 if toByteRange==true, and r = 1 otherwise. Denormalization maps the normalized values back
+	// with getInverseScale(), and rounds and clamps them to the 8- or 16-bit range.
+	// Both happen in a single pass over the pixels: in normalizeToFloats() and denormalizeFromFloats() below,
+	// and in the normalize_intensities() and denormalize_intensities() Quasar kernels (see QuasarBackend).
+	public float getOffset()
+	{
+		return imageIs8Bit ? 0.0f : (float)loPercentile;
+	}
+	
+	public float getScale(boolean toByteRange)
 	{
-		QValue cube = ImageUtils.newCubeFromImage(ip);
+		return (toByteRange ? 255.0f : 1.0f) / getIntensityRange();
+	}
+	
+	public float getInverseScale(boolean fromByteRange)
+	{
+		return getIntensityRange() / (fromByteRange ? 255.0f : 1.0f);
+	}
+	
+	// Returns true if normalization to (or denormalization from) the given range leaves the intensities unchanged.
+	public boolean isIdentity(boolean byteRange)
+	{
+		return imageIs8Bit && byteRange;
+	}
+	
+	private float getIntensityRange()
+	{
+		return imageIs8Bit ? 255.0f : (float)(hiPercentile - loPercentile);
+	}
+	
+	// Returns the pixels of ip as floats, normalized to [0,255] if toByteRange==true, otherwise to [0,1].
+	public float[] normalizeToFloats(ImageProcessor ip, boolean toByteRange)
+	{
+		return normalizeToFloats(ip, toByteRange, null);
+	}
+	
+	// Idem, but writes the normalized pixels into the given buffer, if it is not null and has the right size,
+	// instead of allocating a new array. Returns the array with the normalized pixels.
+	public float[] normalizeToFloats(ImageProcessor ip, boolean toByteRange, float[] buffer)
+	{
+		final int numPixels = ip.getPixelCount();
+		float[] values = (buffer != null && buffer.length == numPixels) ? buffer : new float[numPixels];
 		
 		if (imageIs8Bit)  // original image is 8-bit/pixel
 		{
-			if (toByteRange)
-			{
-				// normalize from [0,255] to [0,255]
-				// nothing to be done here 
-			}
-			else
-			{
-				// normalize from [0,255] to [0,1]
-				QUtils.inplaceDivide(cube, 255.0f);		
-			}
+			final byte[] pixels = (byte[])ip.getPixels();
+			final float scale = toByteRange ? 1.0f : 1.0f / 255.0f;
+			for (int i = 0; i < numPixels; i++)
+				values[i] = Byte.toUnsignedInt(pixels[i]) * scale;
 		}
 		else // original image is 16-bit/pixel
 		{
-			if (toByteRange)
-			{
-				// normalize from 16-bit [lo,hi] to [0,255]
-				QUtils.inplaceSubtract(cube, (float)loPercentile);
-				QUtils.inplaceDivide(cube, ((float)(hiPercentile - loPercentile)) / 255.0f);
-				QValue lo = new QValue(0.0f);
-				QValue hi = new QValue(255.0f);
-				QUtils.inplaceClamp(cube, lo, hi);	
-			}
-			else
-			{
-				// normalize from 16-bit [lo,hi] to [0,1]
-				QUtils.inplaceSubtract(cube, (float)loPercentile);
-				QUtils.inplaceDivide(cube, (float)(hiPercentile - loPercentile));
-				QValue lo = new QValue(0.0f);
-				QValue hi = new QValue(1.0f);
-				QUtils.inplaceClamp(cube, lo, hi);
-			}
+			final short[] pixels = (short[])ip.getPixels();
+			final float hi = toByteRange ? 255.0f : 1.0f;
+			final float scale = hi / (hiPercentile - loPercentile);
+			for (int i = 0; i < numPixels; i++)
+				values[i] = Math.min(Math.max((Short.toUnsignedInt(pixels[i]) - loPercentile) * scale, 0.0f), hi);
 		}
-
-		// Test
-		// float f = cube.at(0, 0).getFloat();
 		
-		return cube;
+		return values;
 	}
 	
-	public ImageProcessor denormalize(ImageProcessor ip, QValue cube, boolean fromByteRange)  // if fromByteRange==true, then denormalize from [0,255] otherwise from [0,1]
-	{		
+	// Returns a new image (with pooled pixels, see BufferPool) of the same type and size as ip with the given
+	// pixel values (in [0,255] if fromByteRange==true, otherwise in [0,1]) mapped back to the original intensity range.
+	public ImageProcessor denormalizeFromFloats(ImageProcessor ip, float[] values, boolean fromByteRange)
+	{
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final int numPixels = width * height;
+		
 		if (imageIs8Bit) // original image is 8-bit/pixel
 		{
-			if (fromByteRange)
-			{
-				// denormalize from [0,255] to [0,255]
-				// nothing to be done here 
-			}
-			else
-			{
-				// denormalize from [0,1] to [0,255]
-				QUtils.inplaceMultiply(cube, 255.0f);		
-			}
+			final float scale = fromByteRange ? 1.0f : 255.0f;
+			byte[] pixels = BufferPool.getInstance().borrowBytes(numPixels);
+			for (int i = 0; i < numPixels; i++)
+				pixels[i] = (byte)clamp(Math.round(values[i] * scale), 255);
+			return new ByteProcessor(width, height, pixels);
 		}
 		else // original image is 16-bit/pixel
 		{
-			if (fromByteRange)
-			{
-				// denormalize from [0,255] to 16-bit [lo,hi]
-				QUtils.inplaceMultiply(cube, ((float)(hiPercentile - loPercentile)) / 255.0f);
-				QUtils.inplaceAdd(cube, (float)loPercentile);	
-			}
-			else
-			{
-				// denormalize from [0,1] to 16-bit [lo,hi]
-				QUtils.inplaceMultiply(cube, (float)(hiPercentile - loPercentile));
-				QUtils.inplaceAdd(cube, (float)loPercentile);	
-			}
+			final float scale = (hiPercentile - loPercentile) / (fromByteRange ? 255.0f : 1.0f);
+			short[] pixels = BufferPool.getInstance().borrowShorts(numPixels);
+			for (int i = 0; i < numPixels; i++)
+				pixels[i] = (short)clamp(Math.round(values[i] * scale + loPercentile), 65535);
+			return new ShortProcessor(width, height, pixels, null);
 		}
-		
-		ImageProcessor denormalizedIp = ImageUtils.newImageFromCube(ip, cube);  // note: newImageFromCube() also clips cube values to the allowed 8-bit or 16-bit pixel values
-		return denormalizedIp;
 	}
-}
\ No newline at end of file
+	
+	private static int clamp(int value, int max)
+	{
+		return Math.min(Math.max(value, 0), max);
+	}
+}
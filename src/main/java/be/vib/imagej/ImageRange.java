@@ -28,6 +28,11 @@ public class ImageRange
 		return new ImageRange(RangeType.ALL_SLICES, first, last);
 	}
 	
+	public static ImageRange makeAllSlicesRange(SliceSource source)
+	{
+		return new ImageRange(RangeType.ALL_SLICES, 1, source.getNumSlices());
+	}
+	
 	public static ImageRange makeNumericSliceRange(ImagePlus imagePlus, int first, int last)  // 0 <= first <= last
 	{
 		assert(first >= 1);
@@ -0,0 +1,32 @@
+package be.vib.imagej;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+// A SliceSink that collects the denoised slices in an in-memory ImageStack.
+public class ImageStackSink implements SliceSink
+{
+	private ImageStack stack;
+	
+	@Override
+	public void open(int width, int height, int bitDepth, int numSlices, String info)
+	{
+		stack = new ImageStack(width, height);
+	}
+	
+	@Override
+	public void addSlice(ImageProcessor slice)
+	{
+		stack.addSlice("", slice);
+	}
+	
+	@Override
+	public void close()
+	{
+	}
+	
+	public ImageStack getStack()
+	{
+		return stack;
+	}
+}
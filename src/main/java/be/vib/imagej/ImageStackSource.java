@@ -0,0 +1,53 @@
+package be.vib.imagej;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+// A SliceSource that provides the slices of an ImageJ image.
+public class ImageStackSource implements SliceSource
+{
+	private final ImagePlus imagePlus;
+	private final ImageStack stack;
+	
+	public ImageStackSource(ImagePlus imagePlus)
+	{
+		this.imagePlus = imagePlus;
+		this.stack = imagePlus.getStack();
+	}
+	
+	@Override
+	public int getWidth()
+	{
+		return imagePlus.getWidth();
+	}
+	
+	@Override
+	public int getHeight()
+	{
+		return imagePlus.getHeight();
+	}
+	
+	@Override
+	public int getBitDepth()
+	{
+		return imagePlus.getBitDepth();
+	}
+	
+	@Override
+	public int getNumSlices()
+	{
+		return stack.getSize();
+	}
+	
+	@Override
+	public ImageProcessor getSlice(int n)
+	{
+		return stack.getProcessor(n);
+	}
+	
+	@Override
+	public void close()
+	{
+	}
+}
@@ -1,22 +1,27 @@
 package be.vib.imagej;
 
+import java.awt.Rectangle;
+
 import ij.process.ImageProcessor;
 
+// An ImageTile describes the geometry of one tile of an image: its position and size, and the size of
+// the margins around it. ImageTile objects are immutable and do not refer to any image, so they can be
+// shared between threads. The tile pixels are accessed via getViewWithMargins() or getImageWithMargins(),
+// which never change the state (e.g. the ROI) of the source image.
 public class ImageTile
 {
-	private ImageProcessor tileImp; // the image tile, including the margins
-	private int xpos, ypos; // position of the complete tile (without the margins) with respect to the top left corner of the larger original image.
-	private int topMargin, rightMargin, bottomMargin, leftMargin; // size of the margins in this tile (any margin can be zero)
-	
+	private final int xpos, ypos; // position of the complete tile (without the margins) with respect to the top left corner of the larger original image.
+	private final int widthWithMargins, heightWithMargins; // size of the tile, including the margins
+	private final int topMargin, rightMargin, bottomMargin, leftMargin; // size of the margins in this tile (any margin can be zero)
 	
-	// Create an image tile from the given large source image. The tile's top left corner starts at (x,y)
+	// Create an image tile for a source image of size imageWidth x imageHeight. The tile's top left corner starts at (x,y)
 	// in the original image, before extending with the given margin. Tiles will not be extended with the margin on the side where they
 	// border an edge of the source image. Also, even without margin, a tile may be smaller than tileWidth/HeightWithoutMargins if the
 	// tile overlaps with the source image edges.
-	public ImageTile(ImageProcessor source, int xWithoutMargins, int yWithoutMargins, int tileWidthWithoutMargins, int tileHeightWithoutMargins, int margin)
+	public ImageTile(int imageWidth, int imageHeight, int xWithoutMargins, int yWithoutMargins, int tileWidthWithoutMargins, int tileHeightWithoutMargins, int margin)
 	{
-		assert(xWithoutMargins >= 0 && xWithoutMargins < source.getWidth());
-		assert(yWithoutMargins >= 0 && yWithoutMargins < source.getHeight());
+		assert(xWithoutMargins >= 0 && xWithoutMargins < imageWidth);
+		assert(yWithoutMargins >= 0 && yWithoutMargins < imageHeight);
 		assert(tileWidthWithoutMargins > 0);
 		assert(tileHeightWithoutMargins > 0);
 		assert(margin >= 0);
@@ -26,20 +31,19 @@ public class ImageTile
 		
 		int tlx = Math.max(0, xWithoutMargins - margin);
 		int tly = Math.max(0, yWithoutMargins - margin);
-		int brx = Math.min(source.getWidth() - 1, xWithoutMargins + tileWidthWithoutMargins + margin - 1);
-		int bry = Math.min(source.getHeight() - 1, yWithoutMargins + tileHeightWithoutMargins + margin - 1);
+		int brx = Math.min(imageWidth - 1, xWithoutMargins + tileWidthWithoutMargins + margin - 1);
+		int bry = Math.min(imageHeight - 1, yWithoutMargins + tileHeightWithoutMargins + margin - 1);
 		
 		assert(brx >= tlx);
 		assert(bry >= tly);
 		
+		widthWithMargins = brx - tlx + 1;
+		heightWithMargins = bry - tly + 1;
+		
 		leftMargin = Math.min(margin, xpos);
 		topMargin = Math.min(margin, ypos);
-		rightMargin = (xWithoutMargins + tileWidthWithoutMargins >= source.getWidth() - 1) ? 0 : Math.min(margin, source.getWidth() - 1 - xWithoutMargins - tileWidthWithoutMargins);
-		bottomMargin = (yWithoutMargins + tileHeightWithoutMargins >= source.getHeight() - 1) ? 0 : Math.min(margin, source.getHeight() - 1 - yWithoutMargins - tileHeightWithoutMargins);
-		
-		source.resetRoi();
-		source.setRoi(tlx, tly, brx - tlx + 1, bry - tly + 1);
-		tileImp = source.crop();
+		rightMargin = (xWithoutMargins + tileWidthWithoutMargins >= imageWidth - 1) ? 0 : Math.min(margin, imageWidth - 1 - xWithoutMargins - tileWidthWithoutMargins);
+		bottomMargin = (yWithoutMargins + tileHeightWithoutMargins >= imageHeight - 1) ? 0 : Math.min(margin, imageHeight - 1 - yWithoutMargins - tileHeightWithoutMargins);
 	}
 	
 	public int getXPositionWithoutMargins()
@@ -54,12 +58,12 @@ public class ImageTile
 	
 	public int getWidthWithoutMargins()
 	{
-		return tileImp.getWidth() - leftMargin - rightMargin;
+		return widthWithMargins - leftMargin - rightMargin;
 	}
 	
 	public int getHeightWithoutMargins()
 	{
-		return tileImp.getHeight() - topMargin - bottomMargin;
+		return heightWithMargins - topMargin - bottomMargin;
 	}
 	
 	public int getTopMargin()
@@ -72,8 +76,37 @@ public class ImageTile
 		return leftMargin;
 	}
 	
-	public ImageProcessor getImageWithMargins()
+	// Returns the tile rectangle, including the margins, in source image coordinates.
+	public Rectangle getRectangleWithMargins()
+	{
+		return new Rectangle(xpos - leftMargin, ypos - topMargin, widthWithMargins, heightWithMargins);
+	}
+	
+	// Returns the tile rectangle, without the margins, in source image coordinates.
+	public Rectangle getRectangleWithoutMargins()
+	{
+		return new Rectangle(xpos, ypos, getWidthWithoutMargins(), getHeightWithoutMargins());
+	}
+	
+	// Returns a view on the pixels of this tile (including the margins) in the given source image.
+	public ImageTileView getViewWithMargins(ImageProcessor source)
 	{
-		return tileImp;
-	}	
+		return new ImageTileView(source, xpos - leftMargin, ypos - topMargin, widthWithMargins, heightWithMargins);
+	}
+	
+	// Returns a copy of the pixels of this tile (including the margins) in the given source image.
+	public ImageProcessor getImageWithMargins(ImageProcessor source)
+	{
+		return getViewWithMargins(source).toProcessor();
+	}
+	
+	// Copies the tile without its margins from the given denoised tile (which includes the margins)
+	// straight to the correct position in the destination image.
+	public void writeWithoutMargins(ImageProcessor denoisedTile, ImageProcessor destination)
+	{
+		assert(denoisedTile.getWidth() == widthWithMargins && denoisedTile.getHeight() == heightWithMargins);
+		
+		ImageTileView interior = new ImageTileView(destination, xpos, ypos, getWidthWithoutMargins(), getHeightWithoutMargins());
+		interior.copyFrom(denoisedTile, leftMargin, topMargin);
+	}
 }
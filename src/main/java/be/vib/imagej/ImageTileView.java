@@ -0,0 +1,111 @@
+package be.vib.imagej;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// An ImageTileView is a rectangular window onto the pixels of a larger 8- or 16-bit image.
+// It refers to the image's backing byte[] or short[] pixel array directly (with the image width as row stride),
+// so creating a view does not copy any pixels, nor does it change the image's ROI.
+public class ImageTileView
+{
+	private final Object pixels; // the byte[] or short[] pixels of the complete image
+	private final int stride; // width of the complete image
+	private final int sourceHeight;
+	private final int x, y; // top left corner of the view in the complete image
+	private final int width, height; // size of the view
+	
+	public ImageTileView(ImageProcessor source, int x, int y, int width, int height)
+	{
+		assert(source instanceof ByteProcessor || source instanceof ShortProcessor);
+		assert(x >= 0 && y >= 0 && width > 0 && height > 0);
+		assert(x + width <= source.getWidth() && y + height <= source.getHeight());
+		
+		this.pixels = source.getPixels();
+		this.stride = source.getWidth();
+		this.sourceHeight = source.getHeight();
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+	}
+	
+	public int getX()
+	{
+		return x;
+	}
+	
+	public int getY()
+	{
+		return y;
+	}
+	
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	public int getHeight()
+	{
+		return height;
+	}
+	
+	public int getStride()
+	{
+		return stride;
+	}
+	
+	// Returns the backing pixel array of the complete image (byte[] or short[]).
+	public Object getPixels()
+	{
+		return pixels;
+	}
+	
+	// Returns the index in getPixels() of the first pixel of the given row of the view.
+	public int getOffset(int row)
+	{
+		return (y + row) * stride + x;
+	}
+	
+	// Returns true if the view covers the complete image.
+	public boolean isComplete()
+	{
+		return x == 0 && y == 0 && width == stride && height == sourceHeight;
+	}
+	
+	// Returns an ImageProcessor with the pixels in the view. If the view covers the complete image,
+	// the ImageProcessor shares the image's pixels (which must then not be modified), otherwise they are copied
+	// into pooled arrays (see BufferPool).
+	public ImageProcessor toProcessor()
+	{
+		if (pixels instanceof byte[])
+		{
+			byte[] tilePixels = isComplete() ? (byte[])pixels : BufferPool.getInstance().borrowBytes(width * height);
+			if (!isComplete())
+				for (int row = 0; row < height; row++)
+					System.arraycopy(pixels, getOffset(row), tilePixels, row * width, width);
+			return new ByteProcessor(width, height, tilePixels);
+		}
+		else
+		{
+			short[] tilePixels = isComplete() ? (short[])pixels : BufferPool.getInstance().borrowShorts(width * height);
+			if (!isComplete())
+				for (int row = 0; row < height; row++)
+					System.arraycopy(pixels, getOffset(row), tilePixels, row * width, width);
+			return new ShortProcessor(width, height, tilePixels, null);
+		}
+	}
+	
+	// Copies the width x height region with top left corner (srcX, srcY) of the given image into the view.
+	// The image must be of the same type (8- or 16-bit) as the image underlying the view.
+	public void copyFrom(ImageProcessor src, int srcX, int srcY)
+	{
+		assert(src.getPixels().getClass() == pixels.getClass());
+		assert(srcX + width <= src.getWidth() && srcY + height <= src.getHeight());
+		
+		Object srcPixels = src.getPixels();
+		int srcStride = src.getWidth();
+		for (int row = 0; row < height; row++)
+			System.arraycopy(srcPixels, (srcY + row) * srcStride + srcX, pixels, getOffset(row), width);
+	}
+}
@@ -1,75 +1,58 @@
 package be.vib.imagej;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.NoSuchElementException;
+import java.util.List;
 
 import ij.process.ImageProcessor;
 
-
+// ImageTiler splits an image of a given size into tiles (row by row). The tile geometry is
+// computed up front and is immutable, so the tiles can be processed in any order or in parallel
+// (e.g. via getTiles().parallelStream()), and the same tiler can be used for all slices of a stack.
 public class ImageTiler implements Iterable<ImageTile>
 {
-	private ImageProcessor image;
-
-	private int tileWidthWithoutMargins;
-	private int tileHeightWithoutMargins;
+	private final List<ImageTile> tiles;
 	
-	private int margin;
+	public ImageTiler(int imageWidth, int imageHeight, int tileWidthWithoutMargins, int tileHeightWithoutMargins, int margin)
+	{
+		List<ImageTile> tileList = new ArrayList<ImageTile>();
+		
+		// (x, y) is the position of top left corner of the tile (without margins) with respect to the top left corner of the image it is a tile of.
+		for (int y = 0; y < imageHeight; y += tileHeightWithoutMargins)
+			for (int x = 0; x < imageWidth; x += tileWidthWithoutMargins)
+				tileList.add(new ImageTile(imageWidth, imageHeight, x, y, tileWidthWithoutMargins, tileHeightWithoutMargins, margin));
+		
+		tiles = Collections.unmodifiableList(tileList);
+	}
 	
+	// Convenience constructor for tiling an image with the same size as the given image.
 	public ImageTiler(ImageProcessor image, int tileWidthWithoutMargins, int tileHeightWithoutMargins, int margin)
 	{
-		this.image = image;
-		this.tileWidthWithoutMargins = tileWidthWithoutMargins;
-		this.tileHeightWithoutMargins = tileHeightWithoutMargins;
-		this.margin = margin;
+		this(image.getWidth(), image.getHeight(), tileWidthWithoutMargins, tileHeightWithoutMargins, margin);
 	}
 
 	@Override
 	public Iterator<ImageTile> iterator()
 	{
-		return new TilesIterator();
+		return tiles.iterator();
+	}
+	
+	// Returns all tiles, in row by row order. The list cannot be modified.
+	public List<ImageTile> getTiles()
+	{
+		return tiles;
 	}
 	
-	// Predicts the number of tiles that will be returned by the TilesIterator
 	public int getNumTiles()
 	{
-		int rows = (image.getHeight() + tileHeightWithoutMargins - 1 ) / tileHeightWithoutMargins;
-		int cols = (image.getWidth() + tileWidthWithoutMargins - 1 ) / tileWidthWithoutMargins;
-		return rows * cols;
+		return tiles.size();
 	}
 	
-	private class TilesIterator implements Iterator<ImageTile>
+	// Returns the tile with the given index, in the same order as the iterator (row by row).
+	// The index must be in [0, getNumTiles()).
+	public ImageTile getTile(int index)
 	{
-		// Position of top left corner of the tile (without margins) with respect to the top left corner of the image it is a tile of.
-		private int x = 0;
-		private int y = 0;
-		
-		@Override
-		public boolean hasNext()
-		{
-			return x < image.getWidth() && y < image.getHeight();
-		}
-
-		@Override
-		public ImageTile next()
-		{
-			if (this.hasNext())
-			{
-				ImageTile tile = new ImageTile(image, x, y, tileWidthWithoutMargins, tileHeightWithoutMargins, margin);
-				
-				x += tileWidthWithoutMargins;
-				if (x >= image.getWidth())
-				{
-					x = 0;
-					y += tileHeightWithoutMargins;
-				}
-				
-				return tile;
-			}
-			else
-			{
-				throw new NoSuchElementException();
-			}
-		}
+		return tiles.get(index);
 	}
 }
-
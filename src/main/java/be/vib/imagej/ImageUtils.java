@@ -144,6 +144,30 @@ public class ImageUtils
 		dst.setMinAndMax(src.getMin(), src.getMax());
 	}
 
+	/**
+	 * Returns a new image with every factor-th pixel (in both directions) of the given image.
+	 * 
+	 * The pixels are picked, not averaged, so the noise in the subsampled image has the same
+	 * standard deviation as in the original image.
+	 * 
+	 * @param image The original 8 or 16 bit image.
+	 * @param factor The subsampling factor (at least 1).
+	 * @return A new image of ceil(width / factor) x ceil(height / factor) pixels, with the display range of the original image.
+	 */
+	public static ImageProcessor subsample(ImageProcessor image, int factor)
+	{
+		int width = (image.getWidth() + factor - 1) / factor;
+		int height = (image.getHeight() + factor - 1) / factor;
+		
+		ImageProcessor subsampled = image.createProcessor(width, height);
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				subsampled.set(x, y, image.get(x * factor, y * factor));
+		
+		CopyDisplayRange(image, subsampled);
+		return subsampled;
+	}
+
 	public static QValue newCubeFromImage(ImageProcessor image)
 	{		
 		if (image instanceof ByteProcessor)
@@ -0,0 +1,137 @@
+package be.vib.imagej;
+
+import ij.process.ImageProcessor;
+
+// IntensityHistogram is the histogram of the pixel intensities of an 8-bit (256 bins) or 16-bit (65536 bins) image.
+//
+// The image is split in horizontal stripes that are counted in parallel, each in its own partial histogram.
+// The partial histograms are summed at the end, so the threads never write to shared counters.
+// For very large images the histogram can be built from a regular subsample of the pixels
+// (every n-th pixel of every n-th row), which is accurate enough for percentiles.
+//
+// Histograms can be merged with add(), for example to accumulate the histogram of a complete stack
+// slice by slice (see SliceNormalizations).
+public class IntensityHistogram
+{
+	// Images with fewer pixels are counted on the calling thread only, the parallel overhead is not worth it.
+	private static final int minPixelsForParallel = 1 << 20;
+
+	private final long[] counts;
+	private long numPixels;  // number of pixels counted (the sum of all counts)
+
+	// Returns an empty histogram for 8-bit (numBins = 256) or 16-bit (numBins = 65536) images.
+	public IntensityHistogram(int numBins)
+	{
+		this(new long[numBins], 0);
+	}
+
+	private IntensityHistogram(long[] counts, long numPixels)
+	{
+		this.counts = counts;
+		this.numPixels = numPixels;
+	}
+
+	// Returns the histogram of all pixels of an 8- or 16-bit image.
+	public static IntensityHistogram compute(ImageProcessor image)
+	{
+		return compute(image, Long.MAX_VALUE);
+	}
+
+	// Returns the histogram of an 8- or 16-bit image, built from at most (approximately) maxSamples pixels.
+	public static IntensityHistogram compute(ImageProcessor image, long maxSamples)
+	{
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final Object pixels = image.getPixels();
+		final int numBins = (pixels instanceof byte[]) ? 256 : 65536;
+
+		// Subsampling step, the same in both directions
+		final long numImagePixels = (long)width * height;
+		final int step = (numImagePixels <= maxSamples) ? 1 : (int)Math.ceil(Math.sqrt((double)numImagePixels / maxSamples));
+
+		final int numRows = (height + step - 1) / step;
+		final int numCols = (width + step - 1) / step;
+
+		final int numStripes = ((long)numRows * numCols < minPixelsForParallel) ? 1 : Math.min(numRows, JavaImageOps.getPool().getParallelism());
+		final int[][] partialCounts = new int[numStripes][];
+
+		JavaImageOps.parallelFor(numStripes, stripe -> {
+			int[] stripeCounts = new int[numBins];
+			int firstRow = (int)((long)numRows * stripe / numStripes);
+			int lastRow = (int)((long)numRows * (stripe + 1) / numStripes);
+			for (int r = firstRow; r < lastRow; r++)
+			{
+				int offset = r * step * width;
+				if (pixels instanceof byte[])
+				{
+					byte[] p = (byte[])pixels;
+					for (int x = 0; x < width; x += step)
+						stripeCounts[p[offset + x] & 0xff]++;
+				}
+				else
+				{
+					short[] p = (short[])pixels;
+					for (int x = 0; x < width; x += step)
+						stripeCounts[p[offset + x] & 0xffff]++;  // ShortProcessor stores unsigned 16-bit values in signed shorts
+				}
+			}
+			partialCounts[stripe] = stripeCounts;
+		});
+
+		long[] counts = new long[numBins];
+		for (int s = 0; s < numStripes; s++)
+		{
+			int[] stripeCounts = partialCounts[s];
+			for (int i = 0; i < numBins; i++)
+				counts[i] += stripeCounts[i];
+		}
+
+		return new IntensityHistogram(counts, (long)numRows * numCols);
+	}
+
+	// Adds the counts of another histogram (with the same number of bins) to this one.
+	// Several threads can add to the same histogram at the same time.
+	public synchronized void add(IntensityHistogram other)
+	{
+		assert(other.counts.length == counts.length);
+
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		numPixels += other.numPixels;
+	}
+
+	public int getNumBins()
+	{
+		return counts.length;
+	}
+
+	// Returns the number of pixels that were counted.
+	public synchronized long getNumPixels()
+	{
+		return numPixels;
+	}
+
+	// Returns the number of counted pixels with the given intensity.
+	public synchronized long getCount(int intensity)
+	{
+		return counts[intensity];
+	}
+
+	// Returns the smallest intensity i such that at least percentile % of the pixels have an intensity below i.
+	public synchronized int getPercentile(float percentile)
+	{
+		assert(percentile >= 0 && percentile <= 100);
+
+		final long target = (long)Math.ceil(percentile / 100.0f * numPixels);
+
+		long cumul = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			if (cumul >= target)
+				return i;
+			cumul += counts[i];
+		}
+
+		return counts.length - 1;
+	}
+}
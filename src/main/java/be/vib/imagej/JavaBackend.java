@@ -0,0 +1,225 @@
+package be.vib.imagej;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
+
+import ij.process.ImageProcessor;
+
+// The JavaBackend runs pure Java implementations of the denoising algorithms on all CPU cores.
+// It does not need a GPU or a Quasar installation, so it is always available. It is used as
+// a fallback when Quasar cannot be started, and can be selected explicitly with -Dbe.vib.denoisem.backend=java
+//
+// The algorithms follow their Quasar counterparts closely, except for the wavelet based ones
+// (see JavaWaveletDenoising) which use a simpler wavelet transform.
+public class JavaBackend implements ComputeBackend
+{
+	private volatile boolean initialized = false;
+	
+	// Gaussian blur kernels for deconvolution, shared by all tiles (which may be denoised concurrently).
+	private final Map<BlurKernelKey, float[]> blurKernels = new ConcurrentHashMap<BlurKernelKey, float[]>();
+	private int blurKernelUsers = 0;  // see acquireBlurKernels(), guarded by synchronized (blurKernels)
+
+	@Override
+	public String getName()
+	{
+		return "java";
+	}
+
+	@Override
+	public String getReadableName()
+	{
+		return "Java (CPU)";
+	}
+
+	@Override
+	public void initialize()
+	{
+		initialized = true;  // nothing to be done
+	}
+
+	@Override
+	public boolean isInitialized()
+	{
+		return initialized;
+	}
+
+	@Override
+	public <T> Future<T> submit(Callable<T> task)
+	{
+		return JavaImageOps.getPool().submit(task);
+	}
+
+	@Override
+	public int getParallelism()
+	{
+		return JavaImageOps.getPool().getParallelism();
+	}
+
+	@Override
+	public long getMemoryBudget()
+	{
+		// Half of the free heap memory, shared by the tasks that can run at the same time.
+		Runtime runtime = Runtime.getRuntime();
+		long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		return free / 2 / getParallelism();
+	}
+
+	// Returns the (cached) size x size Gaussian blur kernel with standard deviation sigma. The kernel must not be modified.
+	private float[] blurKernel(int size, float sigma)
+	{
+		return blurKernels.computeIfAbsent(new BlurKernelKey(size, sigma), key -> JavaImageOps.gaussianKernel(key.getSize(), key.getSigma()));
+	}
+	
+	@Override
+	public void acquireBlurKernels()
+	{
+		synchronized (blurKernels)
+		{
+			blurKernelUsers++;
+		}
+	}
+	
+	@Override
+	public void releaseBlurKernels()
+	{
+		synchronized (blurKernels)
+		{
+			assert(blurKernelUsers > 0);
+			if (blurKernelUsers > 0 && --blurKernelUsers == 0)
+				blurKernels.clear();
+		}
+	}
+	
+	// Normalizes the image into a pooled float buffer, denoises it with the given algorithm and denormalizes the result.
+	// The algorithm must not keep a reference to its input or output. Both are returned to the BufferPool afterwards.
+	private static ImageProcessor denoise(ImageProcessor image, ImageNormalizer normalizer, boolean byteRange, UnaryOperator<float[]> algorithm)
+	{
+		BufferPool bufferPool = BufferPool.getInstance();
+		
+		long startNanos = System.nanoTime();
+		float[] noisy = normalizer.normalizeToFloats(image, byteRange, bufferPool.borrowFloats(image.getPixelCount()));
+		DenoiseMetrics.recordTileStage(DenoiseMetrics.Stage.NORMALIZE, startNanos);
+		
+		float[] denoised = algorithm.apply(noisy);
+		
+		startNanos = System.nanoTime();
+		ImageProcessor denoisedImage = normalizer.denormalizeFromFloats(image, denoised, byteRange);
+		DenoiseMetrics.recordTileStage(DenoiseMetrics.Stage.DENORMALIZE, startNanos);
+		
+		bufferPool.release(noisy);
+		if (denoised != noisy)
+			bufferPool.release(denoised);
+		
+		return denoisedImage;
+	}
+
+	@Override
+	public ImageProcessor gaussian(ImageProcessor image, ImageNormalizer normalizer, GaussianParams params)
+	{
+		final boolean byteRange = false; // normalize to/from [0,1]
+		return denoise(image, normalizer, byteRange, noisy -> JavaImageOps.gaussianFilter(noisy, image.getWidth(), image.getHeight(), params.sigma));
+	}
+
+	@Override
+	public ImageProcessor bilateral(ImageProcessor image, ImageNormalizer normalizer, BilateralParams params)
+	{
+		final boolean byteRange = true;  // bilateral filter expects values in [0,255]
+		return denoise(image, normalizer, byteRange, noisy -> JavaBilateralFilter.denoise(noisy, image.getWidth(), image.getHeight(), params.rangeSigma, params.spatialSigma, 255));
+	}
+
+	@Override
+	public ImageProcessor anisotropicDiffusion(ImageProcessor image, ImageNormalizer normalizer, AnisotropicDiffusionParams params)
+	{
+		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
+		return denoise(image, normalizer, byteRange, noisy -> JavaAnisotropicDiffusion.denoise(noisy, image.getWidth(), image.getHeight(),
+				                                                                               params.numIterations, params.stepSize, params.diffusionFactor, params.diffusionFunction));
+	}
+
+	@Override
+	public ImageProcessor blsgsm(ImageProcessor image, ImageNormalizer normalizer, BLSGSMParams params)
+	{
+		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
+		return denoise(image, normalizer, byteRange, noisy -> JavaWaveletDenoising.blsgsm(noisy, image.getWidth(), image.getHeight(), params.scales, params.sigma));
+	}
+
+	@Override
+	public ImageProcessor waveletThresholding(ImageProcessor image, ImageNormalizer normalizer, WaveletThresholdingParams params)
+	{
+		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
+		return denoise(image, normalizer, byteRange, noisy -> JavaWaveletDenoising.thresholding(noisy, image.getWidth(), image.getHeight(),
+				                                                                                WaveletThresholdingParams.J, WaveletThresholdingParams.thresholdType, params.threshold));
+	}
+
+	@Override
+	public ImageProcessor nonLocalMeans(ImageProcessor image, ImageNormalizer normalizer, NonLocalMeansParams params)
+	{
+		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
+
+		float[] corrFilterInv = params.decorrelation ? NonLocalMeansParams.emCorrFilterInv : null;
+
+		if (params.deconvolution)
+		{
+			final int kernelSize = NonLocalMeansParams.DeconvolutionParams.blurKernelSize;
+			float[] blurKernel = blurKernel(kernelSize, NonLocalMeansParams.DeconvolutionParams.blurKernelSigma);
+			return denoise(image, normalizer, byteRange, noisy -> JavaNonLocalMeans.deconvolve(noisy, image.getWidth(), image.getHeight(), blurKernel, kernelSize,
+					                                                                           params.deconvolutionParams.lambda, params.deconvolutionParams.numIterations,
+					                                                                           params.halfSearchSize, params.halfBlockSize, params.h, corrFilterInv));
+		}
+		else
+		{
+			return denoise(image, normalizer, byteRange, noisy -> JavaNonLocalMeans.denoise(noisy, image.getWidth(), image.getHeight(),
+					                                                                        params.halfSearchSize, params.halfBlockSize, params.h, corrFilterInv));
+		}
+	}
+
+	@Override
+	public ImageProcessor tikhonov(ImageProcessor image, ImageNormalizer normalizer, TikhonovParams params)
+	{
+		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
+
+		if (params.deconvolution)
+		{
+			float[] blurKernel = blurKernel(TikhonovParams.blurKernelSize, params.sigma);
+			return denoise(image, normalizer, byteRange, noisy -> JavaTikhonov.deconvolve(noisy, image.getWidth(), image.getHeight(), blurKernel, TikhonovParams.blurKernelSize,
+					                                                                      params.lambda, params.numIterations));
+		}
+		else
+		{
+			return denoise(image, normalizer, byteRange, noisy -> JavaTikhonov.denoise(noisy, image.getWidth(), image.getHeight(), params.lambda, params.numIterations));
+		}
+	}
+
+	@Override
+	public ImageProcessor totalVariation(ImageProcessor image, ImageNormalizer normalizer, TotalVariationParams params)
+	{
+		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
+		return denoise(image, normalizer, byteRange, noisy -> JavaTotalVariation.denoise(noisy, image.getWidth(), image.getHeight(), params.lambda, params.numIterations, TotalVariationParams.alpha));
+	}
+
+	@Override
+	public float estimateNoise(ImageProcessor image, ImageNormalizer normalizer)
+	{
+		final boolean toByteRange = true;  // same as the Quasar MAD noise estimator, which prefers a byte range as pixel data
+		float[] noisy = normalizer.normalizeToFloats(image, toByteRange, BufferPool.getInstance().borrowFloats(image.getPixelCount()));
+		float noise = JavaImageEstimators.estimateNoiseMAD(noisy, image.getWidth(), image.getHeight(), 2);
+		BufferPool.getInstance().release(noisy);
+		return noise / 255.0f;  // Return the noise standard deviation, for image pixel intensities normalized to be in [0,1]
+	}
+
+	@Override
+	public float estimateBlur(ImageProcessor image)
+	{
+		final int numPixels = image.getPixelCount();
+		final float r = ImageUtils.bitRange(image);
+
+		// Scale pixels values from [0, 255] or [0, 65535] down to [0, 1]
+		float[] pixels = new float[numPixels];
+		for (int i = 0; i < numPixels; i++)
+			pixels[i] = image.getf(i) / r;
+
+		return JavaImageEstimators.estimateBlur(pixels, image.getWidth(), image.getHeight());
+	}
+}
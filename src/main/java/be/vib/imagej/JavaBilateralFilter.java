@@ -0,0 +1,96 @@
+package be.vib.imagej;
+
+import java.util.Arrays;
+
+// Pure Java port of the fast O(1) bilateral filter in bilateral_filter.q:
+//   K. N. Chaudhury, D. Sage, and M. Unser,
+//   "Fast O(1) bilateral filtering using trigonometric range kernels,"
+//   IEEE Transactions on Image Processing
+// Pixel intensities are expected in [0,T].
+public class JavaBilateralFilter
+{
+	private JavaBilateralFilter()
+	{
+	}
+
+	// rangeSigma is the range damping parameter, spatialSigma the spatial damping parameter,
+	// and T the dynamic range of the pixel values.
+	public static float[] denoise(float[] x, int width, int height, float rangeSigma, float spatialSigma, int T)
+	{
+		final int n = width * height;
+
+		// Avoid values of N larger than Nmax because of numeric overflow issues
+		// (caused by the 1/2^N and the combinatorial function below).
+		final int Nmax = 100;
+
+		final double gamma = Math.PI / (2 * T);
+		final double rho = gamma * rangeSigma;
+		int N = (rangeSigma > 1 / (gamma * gamma)) ? Nmax : (int)Math.ceil(1 / (rho * rho));
+		N = Math.min(N, Nmax);
+
+		final float scale = (float)(gamma / (rho * Math.sqrt(N)));
+
+		final BufferPool bufferPool = BufferPool.getInstance();
+
+		float[] num = bufferPool.borrowFloats(n);
+		float[] den = bufferPool.borrowFloats(n);
+		float[] h = bufferPool.borrowFloats(n);
+		float[] g = bufferPool.borrowFloats(n);
+		Arrays.fill(num, 0);
+		Arrays.fill(den, 0);
+
+		for (int i = 0; i <= N; i++)
+		{
+			final int k = 2 * i - N;
+			JavaImageOps.parallelFor(height, row -> {
+				for (int p = row * width; p < (row + 1) * width; p++)
+				{
+					h[p] = (float)Math.cos(k * scale * x[p]);
+					g[p] = x[p] * h[p];
+				}
+			});
+
+			final float d = (float)(comb(N, i) / Math.pow(2, N));
+			float[] hh = JavaImageOps.gaussianFilter(h, width, height, spatialSigma);
+			float[] gg = JavaImageOps.gaussianFilter(g, width, height, spatialSigma);
+
+			JavaImageOps.parallelFor(height, row -> {
+				for (int p = row * width; p < (row + 1) * width; p++)
+				{
+					num[p] += d * h[p] * gg[p];
+					den[p] += d * h[p] * hh[p];
+				}
+			});
+
+			bufferPool.release(hh);
+			bufferPool.release(gg);
+		}
+
+		float[] y = bufferPool.borrowFloats(n);
+		JavaImageOps.parallelFor(height, row -> {
+			for (int p = row * width; p < (row + 1) * width; p++)
+				y[p] = num[p] / den[p];
+		});
+
+		bufferPool.release(num);
+		bufferPool.release(den);
+		bufferPool.release(h);
+		bufferPool.release(g);
+
+		return y;
+	}
+
+	// Binomial coefficient, computed exactly as comb() in bilateral_filter.q
+	// (including its behaviour for r = 0) so that both backends give the same results.
+	private static double comb(int n, int r)
+	{
+		double num = n;
+		double den = 1;
+		for (int i = 2; i <= r; i++)
+		{
+			num = num * (n - i + 1);
+			den = den * i;
+		}
+		return num / den;
+	}
+}
@@ -0,0 +1,95 @@
+package be.vib.imagej;
+
+import java.util.Arrays;
+
+// Pure Java ports of the noise and blur estimators in estimate_noise.q and blur_metric.q.
+public class JavaImageEstimators
+{
+	private JavaImageEstimators()
+	{
+	}
+
+	// Port of estimate_noise_mad(): estimates the noise standard deviation as the median absolute deviation
+	// of the image from its median filtered version (with a (2r+1) x (2r+1) window).
+	public static float estimateNoiseMAD(float[] img, int width, int height, int r)
+	{
+		final int windowSize = (2 * r + 1) * (2 * r + 1);
+
+		float[] absDev = new float[width * height];
+		JavaImageOps.parallelFor(height, y -> {
+			float[] window = new float[windowSize];
+			for (int x = 0; x < width; x++)
+			{
+				int k = 0;
+				for (int dy = -r; dy <= r; dy++)
+				{
+					int row = JavaImageOps.mirror(y + dy, height) * width;
+					for (int dx = -r; dx <= r; dx++)
+						window[k++] = img[row + JavaImageOps.mirror(x + dx, width)];
+				}
+				Arrays.sort(window);
+				absDev[y * width + x] = Math.abs(img[y * width + x] - window[windowSize / 2]);
+			}
+		});
+
+		Arrays.parallelSort(absDev);
+		return absDev[absDev.length / 2] / 0.6745f;
+	}
+
+	// Port of blurMetric(): the no-reference perceptual blur metric of Crete-Roffet et al.
+	// Returns a value between 0 (sharp) and 1 (blurred).
+	public static float estimateBlur(float[] img, int width, int height)
+	{
+		if (width < 3 || height < 3)
+			return 0;
+
+		// Blur the image with a 9 pixel wide box filter in horizontal and vertical direction (zero padding).
+		float[] blurredHor = new float[width * height];
+		float[] blurredVer = new float[width * height];
+		JavaImageOps.parallelFor(height, y -> {
+			for (int x = 0; x < width; x++)
+			{
+				float sumHor = 0;
+				float sumVer = 0;
+				for (int i = -4; i <= 4; i++)
+				{
+					if (x + i >= 0 && x + i < width)
+						sumHor += img[y * width + x + i];
+					if (y + i >= 0 && y + i < height)
+						sumVer += img[(y + i) * width + x];
+				}
+				blurredHor[y * width + x] = sumHor / 9;
+				blurredVer[y * width + x] = sumVer / 9;
+			}
+		});
+
+		// Compare the variation between neighbouring pixels in the image and in its blurred version,
+		// ignoring the pixels on the image border.
+		double[] sums = new double[4];  // sum of variations in image horizontally, and vertically, sum of variation lost by blurring horizontally, and vertically
+		for (int y = 1; y < height - 1; y++)
+		{
+			for (int x = 1; x < width - 1; x++)
+			{
+				int p = y * width + x;
+				float dHor = Math.abs(img[p] - img[p + 1]);
+				float dVer = Math.abs(img[p] - img[p + width]);
+				float dBlurredHor = Math.abs(blurredHor[p] - blurredHor[p + 1]);
+				float dBlurredVer = Math.abs(blurredVer[p] - blurredVer[p + width]);
+				if (x < width - 1)
+				{
+					sums[0] += dHor;
+					sums[2] += Math.max(0, dHor - dBlurredHor);
+				}
+				if (y < height - 1)
+				{
+					sums[1] += dVer;
+					sums[3] += Math.max(0, dVer - dBlurredVer);
+				}
+			}
+		}
+
+		double blurHor = (sums[0] - sums[2]) / sums[0];
+		double blurVer = (sums[1] - sums[3]) / sums[1];
+		return (float)Math.max(blurHor, blurVer);
+	}
+}
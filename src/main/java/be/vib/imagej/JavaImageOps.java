@@ -0,0 +1,196 @@
+package be.vib.imagej;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
+import java.util.function.IntToDoubleFunction;
+import java.util.stream.IntStream;
+
+// JavaImageOps provides the basic building blocks for the pure Java denoising algorithms:
+// parallel loops over image rows and a few image filters that mimic their Quasar library counterparts.
+//
+// Images are stored as float arrays of width * height pixels, in row-major order.
+// Unless mentioned otherwise, filters use mirror boundary extension (the pixel on the edge
+// is repeated, as in Quasar's "mirror" mode) and imfilter-style correlation (not convolution).
+// The images returned by the filters are borrowed from the BufferPool; callers release them when they no longer need them.
+public class JavaImageOps
+{
+	// Number of worker threads used by the Java backend. Defaults to the number of available processors,
+	// but can be overridden with the system property -Dbe.vib.denoisem.threads=n
+	private static final int numThreads = Integer.getInteger("be.vib.denoisem.threads", Runtime.getRuntime().availableProcessors());
+
+	private static final ForkJoinPool pool = new ForkJoinPool(Math.max(1, numThreads));
+
+	private JavaImageOps()
+	{
+	}
+
+	public static ForkJoinPool getPool()
+	{
+		return pool;
+	}
+
+	// Calls body for each index in [0, n), distributing the calls over the worker threads.
+	// Returns when all calls have finished.
+	public static void parallelFor(int n, IntConsumer body)
+	{
+		if (ForkJoinTask.getPool() == pool)
+			IntStream.range(0, n).parallel().forEach(body);  // already on one of our worker threads
+		else
+			pool.submit(() -> IntStream.range(0, n).parallel().forEach(body)).join();
+	}
+
+	// Returns the sum of f(i) for i in [0, n), evaluated in parallel.
+	public static double parallelSum(int n, IntToDoubleFunction f)
+	{
+		if (ForkJoinTask.getPool() == pool)
+			return IntStream.range(0, n).parallel().mapToDouble(f).sum();
+		else
+			return pool.submit(() -> IntStream.range(0, n).parallel().mapToDouble(f).sum()).join();
+	}
+
+	// Maps an index outside [0, n) back into the range by mirroring at the edges, repeating the edge pixel:
+	// -1 -> 0, -2 -> 1, ..., n -> n-1, n+1 -> n-2, ...
+	public static int mirror(int i, int n)
+	{
+		while (i < 0 || i >= n)
+		{
+			if (i < 0)
+				i = -i - 1;
+			else
+				i = 2 * n - i - 1;
+		}
+		return i;
+	}
+
+	// Inner product of two images (sum of the pixelwise products).
+	public static double innerProduct(float[] a, float[] b, int width, int height)
+	{
+		return parallelSum(height, y -> {
+			double sum = 0;
+			for (int i = y * width; i < (y + 1) * width; i++)
+				sum += a[i] * b[i];
+			return sum;
+		});
+	}
+
+	// Returns a normalized N x N Gaussian kernel, port of fgaussian() in utils.q.
+	public static float[] gaussianKernel(int n, float sigma)
+	{
+		double center = (n - 1) / 2.0;
+		int nMin = -(int)Math.floor(center);
+		int nMax = (int)Math.ceil(center);
+		double offset = nMax - center;
+
+		double[] kernel = new double[n * n];
+		double sum = 0;
+		for (int i = nMin; i <= nMax; i++)
+		{
+			for (int j = nMin; j <= nMax; j++)
+			{
+				double value = Math.exp(-((i - offset) * (i - offset) + (j - offset) * (j - offset)) / (2 * sigma * sigma));
+				kernel[(i - nMin) * n + (j - nMin)] = value;
+				sum += value;
+			}
+		}
+
+		float[] h = new float[n * n];
+		for (int i = 0; i < n * n; i++)
+			h[i] = (float)(kernel[i] / sum);
+		return h;
+	}
+
+	// Gaussian low-pass filter with standard deviation sigma, separable implementation.
+	// The kernel is truncated at 3 sigma.
+	public static float[] gaussianFilter(float[] src, int width, int height, float sigma)
+	{
+		final int radius = Math.max(1, (int)Math.ceil(3 * sigma));
+
+		final float[] kernel = new float[2 * radius + 1];
+		double sum = 0;
+		for (int i = -radius; i <= radius; i++)
+		{
+			kernel[i + radius] = (float)Math.exp(-(i * i) / (2.0 * sigma * sigma));
+			sum += kernel[i + radius];
+		}
+		for (int i = 0; i < kernel.length; i++)
+			kernel[i] /= sum;
+
+		float[] tmp = BufferPool.getInstance().borrowFloats(width * height);
+		float[] dst = BufferPool.getInstance().borrowFloats(width * height);
+
+		parallelFor(height, y -> {
+			for (int x = 0; x < width; x++)
+			{
+				float s = 0;
+				for (int i = -radius; i <= radius; i++)
+					s += kernel[i + radius] * src[y * width + mirror(x + i, width)];
+				tmp[y * width + x] = s;
+			}
+		});
+
+		parallelFor(height, y -> {
+			for (int x = 0; x < width; x++)
+			{
+				float s = 0;
+				for (int i = -radius; i <= radius; i++)
+					s += kernel[i + radius] * tmp[mirror(y + i, height) * width + x];
+				dst[y * width + x] = s;
+			}
+		});
+
+		BufferPool.getInstance().release(tmp);
+
+		return dst;
+	}
+
+	// Correlates the image with a kernelWidth x kernelHeight kernel. (centerX, centerY) is the position
+	// in the kernel that corresponds to the output pixel.
+	public static float[] correlate(float[] src, int width, int height, float[] kernel, int kernelWidth, int kernelHeight, int centerX, int centerY)
+	{
+		float[] dst = BufferPool.getInstance().borrowFloats(width * height);
+
+		parallelFor(height, y -> {
+			for (int x = 0; x < width; x++)
+			{
+				float s = 0;
+				for (int j = 0; j < kernelHeight; j++)
+				{
+					int row = mirror(y + j - centerY, height) * width;
+					for (int i = 0; i < kernelWidth; i++)
+						s += kernel[j * kernelWidth + i] * src[row + mirror(x + i - centerX, width)];
+				}
+				dst[y * width + x] = s;
+			}
+		});
+
+		return dst;
+	}
+
+	// Returns a copy of the image, extended by the given number of pixels on each side with mirrored pixels,
+	// as bound_extension(..., "mirror") in nlmeans.q.
+	public static float[] mirrorExtend(float[] src, int width, int height, int extension)
+	{
+		final int extWidth = width + 2 * extension;
+		final int extHeight = height + 2 * extension;
+
+		float[] dst = BufferPool.getInstance().borrowFloats(extWidth * extHeight);
+
+		parallelFor(extHeight, y -> {
+			int srcRow = mirror(y - extension, height) * width;
+			for (int x = 0; x < extWidth; x++)
+				dst[y * extWidth + x] = src[srcRow + mirror(x - extension, width)];
+		});
+
+		return dst;
+	}
+
+	// Returns the width x height region with top left corner (x0, y0) of a srcWidth wide image.
+	public static float[] crop(float[] src, int srcWidth, int x0, int y0, int width, int height)
+	{
+		float[] dst = BufferPool.getInstance().borrowFloats(width * height);
+		for (int y = 0; y < height; y++)
+			System.arraycopy(src, (y0 + y) * srcWidth + x0, dst, y * width, width);
+		return dst;
+	}
+}
@@ -0,0 +1,246 @@
+package be.vib.imagej;
+
+import java.util.Arrays;
+
+// Pure Java port of the non-local means denoising and deconvolution in nlmeans.q.
+// Pixel intensities are expected in [0,1].
+public class JavaNonLocalMeans
+{
+	private JavaNonLocalMeans()
+	{
+	}
+
+	// Port of denoise_nlmeans() and denoise_nlmeans_c().
+	// corrFilterInv is the inverse impulse response of the noise correlation kernel (a horizontal filter),
+	// or null for uncorrelated noise.
+	public static float[] denoise(float[] noisy, int width, int height, int halfSearchSize, int halfBlockSize, float h, float[] corrFilterInv)
+	{
+		float[] weightsSource = (corrFilterInv == null) ? noisy : prewhiten(noisy, width, height, corrFilterInv);
+
+		float[][] accum = accumulate(noisy, weightsSource, width, height, halfSearchSize, halfBlockSize, h);
+		float[] accumValues = accum[0];
+		float[] accumWeights = accum[1];
+
+		float[] denoised = BufferPool.getInstance().borrowFloats(width * height);
+		JavaImageOps.parallelFor(height, y -> {
+			for (int i = y * width; i < (y + 1) * width; i++)
+				denoised[i] = accumValues[i] / accumWeights[i];
+		});
+
+		release(accum);
+		if (weightsSource != noisy)
+			release(weightsSource);
+
+		return denoised;
+	}
+
+	// Port of deconv_nlmeans() and deconv_nlmeans_c(): steepest descent deconvolution with a non-local means prior.
+	// blurKernel is a square kernelSize x kernelSize blur kernel.
+	public static float[] deconvolve(float[] y, int width, int height, float[] blurKernel, int kernelSize, float lambda, int numIterations,
+			                         int halfSearchSize, int halfBlockSize, float h, float[] corrFilterInv)
+	{
+		final int n = width * height;
+		final int c = (int)Math.ceil(kernelSize / 2.0) - 1;  // kernel center, as ceil(size(H)/2)-1 in nlmeans.q
+
+		// The blur kernel is flipped around its center for the adjoint operator.
+		float[] blurKernelT = new float[kernelSize * kernelSize];
+		for (int j = 0; j < kernelSize; j++)
+			for (int i = 0; i < kernelSize; i++)
+			{
+				int fj = 2 * c - j;
+				int fi = 2 * c - i;
+				blurKernelT[j * kernelSize + i] = (fj >= 0 && fj < kernelSize && fi >= 0 && fi < kernelSize) ? blurKernel[fj * kernelSize + fi] : 0;
+			}
+
+		// The non-local means weights only depend on (the prewhitened version of) y.
+		float[] weightsSource = (corrFilterInv == null) ? y : prewhiten(y, width, height, corrFilterInv);
+
+		float[] HTy = JavaImageOps.correlate(y, width, height, blurKernelT, kernelSize, kernelSize, c, c);
+
+		float[] x = y.clone();
+		for (int iter = 0; iter < numIterations; iter++)
+		{
+			float[][] nlmX = accumulate(x, weightsSource, width, height, halfSearchSize, halfBlockSize, h);
+
+			float[] Hx = JavaImageOps.correlate(x, width, height, blurKernel, kernelSize, kernelSize, c, c);
+			float[] HTHx = JavaImageOps.correlate(Hx, width, height, blurKernelT, kernelSize, kernelSize, c, c);
+
+			final float[] xCur = x;
+			float[] grad = BufferPool.getInstance().borrowFloats(n);
+			JavaImageOps.parallelFor(height, row -> {
+				for (int i = row * width; i < (row + 1) * width; i++)
+					grad[i] = 2 * (HTHx[i] - HTy[i]) + 2 * lambda * (nlmX[1][i] * xCur[i] - nlmX[0][i]);
+			});
+
+			float[] Hgrad = JavaImageOps.correlate(grad, width, height, blurKernel, kernelSize, kernelSize, c, c);
+
+			float[][] nlmGrad = accumulate(grad, weightsSource, width, height, halfSearchSize, halfBlockSize, h);
+
+			float[] temp = BufferPool.getInstance().borrowFloats(n);
+			float[] residual = BufferPool.getInstance().borrowFloats(n);
+			JavaImageOps.parallelFor(height, row -> {
+				for (int i = row * width; i < (row + 1) * width; i++)
+				{
+					temp[i] = nlmGrad[1][i] * grad[i] - nlmGrad[0][i];
+					residual[i] = y[i] - Hx[i];
+				}
+			});
+
+			double numerator = 2 * lambda * JavaImageOps.innerProduct(x, temp, width, height) - JavaImageOps.innerProduct(residual, Hgrad, width, height);
+			double denominator = 2 * lambda * JavaImageOps.innerProduct(grad, temp, width, height) + JavaImageOps.innerProduct(Hgrad, Hgrad, width, height);
+			final float alpha = (float)(numerator / denominator);
+
+			JavaImageOps.parallelFor(height, row -> {
+				for (int i = row * width; i < (row + 1) * width; i++)
+					xCur[i] -= alpha * grad[i];
+			});
+
+			release(nlmX);
+			release(nlmGrad);
+			release(Hx, HTHx, grad, Hgrad, temp, residual);
+		}
+
+		release(HTy);
+		if (weightsSource != y)
+			release(weightsSource);
+
+		return x;
+	}
+
+	private static float[] prewhiten(float[] image, int width, int height, float[] corrFilterInv)
+	{
+		return JavaImageOps.correlate(image, width, height, corrFilterInv, corrFilterInv.length, 1, (corrFilterInv.length - 1) / 2, 0);
+	}
+
+	// Port of denoise_nlmeans_cumsum(): returns the accumulated weighted pixel values and the accumulated weights
+	// (in that order). The denoised image is their pixelwise ratio. The pixels of 'noisy' are averaged, but the
+	// weights are based on the similarity of blocks in 'orig'.
+	private static float[][] accumulate(float[] noisy, float[] orig, int width, int height, int halfSearchSize, int halfBlockSize, float h)
+	{
+		final int b = halfBlockSize;
+		final int rows = height + 2 * b;
+		final int cols = width + 2 * b;
+		final int n = rows * cols;
+		final float blockSize = (2 * b + 1) * (2 * b + 1);
+
+		// Extend images to avoid boundary artifacts
+		final float[] noisyExt = JavaImageOps.mirrorExtend(noisy, width, height, b);
+		final float[] origExt = JavaImageOps.mirrorExtend(orig, width, height, b);
+
+		final BufferPool bufferPool = BufferPool.getInstance();
+
+		final float[] accumValues = bufferPool.borrowFloats(n);
+		final float[] accumWeights = bufferPool.borrowFloats(n);
+		Arrays.fill(accumValues, 0);
+		Arrays.fill(accumWeights, 0);
+
+		// Scratch images, completely overwritten for each offset
+		final float[] squareDiff = bufferPool.borrowFloats(n);
+		final float[] rowSums = bufferPool.borrowFloats(n);
+		final float[] weights = bufferPool.borrowFloats(n);
+
+		for (int md = -halfSearchSize; md <= halfSearchSize; md++)
+		{
+			for (int nd = -halfSearchSize; nd <= halfSearchSize; nd++)
+			{
+				if (md > 0 || (md == 0 && nd > 0))
+				{
+					final int dy = md;
+					final int dx = nd;
+
+					// Squared difference between the image and its shifted version (with circular indexing)
+					JavaImageOps.parallelFor(rows, y -> {
+						int ys = Math.floorMod(y + dy, rows) * cols;
+						for (int x = 0; x < cols; x++)
+						{
+							float diff = origExt[y * cols + x] - origExt[ys + Math.floorMod(x + dx, cols)];
+							squareDiff[y * cols + x] = diff * diff;
+						}
+					});
+
+					// Cyclic block sum, horizontal pass
+					JavaImageOps.parallelFor(rows, y -> {
+						for (int x = 0; x < cols; x++)
+						{
+							float sum = 0;
+							for (int i = x - b; i <= x + b; i++)
+								sum += squareDiff[y * cols + Math.floorMod(i, cols)];
+							rowSums[y * cols + x] = sum;
+						}
+					});
+
+					// Cyclic block sum, vertical pass, followed by conversion of the block distance into a weight
+					JavaImageOps.parallelFor(rows, y -> {
+						for (int x = 0; x < cols; x++)
+						{
+							float ssd = 0;
+							for (int i = y - b; i <= y + b; i++)
+								ssd += rowSums[Math.floorMod(i, rows) * cols + x];
+							weights[y * cols + x] = weight(ssd / blockSize, h);
+						}
+					});
+
+					// Weighting and accumulation, for the offset d and its opposite -d
+					JavaImageOps.parallelFor(rows, y -> {
+						int yPlus = Math.floorMod(y + dy, rows) * cols;
+						int yMinus = Math.floorMod(y - dy, rows) * cols;
+						for (int x = 0; x < cols; x++)
+						{
+							int pos = y * cols + x;
+							int posPlus = yPlus + Math.floorMod(x + dx, cols);
+							int posMinus = yMinus + Math.floorMod(x - dx, cols);
+
+							float weight1 = weights[pos];
+							float weight2 = weights[posMinus];
+
+							accumValues[pos] += weight1 * noisyExt[posPlus] + weight2 * noisyExt[posMinus];
+							accumWeights[pos] += weight1 + weight2;
+						}
+					});
+				}
+				else if (md == 0 && nd == 0)
+				{
+					// The pixel itself gets a fixed, reduced weight.
+					final float weight = 0.2f * weight(0, h);
+					JavaImageOps.parallelFor(rows, y -> {
+						for (int pos = y * cols; pos < (y + 1) * cols; pos++)
+						{
+							accumValues[pos] += weight * noisyExt[pos];
+							accumWeights[pos] += weight;
+						}
+					});
+				}
+			}
+		}
+
+		// Crop the extended images
+		float[][] result = { JavaImageOps.crop(accumValues, cols, b, b, width, height),
+				             JavaImageOps.crop(accumWeights, cols, b, b, width, height) };
+
+		release(noisyExt, origExt, accumValues, accumWeights, squareDiff, rowSums, weights);
+
+		return result;
+	}
+
+	private static void release(float[]... buffers)
+	{
+		for (float[] buffer : buffers)
+			BufferPool.getInstance().release(buffer);
+	}
+
+	// The "modified bisquare" weighting function. meanSquareDiff is the block distance divided by the number of block pixels.
+	private static float weight(float meanSquareDiff, float h)
+	{
+		if (Math.sqrt(meanSquareDiff) < h)
+		{
+			double w = 1 - meanSquareDiff / (h * h);
+			w = w * w; // w^2
+			w = w * w; // w^4
+			return (float)(w * w); // w^8
+		}
+		else
+		{
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package be.vib.imagej;
+
+// Pure Java port of the Tikhonov regularized denoising/deconvolution in tikhonov.q.
+// Both solve a linear system with a fixed number of conjugate gradient iterations.
+// Pixel intensities are expected in [0,1].
+// The solver state and the filtered images are borrowed from the BufferPool, so an iteration allocates nothing.
+public class JavaTikhonov
+{
+	private static final float[] laplacian = {  0, -1,  0,
+			                                   -1,  4, -1,
+			                                    0, -1,  0 };
+
+	private JavaTikhonov()
+	{
+	}
+
+	// Port of tikhonov_denoise()
+	public static float[] denoise(float[] y, int width, int height, float lambda, int numIterations)
+	{
+		return conjugateGradient(y, width, height, numIterations, (x, Ax) -> {
+			float[] LLx = applyLaplacianTwice(x, width, height);
+			JavaImageOps.parallelFor(height, row -> {
+				for (int i = row * width; i < (row + 1) * width; i++)
+					Ax[i] = x[i] + lambda * LLx[i];
+			});
+			BufferPool.getInstance().release(LLx);
+		});
+	}
+
+	// Port of tikhonov_denoise_dec(). blurKernel is a square kernelSize x kernelSize blur kernel.
+	public static float[] deconvolve(float[] y, int width, int height, float[] blurKernel, int kernelSize, float lambda, int numIterations)
+	{
+		final int c = kernelSize / 2;
+		return conjugateGradient(y, width, height, numIterations, (x, Ax) -> {
+			float[] Hx = JavaImageOps.correlate(x, width, height, blurKernel, kernelSize, kernelSize, c, c);
+			float[] LLx = applyLaplacianTwice(x, width, height);
+			JavaImageOps.parallelFor(height, row -> {
+				for (int i = row * width; i < (row + 1) * width; i++)
+					Ax[i] = Hx[i] + lambda * LLx[i];
+			});
+			BufferPool.getInstance().release(Hx);
+			BufferPool.getInstance().release(LLx);
+		});
+	}
+
+	// Returns L(L(x)), borrowed from the BufferPool.
+	private static float[] applyLaplacianTwice(float[] x, int width, int height)
+	{
+		float[] Lx = JavaImageOps.correlate(x, width, height, laplacian, 3, 3, 1, 1);
+		float[] LLx = JavaImageOps.correlate(Lx, width, height, laplacian, 3, 3, 1, 1);
+		BufferPool.getInstance().release(Lx);
+		return LLx;
+	}
+
+	private interface LinearOperator
+	{
+		// Stores A x in Ax.
+		public void apply(float[] x, float[] Ax);
+	}
+
+	// Solves A x = b, starting from x = b. The solution is borrowed from the BufferPool.
+	private static float[] conjugateGradient(float[] b, int width, int height, int numIterations, LinearOperator A)
+	{
+		final int n = width * height;
+		final BufferPool bufferPool = BufferPool.getInstance();
+
+		float[] x = bufferPool.borrowFloats(n);
+		System.arraycopy(b, 0, x, 0, n);
+		float[] Ap = bufferPool.borrowFloats(n);  // A x first, A p in the iterations
+		A.apply(x, Ap);
+		float[] r = bufferPool.borrowFloats(n);
+		for (int i = 0; i < n; i++)
+			r[i] = b[i] - Ap[i];
+		float[] p = bufferPool.borrowFloats(n);
+		System.arraycopy(r, 0, p, 0, n);
+		double rsOld = JavaImageOps.innerProduct(r, r, width, height);
+
+		for (int iter = 0; iter < numIterations; iter++)
+		{
+			A.apply(p, Ap);
+			final float alpha = (float)(rsOld / JavaImageOps.innerProduct(p, Ap, width, height));
+			JavaImageOps.parallelFor(height, row -> {
+				for (int i = row * width; i < (row + 1) * width; i++)
+				{
+					x[i] += alpha * p[i];
+					r[i] -= alpha * Ap[i];
+				}
+			});
+			double rsNew = JavaImageOps.innerProduct(r, r, width, height);
+			final float beta = (float)(rsNew / rsOld);
+			JavaImageOps.parallelFor(height, row -> {
+				for (int i = row * width; i < (row + 1) * width; i++)
+					p[i] = r[i] + beta * p[i];
+			});
+			rsOld = rsNew;
+		}
+
+		bufferPool.release(Ap);
+		bufferPool.release(r);
+		bufferPool.release(p);
+		return x;
+	}
+}
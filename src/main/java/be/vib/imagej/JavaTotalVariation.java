@@ -0,0 +1,49 @@
+package be.vib.imagej;
+
+// Pure Java port of the total variation regularized denoising in total_variation.q
+// (gradient descent with a fixed step size). Pixel intensities are expected in [0,1].
+public class JavaTotalVariation
+{
+	private JavaTotalVariation()
+	{
+	}
+
+	public static float[] denoise(float[] y, int width, int height, float lambda, int numIterations, float alpha)
+	{
+		final int n = width * height;
+		final float d = 1e-10f;
+
+		float[] x = BufferPool.getInstance().borrowFloats(n);
+		float[] grad = BufferPool.getInstance().borrowFloats(n);
+		System.arraycopy(y, 0, x, 0, n);
+
+		for (int iter = 0; iter < numIterations; iter++)
+		{
+			// Gradient of the total variation term, as grad_tv()
+			JavaImageOps.parallelFor(height, row -> {
+				int up = JavaImageOps.mirror(row - 1, height) * width;
+				int down = JavaImageOps.mirror(row + 1, height) * width;
+				for (int col = 0; col < width; col++)
+				{
+					int pos = row * width + col;
+					float value = x[pos];
+					float dxhFw = value - x[row * width + JavaImageOps.mirror(col - 1, width)];
+					float dxvFw = value - x[up + col];
+					float dxhBw = x[row * width + JavaImageOps.mirror(col + 1, width)] - value;
+					float dxvBw = x[down + col] - value;
+					grad[pos] = (dxhFw + dxvFw) / Math.max((float)Math.sqrt(dxhFw * dxhFw + dxvFw * dxvFw), d) -
+							    (dxhBw + dxvBw) / Math.max((float)Math.sqrt(dxhBw * dxhBw + dxvBw * dxvBw), d);
+				}
+			});
+
+			JavaImageOps.parallelFor(height, row -> {
+				for (int i = row * width; i < (row + 1) * width; i++)
+					x[i] = x[i] - alpha * ((x[i] - y[i]) + lambda * grad[i]);
+			});
+		}
+
+		BufferPool.getInstance().release(grad);
+
+		return x;
+	}
+}
@@ -0,0 +1,185 @@
+package be.vib.imagej;
+
+// Pure Java wavelet domain denoising, used by the Java backend for the wavelet thresholding and
+// BLS-GSM algorithms. Instead of the dual-tree complex wavelet transform (DT-CWT) of the Quasar
+// implementations, it uses an undecimated (shift invariant) Haar wavelet transform, which is
+// much simpler but similarly free of the blocking artifacts of a decimated transform.
+// The transform is orthonormal per subband, so white noise with standard deviation sigma in the
+// image has standard deviation sigma in every detail subband, as for the Quasar implementation.
+// Pixel intensities are expected in [0,1].
+// All subbands and intermediate images are borrowed from the BufferPool, and released as soon as they are no longer needed.
+public class JavaWaveletDenoising
+{
+	private static final float invSqrt2 = (float)(1 / Math.sqrt(2));
+
+	private JavaWaveletDenoising()
+	{
+	}
+
+	// Soft (or hard) thresholding of the detail coefficients at numScales scales, as wav_denoise() in wavelet_thresholding.q.
+	public static float[] thresholding(float[] img, int width, int height, int numScales, String thresholdType, float threshold)
+	{
+		final boolean hard = thresholdType.equals("hard");
+		return denoise(img, width, height, numScales, (band, w, h) -> {
+			for (int i = 0; i < band.length; i++)
+			{
+				float v = band[i];
+				if (hard)
+					band[i] = (Math.abs(v) > threshold) ? v : 0;
+				else
+					band[i] = Math.signum(v) * Math.max(Math.abs(v) - threshold, 0);
+			}
+		});
+	}
+
+	// Simplified counterpart of denoise_blsgsm() in blsgsm.q: Bayesian least squares estimation of the detail coefficients
+	// under a locally adaptive Gaussian prior (each coefficient's signal variance is estimated from its 3x3 neighbourhood),
+	// given white noise with standard deviation sigma.
+	public static float[] blsgsm(float[] img, int width, int height, int numScales, float sigma)
+	{
+		final float noiseVariance = sigma * sigma;
+		return denoise(img, width, height, numScales, (band, w, h) -> {
+			float[] energy = BufferPool.getInstance().borrowFloats(band.length);
+			for (int i = 0; i < energy.length; i++)
+				energy[i] = band[i] * band[i];
+
+			JavaImageOps.parallelFor(h, y -> {
+				for (int x = 0; x < w; x++)
+				{
+					float sum = 0;
+					for (int dy = -1; dy <= 1; dy++)
+					{
+						int row = Math.floorMod(y + dy, h) * w;
+						for (int dx = -1; dx <= 1; dx++)
+							sum += energy[row + Math.floorMod(x + dx, w)];
+					}
+					float signalVariance = Math.max(sum / 9 - noiseVariance, 0);
+					band[y * w + x] *= signalVariance / (signalVariance + noiseVariance);
+				}
+			});
+
+			BufferPool.getInstance().release(energy);
+		});
+	}
+
+	// Modifies the detail coefficients of one subband in place.
+	private interface Shrinkage
+	{
+		public void apply(float[] band, int width, int height);
+	}
+
+	private static float[] denoise(float[] img, int width, int height, int numScales, Shrinkage shrinkage)
+	{
+		// Mirror extend the image so that the periodic transform does not introduce artifacts along the image edges.
+		final int extension = 1 << numScales;
+		final int w = width + 2 * extension;
+		final int h = height + 2 * extension;
+		final BufferPool bufferPool = BufferPool.getInstance();
+		float[] approx = JavaImageOps.mirrorExtend(img, width, height, extension);
+
+		float[][][] details = new float[numScales][][];
+
+		for (int scale = 0; scale < numScales; scale++)
+		{
+			float[][] bands = forward(approx, w, h, 1 << scale);
+			bufferPool.release(approx);  // the approximation of the previous scale is replaced by the reconstruction below
+			approx = bands[0];
+			details[scale] = bands;
+			for (int band = 1; band < 4; band++)
+				shrinkage.apply(bands[band], w, h);
+		}
+
+		for (int scale = numScales - 1; scale >= 0; scale--)
+		{
+			details[scale][0] = approx;
+			approx = inverse(details[scale], w, h, 1 << scale);
+			for (float[] band : details[scale])
+				bufferPool.release(band);
+		}
+
+		float[] denoised = JavaImageOps.crop(approx, w, extension, extension, width, height);
+		bufferPool.release(approx);
+		return denoised;
+	}
+
+	// One level of the undecimated Haar transform with filter dilation s (periodic boundaries).
+	// Returns the LL, LH, HL and HH subbands.
+	private static float[][] forward(float[] a, int w, int h, int s)
+	{
+		final int n = w * h;
+		final BufferPool bufferPool = BufferPool.getInstance();
+		float[] lo = bufferPool.borrowFloats(n);
+		float[] hi = bufferPool.borrowFloats(n);
+
+		JavaImageOps.parallelFor(h, y -> {
+			for (int x = 0; x < w; x++)
+			{
+				float v0 = a[y * w + x];
+				float v1 = a[y * w + (x + s) % w];
+				lo[y * w + x] = (v0 + v1) * invSqrt2;
+				hi[y * w + x] = (v0 - v1) * invSqrt2;
+			}
+		});
+
+		float[] ll = bufferPool.borrowFloats(n);
+		float[] lh = bufferPool.borrowFloats(n);
+		float[] hl = bufferPool.borrowFloats(n);
+		float[] hh = bufferPool.borrowFloats(n);
+
+		JavaImageOps.parallelFor(h, y -> {
+			int y1 = ((y + s) % h) * w;
+			for (int x = 0; x < w; x++)
+			{
+				int p = y * w + x;
+				ll[p] = (lo[p] + lo[y1 + x]) * invSqrt2;
+				lh[p] = (lo[p] - lo[y1 + x]) * invSqrt2;
+				hl[p] = (hi[p] + hi[y1 + x]) * invSqrt2;
+				hh[p] = (hi[p] - hi[y1 + x]) * invSqrt2;
+			}
+		});
+
+		bufferPool.release(lo);
+		bufferPool.release(hi);
+
+		float[][] bands = { ll, lh, hl, hh };
+		return bands;
+	}
+
+	// Inverse of forward(): each pixel is the average of its two reconstructions in each direction.
+	private static float[] inverse(float[][] bands, int w, int h, int s)
+	{
+		final int n = w * h;
+		final float[] ll = bands[0], lh = bands[1], hl = bands[2], hh = bands[3];
+		final float norm = 0.5f * invSqrt2;
+
+		final BufferPool bufferPool = BufferPool.getInstance();
+		float[] lo = bufferPool.borrowFloats(n);
+		float[] hi = bufferPool.borrowFloats(n);
+
+		JavaImageOps.parallelFor(h, y -> {
+			int y1 = ((y - s + h) % h) * w;
+			for (int x = 0; x < w; x++)
+			{
+				int p = y * w + x;
+				int q = y1 + x;
+				lo[p] = ((ll[p] + lh[p]) + (ll[q] - lh[q])) * norm;
+				hi[p] = ((hl[p] + hh[p]) + (hl[q] - hh[q])) * norm;
+			}
+		});
+
+		float[] a = bufferPool.borrowFloats(n);
+
+		JavaImageOps.parallelFor(h, y -> {
+			for (int x = 0; x < w; x++)
+			{
+				int p = y * w + x;
+				int q = y * w + (x - s + w) % w;
+				a[p] = ((lo[p] + hi[p]) + (lo[q] - hi[q])) * norm;
+			}
+		});
+
+		bufferPool.release(lo);
+		bufferPool.release(hi);
+		return a;
+	}
+}
@@ -0,0 +1,98 @@
+package be.vib.imagej;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// LatencyHistogram counts durations (in nanoseconds) in logarithmic buckets, so that percentiles can be
+// estimated without keeping every sample. Each power of two is split in 4 buckets, so the estimates
+// are within 25% of the true value, from nanoseconds up to centuries.
+//
+// Several threads can record durations at the same time, recording never blocks.
+public class LatencyHistogram
+{
+	private static final int subBucketBits = 2;  // 4 buckets per power of two
+	private static final int numBuckets = 64 << subBucketBits;
+
+	private final AtomicLongArray counts = new AtomicLongArray(numBuckets);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong(0);
+
+	public void record(long nanos)
+	{
+		nanos = Math.max(0, nanos);  // System.nanoTime() is monotonic, but be careful anyway
+
+		counts.incrementAndGet(bucket(nanos));
+		count.increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	public long getTotalNanos()
+	{
+		return totalNanos.sum();
+	}
+
+	public long getMaxNanos()
+	{
+		return maxNanos.get();
+	}
+
+	public double getMeanNanos()
+	{
+		final long n = getCount();
+		return (n == 0) ? 0 : (double)getTotalNanos() / n;
+	}
+
+	// Returns an upper bound of the duration that percentile % of the recorded durations do not exceed,
+	// or 0 if nothing was recorded.
+	public long getPercentileNanos(double percentile)
+	{
+		assert(percentile >= 0 && percentile <= 100);
+
+		final long n = getCount();
+		if (n == 0)
+			return 0;
+
+		final long target = Math.max(1, (long)Math.ceil(percentile / 100.0 * n));
+
+		long cumul = 0;
+		for (int b = 0; b < numBuckets; b++)
+		{
+			cumul += counts.get(b);
+			if (cumul >= target)
+				return Math.min(bucketUpperBound(b), getMaxNanos());
+		}
+
+		return getMaxNanos();  // samples recorded while we were counting
+	}
+
+	// Durations below 4 ns have a bucket each. Larger durations are bucketed by their highest bit
+	// and the two bits that follow it.
+	private static int bucket(long nanos)
+	{
+		if (nanos < (1 << subBucketBits))
+			return (int)nanos;
+
+		final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		final int subBucket = (int)(nanos >>> (exponent - subBucketBits)) & ((1 << subBucketBits) - 1);
+		return ((exponent - subBucketBits + 1) << subBucketBits) + subBucket;
+	}
+
+	private static long bucketUpperBound(int bucket)
+	{
+		if (bucket < (1 << subBucketBits))
+			return bucket;
+
+		final int exponent = (bucket >> subBucketBits) + subBucketBits - 1;
+		final int subBucket = bucket & ((1 << subBucketBits) - 1);
+		final long lowerBound = (1L << exponent) + ((long)subBucket << (exponent - subBucketBits));
+		return lowerBound + (1L << (exponent - subBucketBits)) - 1;
+	}
+}
@@ -0,0 +1,526 @@
+package be.vib.imagej;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// A SliceSource that reads the slices of an uncompressed TIFF (classic or BigTIFF) or raw image stack
+// via memory mapping (FileChannel.map). Only the slices that are being denoised are paged in, so stacks
+// that are many times larger than the Java heap can be denoised (combine with a TiffSliceSink or RawSliceSink).
+//
+// When a slice is requested, the next few slices are read in the background on a separate thread,
+// so that the denoising workers do not have to wait for the disk. The workers may request the slices
+// slightly out of order (DenoiseEngine.Mode.PARALLEL), so a prefetched slice is kept until it is requested,
+// and a slice that was already requested is not read ahead again. Requesting a slice a second time
+// starts a new pass over the stack.
+public class MappedSliceSource implements SliceSource
+{
+	private static final int DEFAULT_PREFETCH_DISTANCE = 2;
+
+	private final FileChannel channel;
+	private final int width;
+	private final int height;
+	private final int bitDepth;
+	private final long[] sliceOffsets;  // file offset of the pixels of each slice
+	private final ByteOrder byteOrder;
+
+	private int prefetchDistance = DEFAULT_PREFETCH_DISTANCE; // number of slices to read ahead
+
+	// Guarded by synchronized (this).
+	private final Map<Integer, Future<ImageProcessor>> prefetched = new HashMap<Integer, Future<ImageProcessor>>();
+	private final BitSet requested = new BitSet();  // the slices requested in the current pass
+
+	private final ExecutorService prefetcher = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "DenoisEM slice prefetcher");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private MappedSliceSource(FileChannel channel, int width, int height, int bitDepth, long[] sliceOffsets, ByteOrder byteOrder)
+	{
+		this.channel = channel;
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		this.sliceOffsets = sliceOffsets;
+		this.byteOrder = byteOrder;
+	}
+
+	// Opens a raw image stack: numSlices slices of width x height pixels of 8 or 16 bits,
+	// stored one after the other starting at the given file offset.
+	public static MappedSliceSource openRaw(File file, int width, int height, int bitDepth, int numSlices, long offset, ByteOrder byteOrder) throws IOException
+	{
+		checkBitDepth(bitDepth);
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+		final long sliceBytes = (long)width * height * (bitDepth / 8);
+		if (offset + numSlices * sliceBytes > channel.size())
+		{
+			channel.close();
+			throw new IOException(file + " is too small for " + numSlices + " slices of " + width + " x " + height + " pixels.");
+		}
+
+		long[] sliceOffsets = new long[numSlices];
+		for (int i = 0; i < numSlices; i++)
+			sliceOffsets[i] = offset + i * sliceBytes;
+
+		return new MappedSliceSource(channel, width, height, bitDepth, sliceOffsets, byteOrder);
+	}
+
+	// Opens an uncompressed, single channel 8- or 16-bit TIFF or BigTIFF stack, e.g. as written by ImageJ or TiffSliceSink.
+	// Throws an IOException if the file cannot be memory mapped because it is compressed, or its strips are not contiguous.
+	public static MappedSliceSource openTiff(File file) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try
+		{
+			return new TiffParser(channel, file).parse();
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	public int getPrefetchDistance()
+	{
+		return prefetchDistance;
+	}
+
+	// Sets the number of slices that are read ahead. 0 disables prefetching.
+	public void setPrefetchDistance(int prefetchDistance)
+	{
+		this.prefetchDistance = prefetchDistance;
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return width;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return height;
+	}
+
+	@Override
+	public int getBitDepth()
+	{
+		return bitDepth;
+	}
+
+	@Override
+	public int getNumSlices()
+	{
+		return sliceOffsets.length;
+	}
+
+	@Override
+	public ImageProcessor getSlice(int n) throws IOException
+	{
+		Future<ImageProcessor> future = prefetch(n);
+
+		if (future == null)
+			return readSlice(n);
+
+		try
+		{
+			return future.get();
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading slice " + n);
+		}
+	}
+
+	@Override
+	public ImageProcessor getSliceWithoutPrefetch(int n) throws IOException
+	{
+		return readSlice(n);
+	}
+
+	// Reads only the requested rows, each with a separate positional read. The operating system reads whole pages
+	// (and may read ahead), so rows that are shorter than a page cost about a page of I/O each.
+	@Override
+	public ImageProcessor getSampledRows(int n, int rowStep) throws IOException
+	{
+		final int numRows = (height + rowStep - 1) / rowStep;
+		final int rowBytes = width * (bitDepth / 8);
+		
+		ByteBuffer buffer = ByteBuffer.allocate(numRows * rowBytes);
+		for (int r = 0; r < numRows; r++)
+		{
+			final long rowOffset = sliceOffsets[n - 1] + (long)r * rowStep * rowBytes;
+			buffer.limit((r + 1) * rowBytes);
+			while (buffer.hasRemaining())
+			{
+				if (channel.read(buffer, rowOffset + buffer.position() - r * rowBytes) < 0)
+					throw new IOException("Unexpected end of file while reading slice " + n);
+			}
+		}
+		buffer.flip();
+		buffer.order(byteOrder);
+		
+		return toImage(buffer, width, numRows);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		synchronized (this)
+		{
+			cancelPrefetches();
+		}
+		prefetcher.shutdownNow();
+		channel.close();
+	}
+
+	// Marks slice n as requested, starts reading the slices following it in the background,
+	// and returns the future of slice n if it was prefetched (null otherwise).
+	private synchronized Future<ImageProcessor> prefetch(int n)
+	{
+		if (requested.get(n))
+		{
+			// A new pass over the stack: the slices read ahead for the previous pass are not needed anymore.
+			cancelPrefetches();
+			requested.clear();
+		}
+
+		requested.set(n);
+		Future<ImageProcessor> future = prefetched.remove(n);
+
+		for (int k = n + 1; k <= Math.min(n + prefetchDistance, getNumSlices()); k++)
+		{
+			final int slice = k;
+			if (!requested.get(slice))
+				prefetched.computeIfAbsent(slice, s -> prefetcher.submit(() -> readSlice(slice)));
+		}
+
+		return future;
+	}
+
+	// Called with the lock on this held.
+	private void cancelPrefetches()
+	{
+		// Not interrupted: interrupting a thread in a FileChannel operation closes the channel.
+		for (Future<ImageProcessor> future : prefetched.values())
+			future.cancel(false);
+		prefetched.clear();
+	}
+
+	private ImageProcessor readSlice(int n) throws IOException
+	{
+		final int numPixels = width * height;
+
+		// Map just this slice. The mapping is released (by the garbage collector) once the pixels are copied.
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, sliceOffsets[n - 1], (long)numPixels * (bitDepth / 8));
+		buffer.order(byteOrder);
+
+		return toImage(buffer, width, height);
+	}
+
+	// Copies the pixels of an image of the source's bit depth from the buffer, whose byte order must be set.
+	private ImageProcessor toImage(ByteBuffer buffer, int width, int height)
+	{
+		final int numPixels = width * height;
+
+		if (bitDepth == 8)
+		{
+			byte[] pixels = new byte[numPixels];
+			buffer.get(pixels);
+			return new ByteProcessor(width, height, pixels);
+		}
+		else
+		{
+			short[] pixels = new short[numPixels];
+			buffer.asShortBuffer().get(pixels);
+			return new ShortProcessor(width, height, pixels, null);
+		}
+	}
+
+	private static void checkBitDepth(int bitDepth) throws IOException
+	{
+		if (bitDepth != 8 && bitDepth != 16)
+			throw new IOException("Only 8- and 16-bit images are supported, not " + bitDepth + "-bit.");
+	}
+
+	// TiffParser walks the chain of image file directories (IFDs) of a TIFF or BigTIFF file
+	// and collects the offset of the pixel data of each slice.
+	private static class TiffParser
+	{
+		// TIFF tags
+		private static final int IMAGE_WIDTH = 256;
+		private static final int IMAGE_LENGTH = 257;
+		private static final int BITS_PER_SAMPLE = 258;
+		private static final int COMPRESSION = 259;
+		private static final int IMAGE_DESCRIPTION = 270;
+		private static final int STRIP_OFFSETS = 273;
+		private static final int SAMPLES_PER_PIXEL = 277;
+		private static final int STRIP_BYTE_COUNTS = 279;
+
+		private final FileChannel channel;
+		private final File file;
+
+		private ByteOrder byteOrder;
+		private boolean bigTiff;
+
+		TiffParser(FileChannel channel, File file)
+		{
+			this.channel = channel;
+			this.file = file;
+		}
+
+		MappedSliceSource parse() throws IOException
+		{
+			ByteBuffer header = read(0, 16);
+
+			if (header.get(0) == 'I' && header.get(1) == 'I')
+				byteOrder = ByteOrder.LITTLE_ENDIAN;
+			else if (header.get(0) == 'M' && header.get(1) == 'M')
+				byteOrder = ByteOrder.BIG_ENDIAN;
+			else
+				throw new IOException(file + " is not a TIFF file.");
+
+			header.order(byteOrder);
+
+			final int version = header.getShort(2);
+			if (version != 42 && version != 43)
+				throw new IOException(file + " is not a TIFF file.");
+
+			bigTiff = (version == 43);
+
+			long ifdOffset = bigTiff ? header.getLong(8) : Integer.toUnsignedLong(header.getInt(4));
+
+			int width = -1, height = -1, bitDepth = -1;
+			String description = null;
+
+			List<Long> sliceOffsets = new ArrayList<Long>();
+			Set<Long> visited = new HashSet<Long>();
+
+			while (ifdOffset != 0)
+			{
+				if (!visited.add(ifdOffset))
+					throw new IOException(file + " is corrupt: its image file directories form a loop.");
+
+				final int entrySize = bigTiff ? 20 : 12;
+				final int countSize = bigTiff ? 8 : 2;
+
+				ByteBuffer count = read(ifdOffset, countSize);
+				final int numEntries = (int)(bigTiff ? count.getLong(0) : Short.toUnsignedInt(count.getShort(0)));
+
+				ByteBuffer ifd = read(ifdOffset + countSize, numEntries * entrySize + (bigTiff ? 8 : 4));  // entries + offset of the next IFD
+
+				int w = -1, h = -1, bits = 1, compression = 1, samplesPerPixel = 1;
+				long[] stripOffsets = null, stripByteCounts = null;
+
+				for (int i = 0; i < numEntries; i++)
+				{
+					final int pos = i * entrySize;
+					final int tag = Short.toUnsignedInt(ifd.getShort(pos));
+					switch (tag)
+					{
+						case IMAGE_WIDTH:       w = (int)readValues(ifd, pos)[0]; break;
+						case IMAGE_LENGTH:      h = (int)readValues(ifd, pos)[0]; break;
+						case BITS_PER_SAMPLE:   bits = (int)readValues(ifd, pos)[0]; break;
+						case COMPRESSION:       compression = (int)readValues(ifd, pos)[0]; break;
+						case SAMPLES_PER_PIXEL: samplesPerPixel = (int)readValues(ifd, pos)[0]; break;
+						case STRIP_OFFSETS:     stripOffsets = readValues(ifd, pos); break;
+						case STRIP_BYTE_COUNTS: stripByteCounts = readValues(ifd, pos); break;
+						case IMAGE_DESCRIPTION:
+							if (description == null)
+								description = readString(ifd, pos);
+							break;
+						default:
+							break;
+					}
+				}
+
+				if (compression != 1 || samplesPerPixel != 1 || stripOffsets == null || stripByteCounts == null)
+					throw new IOException(file + " cannot be memory mapped: only uncompressed, single channel TIFF files are supported.");
+
+				checkBitDepth(bits);
+
+				if (sliceOffsets.isEmpty())
+				{
+					width = w;
+					height = h;
+					bitDepth = bits;
+				}
+				else if (w != width || h != height || bits != bitDepth)
+				{
+					throw new IOException(file + " cannot be memory mapped: all slices must have the same size and bit depth.");
+				}
+
+				// The strips of a slice must be stored one after the other, so that the slice can be mapped in one piece.
+				for (int i = 1; i < stripOffsets.length; i++)
+					if (stripOffsets[i] != stripOffsets[i - 1] + stripByteCounts[i - 1])
+						throw new IOException(file + " cannot be memory mapped: the image strips are not contiguous.");
+
+				sliceOffsets.add(stripOffsets[0]);
+
+				ifdOffset = bigTiff ? ifd.getLong(numEntries * entrySize) : Integer.toUnsignedLong(ifd.getInt(numEntries * entrySize));
+			}
+
+			if (sliceOffsets.isEmpty())
+				throw new IOException(file + " does not contain any images.");
+
+			// ImageJ writes stacks larger than 4 GB as classic TIFF with a single IFD, followed by the pixels of all
+			// slices, one after the other. The number of slices is then only found in the ImageJ image description.
+			final int numImages = imageJNumImages(description);
+			if (sliceOffsets.size() == 1 && numImages > 1)
+			{
+				final long sliceBytes = (long)width * height * (bitDepth / 8);
+				if (sliceOffsets.get(0) + numImages * sliceBytes <= channel.size())
+				{
+					for (int i = 1; i < numImages; i++)
+						sliceOffsets.add(sliceOffsets.get(0) + i * sliceBytes);
+				}
+			}
+
+			long[] offsets = new long[sliceOffsets.size()];
+			for (int i = 0; i < offsets.length; i++)
+				offsets[i] = sliceOffsets.get(i);
+
+			return new MappedSliceSource(channel, width, height, bitDepth, offsets, byteOrder);
+		}
+
+		// Returns the values of the IFD entry that starts at position pos in the ifd buffer.
+		// Only the integer field types are supported.
+		private long[] readValues(ByteBuffer ifd, int pos) throws IOException
+		{
+			final int type = Short.toUnsignedInt(ifd.getShort(pos + 2));
+			final int count = (int)(bigTiff ? ifd.getLong(pos + 4) : Integer.toUnsignedLong(ifd.getInt(pos + 4)));
+			final int valuePos = pos + (bigTiff ? 12 : 8);
+
+			final int typeSize = typeSize(type);
+
+			// The values are stored in the entry itself if they fit, otherwise the entry holds their file offset.
+			ByteBuffer values;
+			int start;
+			if ((long)count * typeSize <= (bigTiff ? 8 : 4))
+			{
+				values = ifd;
+				start = valuePos;
+			}
+			else
+			{
+				long offset = bigTiff ? ifd.getLong(valuePos) : Integer.toUnsignedLong(ifd.getInt(valuePos));
+				values = read(offset, count * typeSize);
+				start = 0;
+			}
+
+			long[] result = new long[count];
+			for (int i = 0; i < count; i++)
+			{
+				final int p = start + i * typeSize;
+				switch (type)
+				{
+					case 1:  result[i] = Byte.toUnsignedInt(values.get(p)); break;  // BYTE
+					case 3:  result[i] = Short.toUnsignedInt(values.getShort(p)); break;  // SHORT
+					case 4:  result[i] = Integer.toUnsignedLong(values.getInt(p)); break;  // LONG
+					default: result[i] = values.getLong(p); break;  // LONG8
+				}
+			}
+			return result;
+		}
+
+		private String readString(ByteBuffer ifd, int pos) throws IOException
+		{
+			final int count = (int)(bigTiff ? ifd.getLong(pos + 4) : Integer.toUnsignedLong(ifd.getInt(pos + 4)));
+			final int valuePos = pos + (bigTiff ? 12 : 8);
+
+			byte[] chars = new byte[count];
+			if (count <= (bigTiff ? 8 : 4))
+			{
+				for (int i = 0; i < count; i++)
+					chars[i] = ifd.get(valuePos + i);
+			}
+			else
+			{
+				long offset = bigTiff ? ifd.getLong(valuePos) : Integer.toUnsignedLong(ifd.getInt(valuePos));
+				read(offset, count).get(chars);
+			}
+			return new String(chars, StandardCharsets.US_ASCII);
+		}
+
+		private int typeSize(int type) throws IOException
+		{
+			switch (type)
+			{
+				case 1:  return 1;  // BYTE
+				case 3:  return 2;  // SHORT
+				case 4:  return 4;  // LONG
+				case 16: return 8;  // LONG8
+				default:
+					throw new IOException(file + " has an unexpected TIFF field type " + type + ".");
+			}
+		}
+
+		private ByteBuffer read(long position, int size) throws IOException
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(size).order(byteOrder != null ? byteOrder : ByteOrder.BIG_ENDIAN);
+			while (buffer.hasRemaining())
+			{
+				if (channel.read(buffer, position + buffer.position()) < 0)
+					throw new IOException(file + " is truncated.");
+			}
+			buffer.flip();
+			return buffer;
+		}
+
+		// Returns the number of images from an ImageJ image description ("ImageJ=...\nimages=n\n..."), or 0 if not found.
+		private static int imageJNumImages(String description)
+		{
+			if (description == null || !description.startsWith("ImageJ"))
+				return 0;
+
+			for (String line : description.split("\n"))
+			{
+				if (line.startsWith("images="))
+				{
+					try
+					{
+						return Integer.parseInt(line.substring("images=".length()).trim());
+					}
+					catch (NumberFormatException e)
+					{
+						return 0;
+					}
+				}
+			}
+			return 0;
+		}
+	}
+}
@@ -3,11 +3,9 @@ package be.vib.imagej;
 import java.awt.Rectangle;
 import java.util.concurrent.Callable;
 
-import be.vib.bits.QFunction;
-import be.vib.bits.QValue;
 import ij.process.ImageProcessor;
 
-// A Java wrapper around a MAD (median absolute deviation) noise estimator implemented in Quasar.
+// A Java wrapper around a MAD (median absolute deviation) noise estimator implemented by the current compute backend.
 public class NoiseEstimator implements Callable<Float>
 {
 	private ImageProcessor image;
@@ -36,18 +34,11 @@ public class NoiseEstimator implements Callable<Float>
 		return imageCopy.crop();		
 	}
 
+	// Important: call() *must* be run via ComputeBackends.getCurrent().submit()
 	@Override
 	public Float call() throws Exception
 	{		
-		final boolean toByteRange = true;  // the Quasar MAD noise estimator prefers a byte range as pixel data
-		QValue noisyImageCube = normalizer.normalize(image, toByteRange);
-		
-		QFunction estimateNoise = new QFunction("estimate_noise_mad(mat,int)");			
-		QValue noise = estimateNoise.apply(noisyImageCube, new QValue(2));
-		
-		noisyImageCube.dispose();
-		
-		return noise.getFloat() / 255.0f;  // Return the noise standard deviation, for image pixel intensities normalized to be in [0,1]	
+		return ComputeBackends.getCurrent().estimateNoise(image, normalizer);  // noise standard deviation, for image pixel intensities normalized to be in [0,1]
 	}
 
 }
@@ -162,6 +162,17 @@ public class NonLocalMeansParams extends DenoiseParams
     	return props;
     }
 
+	@Override
+	public void setParameterList(Properties props)
+	{
+		h = getFloat(props, "nonlocalmeans.h", h);
+		halfBlockSize = getInt(props, "nonlocalmeans.halfblocksize", halfBlockSize);
+		halfSearchSize = getInt(props, "nonlocalmeans.halfsearchsize", halfSearchSize);
+		deconvolution = getBoolean(props, "nonlocalmeans.deconvolution", deconvolution);
+		deconvolutionParams = new DeconvolutionParams(getFloat(props, "nonlocalmeans.deconvolution.lambda", deconvolutionParams.lambda),
+		                                              getInt(props, "nonlocalmeans.deconvolution.numiterations", deconvolutionParams.numIterations));
+	}
+
 	@Override
 	public String toString()
 	{
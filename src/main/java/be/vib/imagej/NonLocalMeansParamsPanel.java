@@ -40,6 +40,7 @@ class NonLocalMeansParamsPanel extends DenoiseParamsPanelBase
 		hPair = new SliderFieldPair(0, 100, floatFormat, params.hMin, params.hMax);
 		hPair.setValue(params.h);
 		hPair.addPropertyChangeListener(e -> { params.h = hPair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(hPair, (p, value) -> ((NonLocalMeansParams)p).h = value);
 		
 		JSlider hSlider = hPair.getSlider();
 		
@@ -84,6 +85,7 @@ class NonLocalMeansParamsPanel extends DenoiseParamsPanelBase
 		blockSizePair = new SliderSpinnerPair(NonLocalMeansParams.halfBlockSizeMin, NonLocalMeansParams.halfBlockSizeMax);
 		blockSizePair.setValue(params.halfBlockSize);
 		blockSizePair.addPropertyChangeListener(e -> { params.halfBlockSize = blockSizePair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(blockSizePair, (p, value) -> ((NonLocalMeansParams)p).halfBlockSize = value);
 		
 		JSlider blockSizeSlider = blockSizePair.getSlider();
 		
@@ -97,6 +99,7 @@ class NonLocalMeansParamsPanel extends DenoiseParamsPanelBase
 		searchSizePair = new SliderSpinnerPair(NonLocalMeansParams.halfSearchSizeMin, NonLocalMeansParams.halfSearchSizeMax);
 		searchSizePair.setValue(params.halfSearchSize);
 		searchSizePair.addPropertyChangeListener(e -> { params.halfSearchSize = searchSizePair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(searchSizePair, (p, value) -> ((NonLocalMeansParams)p).halfSearchSize = value);
 		
 		JSlider searchSizeSlider = searchSizePair.getSlider();
 		
@@ -9,6 +9,7 @@ import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JDialog;
 import javax.swing.JPanel;
 
@@ -30,6 +31,12 @@ public class PreferencesDialog extends JDialog
 	private JPanel createUI()
 	{
 		JPanel statsPanel = createImageStatisticsPanel();
+		JPanel normalizationPanel = createNormalizationPanel();
+		
+		JPanel centerPanel = new JPanel();
+		centerPanel.setLayout(new BoxLayout(centerPanel, BoxLayout.Y_AXIS));
+		centerPanel.add(statsPanel);
+		centerPanel.add(normalizationPanel);
 		
 		JButton okButton = new JButton("OK");
 		okButton.addActionListener(e -> dispose());
@@ -42,7 +49,7 @@ public class PreferencesDialog extends JDialog
 		JPanel panel = new JPanel();
 		panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
 		panel.setLayout(new BorderLayout(0, 10));					
-		panel.add(statsPanel, BorderLayout.CENTER);
+		panel.add(centerPanel, BorderLayout.CENTER);
 		panel.add(buttonPanel, BorderLayout.PAGE_END);
 		return panel;
 	}
@@ -70,6 +77,37 @@ public class PreferencesDialog extends JDialog
 		return panel;
 	}
 	
+	private JPanel createNormalizationPanel()
+	{
+		JPanel panel = new JPanel();
+		panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+		panel.setBorder(BorderFactory.createTitledBorder("Intensity normalization"));
+		
+		// Same order as SliceNormalizations.Mode
+		String[] modeNames = { "Based on the current slice", "Per slice", "Based on a few slices", "Based on all slices" };
+		
+		JComboBox<String> modeCombo = new JComboBox<String>(modeNames);
+		modeCombo.setSelectedIndex(getNormalizationMode(prefs).ordinal());
+		modeCombo.setToolTipText("<html>How the image intensities are normalized before denoising.<br>" +
+		                         "Per slice, or based on several slices, is more robust for stacks with a varying brightness.</html>");
+		modeCombo.addActionListener(e -> { prefs.put("normalization.mode", SliceNormalizations.Mode.values()[modeCombo.getSelectedIndex()].name()); savePrefs(); });
+		
+		panel.add(modeCombo);
+		return panel;
+	}
+	
+	public static SliceNormalizations.Mode getNormalizationMode(Preferences prefs)
+	{
+		try
+		{
+			return SliceNormalizations.Mode.valueOf(prefs.get("normalization.mode", SliceNormalizations.Mode.REFERENCE_SLICE.name()));
+		}
+		catch (IllegalArgumentException e)
+		{
+			return SliceNormalizations.Mode.REFERENCE_SLICE;
+		}
+	}
+	
 	private void savePrefs()
 	{
 		try
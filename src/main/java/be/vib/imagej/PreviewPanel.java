@@ -81,13 +81,25 @@ public class PreviewPanel extends JPanel
 		imagePanel.setImage(image);
 	}
 	
+	// A NaN estimate means that it is not known yet.
 	public void setNoiseEstimate(float noise)
 	{
-		noiseEstimateLabel.setText(String.format("Noise: %.3f", noise));
+		noiseEstimateLabel.setText(Float.isNaN(noise) ? "Noise: ..." : String.format("Noise: %.3f", noise));
 	}
 	
 	public void setBlurEstimate(float blur)
 	{
-		blurEstimateLabel.setText(String.format("Blur: %.3f", blur));
+		blurEstimateLabel.setText(Float.isNaN(blur) ? "Blur: ..." : String.format("Blur: %.3f", blur));
+	}
+	
+	// Returns true if the user wants to see the noise estimate. Unlike the label visibility, this can be asked on any thread.
+	public boolean isNoiseEstimateShown()
+	{
+		return preferences.getBoolean("imagestats.shownoise", false);
+	}
+	
+	public boolean isBlurEstimateShown()
+	{
+		return preferences.getBoolean("imagestats.showblur", false);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,563 @@
+package be.vib.imagej;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import be.vib.bits.JavaQuasarBridge;
+import be.vib.bits.QExecutor;
+import be.vib.bits.QFunction;
+import be.vib.bits.QUtils;
+import be.vib.bits.QValue;
+import ij.IJ;
+import ij.process.ImageProcessor;
+
+// The QuasarBackend runs the denoising algorithms from our .qlib through the Java Quasar bridge.
+// Quasar can only be used from the single Quasar thread, so all tasks are submitted to the QExecutor.
+public class QuasarBackend implements ComputeBackend
+{
+	private boolean initialized = false;
+	
+	// Quasar functions and host variables are looked up once and then reused for all tiles and slices.
+	// These maps are only accessed from the Quasar thread, so they need no synchronization.
+	private final Map<String, QFunction> functions = new HashMap<String, QFunction>();
+	private final Map<String, QValue> constants = new HashMap<String, QValue>();
+	
+	// Gaussian blur kernels for deconvolution, created with fgaussian() on first use and reused for all tiles.
+	// Only accessed from the Quasar thread too.
+	private final Map<BlurKernelKey, QValue> blurKernels = new HashMap<BlurKernelKey, QValue>();
+	private int blurKernelUsers = 0;  // see acquireBlurKernels(), guarded by synchronized (this)
+
+	@Override
+	public String getName()
+	{
+		return "quasar";
+	}
+
+	@Override
+	public String getReadableName()
+	{
+		return "Quasar (GPU)";
+	}
+
+	@Override
+	public synchronized void initialize() throws Exception
+	{
+		// Quasar can only be initialized (and released) a single time.
+		if (initialized)
+			return;
+
+		// Use the QUASAR_PATH environment variable to specify where to find the Quasar runtime.
+		// If this variable is set, then Quasar will be started from there.
+		// If this variable is not set, then set it to point to the Fiji.app\Quasar folder. A minimal Quasar should have been installed there.
+		String quasarPath = JavaQuasarBridge.getQuasarPath();
+		System.out.println("Querying: QUASAR_PATH=" + quasarPath);
+		if (quasarPath == null)
+		{
+			JavaQuasarBridge.setQuasarPath(getFijiQuasarPath());
+			System.out.println("QUASAR_PATH environment variable was not set, so using " + getFijiQuasarPath());
+		}
+		else
+		{
+			System.out.println("Using Quasar pointed to by existing environment variable QUASAR_PATH=" + quasarPath);
+		}
+
+		// Start the Quasar host
+		JavaQuasarBridge.startQuasar("cuda", false); // throws a RuntimeException on failure
+
+		// Schedule Quasar release for later, when the Java VM shuts down. This is ugly, but
+		// there doesn't seem to be any other obvious way to release Quasar "at the very end".
+		JavaQuasarBridge.addQuasarShutdownHook();
+
+		// Extract the .qlib file with our denoising Quasar code from our jar file into a temporary folder, and ask Quasar to load it.
+		JavaQuasarBridge.extractAndLoadModule("be.vib.imagej.QuasarBackend", "qlib/vib_denoising_algorithms.qlib", "vib_denoising_algorithms.qlib", "vib_em_denoising_");
+
+		initialized = true;
+	}
+
+	@Override
+	public synchronized boolean isInitialized()
+	{
+		return initialized;
+	}
+
+	private static String getFijiQuasarPath()
+	{
+		return IJ.getDir("imagej") + java.io.File.separator + "Quasar";
+	}
+
+	@Override
+	public <T> Future<T> submit(Callable<T> task)
+	{
+		return QExecutor.getInstance().submit(task);
+	}
+
+	@Override
+	public int getParallelism()
+	{
+		return 1;  // all tasks run on the single Quasar thread
+	}
+
+	@Override
+	public long getMemoryBudget()
+	{
+		// The Java Quasar bridge does not tell us how much memory is available on the graphics card,
+		// so use a conservative default that can be overridden with -Dbe.vib.denoisem.gpuMemoryMB=n
+		return Long.getLong("be.vib.denoisem.gpuMemoryMB", 128) * 1024 * 1024;
+	}
+
+	// Returns the Quasar function with the given signature, e.g. "gaussian_filter(mat,scalar,int,string)".
+	// Must be called on the Quasar thread.
+	private QFunction function(String signature)
+	{
+		QFunction function = functions.get(signature);
+		if (function == null)
+		{
+			function = new QFunction(signature);
+			functions.put(signature, function);
+		}
+		return function;
+	}
+	
+	// Returns the constant Quasar value with the given name, creating it with the given supplier the first time.
+	// The value must not be disposed by the caller. Must be called on the Quasar thread.
+	private QValue constant(String name, Supplier<QValue> supplier)
+	{
+		QValue value = constants.get(name);
+		if (value == null)
+		{
+			value = supplier.get();
+			constants.put(name, value);
+		}
+		return value;
+	}
+	
+	// Returns the (cached) size x size Gaussian blur kernel with standard deviation sigma.
+	// The kernel must not be disposed by the caller. Must be called on the Quasar thread.
+	private QValue blurKernel(int size, float sigma)
+	{
+		BlurKernelKey key = new BlurKernelKey(size, sigma);
+		QValue kernel = blurKernels.get(key);
+		if (kernel == null)
+		{
+			QFunction fgaussian = function("fgaussian(int,scalar)");
+			kernel = fgaussian.apply(new QValue(size), new QValue(sigma));
+			blurKernels.put(key, kernel);
+		}
+		return kernel;
+	}
+	
+	@Override
+	public synchronized void acquireBlurKernels()
+	{
+		blurKernelUsers++;
+	}
+	
+	@Override
+	public synchronized void releaseBlurKernels()
+	{
+		assert(blurKernelUsers > 0);
+		if (blurKernelUsers == 0 || --blurKernelUsers > 0)
+			return;
+		
+		// Dispose the kernels on the Quasar thread, after any task that may still be using them.
+		// Tasks of a user that acquires the kernels in the meantime simply recreate them.
+		submit(() -> {
+			for (QValue kernel : blurKernels.values())
+				kernel.dispose();
+			blurKernels.clear();
+			return null;
+		});
+	}
+	
+	// Copies the image to Quasar and normalizes its intensities (see ImageNormalizer) in a single kernel pass.
+	// Must be called on the Quasar thread.
+	private QValue normalize(ImageProcessor image, ImageNormalizer normalizer, boolean toByteRange)
+	{
+		final long startNanos = System.nanoTime();
+		
+		QValue imageCube = ImageUtils.newCubeFromImage(image);
+		if (normalizer.isIdentity(toByteRange))
+		{
+			DenoiseMetrics.recordTileStage(DenoiseMetrics.Stage.NORMALIZE, startNanos);
+			return imageCube;
+		}
+		
+		QFunction normalize = function("normalize_intensities(mat,scalar,scalar,scalar)");
+		QValue normalizedCube = normalize.apply(imageCube,
+		                                        new QValue(normalizer.getOffset()),
+		                                        new QValue(normalizer.getScale(toByteRange)),
+		                                        new QValue(toByteRange ? 255.0f : 1.0f));
+		
+		imageCube.dispose();
+		
+		DenoiseMetrics.recordTileStage(DenoiseMetrics.Stage.NORMALIZE, startNanos);
+		
+		return normalizedCube;
+	}
+	
+	// Maps the normalized intensities back to the intensity range of the original image, rounds them
+	// and clamps them to 8 or 16 bit in a single kernel pass, and copies the result to a new image of the same type.
+	// Must be called on the Quasar thread.
+	private ImageProcessor denormalize(ImageProcessor image, ImageNormalizer normalizer, QValue cube, boolean fromByteRange)
+	{
+		final long startNanos = System.nanoTime();
+		
+		QFunction denormalize = function("denormalize_intensities(mat,scalar,scalar,scalar)");
+		QValue imageCube = denormalize.apply(cube,
+		                                     new QValue(normalizer.getInverseScale(fromByteRange)),
+		                                     new QValue(normalizer.getOffset()),
+		                                     new QValue(ImageUtils.bitRange(image)));
+		
+		ImageProcessor denormalizedImage = ImageUtils.newImageFromCube(image, imageCube);
+		
+		imageCube.dispose();
+		
+		DenoiseMetrics.recordTileStage(DenoiseMetrics.Stage.DENORMALIZE, startNanos);
+		
+		return denormalizedImage;
+	}
+	
+	@Override
+	public ImageProcessor gaussian(ImageProcessor image, ImageNormalizer normalizer, GaussianParams params)
+	{
+		QFunction gaussian = function("gaussian_filter(mat,scalar,int,string)");
+
+		final boolean byteRange = false; // normalize to/from [0,1]
+
+		QValue noisyImageCube = normalize(image, normalizer, byteRange);
+
+		QValue denoisedImageCube = gaussian.apply(noisyImageCube,
+							                      new QValue(params.sigma),
+							                      new QValue(0),
+							                      new QValue("mirror"));
+
+		noisyImageCube.dispose();
+
+		ImageProcessor denoisedImage = denormalize(image, normalizer, denoisedImageCube, byteRange);
+
+		denoisedImageCube.dispose();
+
+		return denoisedImage;
+	}
+
+	@Override
+	public ImageProcessor bilateral(ImageProcessor image, ImageNormalizer normalizer, BilateralParams params)
+	{
+		QFunction bilateralFilter = function("bilateral_filter_denoise(cube,scalar,scalar,int)");
+
+		final boolean byteRange = true;  // bilateral filter expects values in [0,255]
+		QValue noisyImageCube = normalize(image, normalizer, byteRange);
+
+		QValue denoisedImageCube = bilateralFilter.apply(noisyImageCube,
+				                                         new QValue(params.rangeSigma),
+				                                         new QValue(params.spatialSigma),
+				                                         new QValue(255));
+
+		noisyImageCube.dispose();
+
+		ImageProcessor denoisedImage = denormalize(image, normalizer, denoisedImageCube, byteRange);
+
+		denoisedImageCube.dispose();
+
+		return denoisedImage;
+	}
+
+	@Override
+	public ImageProcessor anisotropicDiffusion(ImageProcessor image, ImageNormalizer normalizer, AnisotropicDiffusionParams params)
+	{
+		QFunction diffusion = function("denoise_anisotropic_diffusion(mat,int,scalar,scalar,string)");
+
+		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
+		QValue noisyImageCube = normalize(image, normalizer, byteRange);
+
+		QValue denoisedImageCube = diffusion.apply(noisyImageCube,
+				                                   new QValue(params.numIterations),
+				                                   new QValue(params.stepSize),
+				                                   new QValue(params.diffusionFactor),
+				                                   new QValue(params.diffusionFunction));
+
+		noisyImageCube.dispose();
+
+		ImageProcessor denoisedImage = denormalize(image, normalizer, denoisedImageCube, byteRange);
+
+		denoisedImageCube.dispose();
+
+		return denoisedImage;
+	}
+
+	@Override
+	public ImageProcessor blsgsm(ImageProcessor image, ImageNormalizer normalizer, BLSGSMParams params)
+	{
+		QFunction blsgsm = function("denoise_blsgsm(mat,int,scalar)");
+
+		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
+		QValue noisyImageCube = normalize(image, normalizer, byteRange);
+
+		QValue denoisedImageCube = blsgsm.apply(noisyImageCube,
+							                    new QValue(params.scales),
+							                    new QValue(params.sigma));
+
+		noisyImageCube.dispose();
+
+		ImageProcessor denoisedImage = denormalize(image, normalizer, denoisedImageCube, byteRange);
+
+		denoisedImageCube.dispose();
+
+		return denoisedImage;
+	}
+
+	@Override
+	public ImageProcessor waveletThresholding(ImageProcessor image, ImageNormalizer normalizer, WaveletThresholdingParams params)
+	{
+		QFunction waveletThresholding = function("wav_denoise(mat,int,mat,mat,string,scalar)");
+
+		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
+		QValue noisyImageCube = normalize(image, normalizer, byteRange);
+
+		QValue w1 = constant("filtercoeff_farras", () -> QValue.readhostVariable("filtercoeff_farras"));                // wavelet for the first scale (a 2x10 matrix)
+		QValue w2 = constant("filtercoeff_selcw(3,1)", () -> QValue.readhostVariable("filtercoeff_selcw").at(3, 1));  // wavelet for the other scales (a 2x12 matrix)
+
+		QValue denoisedImageCube = waveletThresholding.apply(noisyImageCube,
+							                                 new QValue(WaveletThresholdingParams.J),
+							                                 w1,
+							                                 w2,
+							                                 new QValue(WaveletThresholdingParams.thresholdType),
+							                                 new QValue(params.threshold));
+
+		noisyImageCube.dispose();
+
+		ImageProcessor denoisedImage = denormalize(image, normalizer, denoisedImageCube, byteRange);
+
+		denoisedImageCube.dispose();
+
+		return denoisedImage;
+	}
+
+	@Override
+	public ImageProcessor nonLocalMeans(ImageProcessor image, ImageNormalizer normalizer, NonLocalMeansParams params)
+	{
+		if (params.decorrelation)
+		{
+			assert(false);  // decorrelation is not offered to the user yet
+			return params.deconvolution ? nonLocalMeansCD(image, normalizer, params) : nonLocalMeansC(image, normalizer, params);
+		}
+		else
+		{
+			return params.deconvolution ? nonLocalMeansD(image, normalizer, params) : nonLocalMeans(image, normalizer, params.halfSearchSize, params.halfBlockSize, params.h);
+		}
+	}
+
+	private ImageProcessor nonLocalMeans(ImageProcessor image, ImageNormalizer normalizer, int halfSearchSize, int halfBlockSize, float h)
+	{
+		QFunction nlmeans = function("denoise_nlmeans(mat,int,int,scalar)");
+
+		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
+
+		QValue noisyImageCube = normalize(image, normalizer, byteRange);
+
+		QValue denoisedImageCube = nlmeans.apply(noisyImageCube,
+							                     new QValue(halfSearchSize),
+							                     new QValue(halfBlockSize),
+							                     new QValue(h));
+
+		noisyImageCube.dispose();
+
+		ImageProcessor denoisedImage = denormalize(image, normalizer, denoisedImageCube, byteRange);
+
+		denoisedImageCube.dispose();
+
+		return denoisedImage;
+	}
+
+	private ImageProcessor nonLocalMeansD(ImageProcessor image, ImageNormalizer normalizer, NonLocalMeansParams params)
+	{
+		QFunction nlmeansD = function("deconv_nlmeans(mat,mat,scalar,int,int,int,scalar)");
+
+		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
+
+		QValue noisyImageCube = normalize(image, normalizer, byteRange);
+
+		QValue blurKernel = blurKernel(NonLocalMeansParams.DeconvolutionParams.blurKernelSize, NonLocalMeansParams.DeconvolutionParams.blurKernelSigma);
+
+		QValue denoisedImageCube = nlmeansD.apply(noisyImageCube,
+  						                          blurKernel,
+							                      new QValue(params.deconvolutionParams.lambda),
+							                      new QValue(params.deconvolutionParams.numIterations),
+							                      new QValue(params.halfSearchSize),
+							                      new QValue(params.halfBlockSize),
+							                      new QValue(params.h));
+
+		noisyImageCube.dispose();
+
+		ImageProcessor denoisedImage = denormalize(image, normalizer, denoisedImageCube, byteRange);
+
+		denoisedImageCube.dispose();
+
+		return denoisedImage;
+	}
+
+	private ImageProcessor nonLocalMeansCD(ImageProcessor image, ImageNormalizer normalizer, NonLocalMeansParams params)
+	{
+		assert(false); // decorrelation is not currently supported
+
+		QFunction nlmeansCD = function("deconv_nlmeans_c(mat,mat,scalar,int,int,int,scalar,mat)");
+
+		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
+
+		QValue noisyImageCube = normalize(image, normalizer, byteRange);
+
+		QValue blurKernel = blurKernel(NonLocalMeansParams.DeconvolutionParams.blurKernelSize, NonLocalMeansParams.DeconvolutionParams.blurKernelSigma);
+
+		QValue corrFilterInv = constant("emCorrFilterInv", () -> new QValue(NonLocalMeansParams.emCorrFilterInv));
+
+		QValue denoisedImageCube = nlmeansCD.apply(noisyImageCube,
+							                       blurKernel,
+							                       new QValue(params.deconvolutionParams.lambda),
+							                       new QValue(params.deconvolutionParams.numIterations),
+							                       new QValue(params.halfSearchSize),
+							                       new QValue(params.halfBlockSize),
+							                       new QValue(params.h),
+						                           corrFilterInv);
+
+		noisyImageCube.dispose();
+
+		ImageProcessor denoisedImage = denormalize(image, normalizer, denoisedImageCube, byteRange);
+
+		denoisedImageCube.dispose();
+
+		return denoisedImage;
+	}
+
+	private ImageProcessor nonLocalMeansC(ImageProcessor image, ImageNormalizer normalizer, NonLocalMeansParams params)
+	{
+		assert(false); // decorrelation is not currently supported
+
+		QFunction nlmeansSC = function("denoise_nlmeans_c(mat,int,int,scalar,mat)");
+
+		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
+
+		QValue noisyImageCube = normalize(image, normalizer, byteRange);
+
+		QValue corrFilterInv = constant("emCorrFilterInv", () -> new QValue(NonLocalMeansParams.emCorrFilterInv));
+
+		QValue denoisedImageCube = nlmeansSC.apply(noisyImageCube,
+							   				       new QValue(params.halfSearchSize),
+											       new QValue(params.halfBlockSize),
+											       new QValue(params.h),
+											       corrFilterInv);
+
+		noisyImageCube.dispose();
+
+		ImageProcessor denoisedImage = denormalize(image, normalizer, denoisedImageCube, byteRange);
+
+		denoisedImageCube.dispose();
+
+		return denoisedImage;
+	}
+
+	@Override
+	public ImageProcessor tikhonov(ImageProcessor image, ImageNormalizer normalizer, TikhonovParams params)
+	{
+		return params.deconvolution ? tikhonovDenoisingWithDeconvolution(image, normalizer, params) : tikhonovDenoising(image, normalizer, params);
+	}
+
+	private ImageProcessor tikhonovDenoising(ImageProcessor image, ImageNormalizer normalizer, TikhonovParams params)
+	{
+		QFunction tikhonov_denoise = function("tikhonov_denoise(mat,scalar,int)");
+
+		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
+		QValue noisyImageCube = normalize(image, normalizer, byteRange);
+
+		QValue denoisedImageCube = tikhonov_denoise.apply(noisyImageCube,
+										    	          new QValue(params.lambda),
+				                                          new QValue(params.numIterations));
+
+		noisyImageCube.dispose();
+
+		ImageProcessor denoisedImage = denormalize(image, normalizer, denoisedImageCube, byteRange);
+
+		denoisedImageCube.dispose();
+
+		return denoisedImage;
+	}
+
+	private ImageProcessor tikhonovDenoisingWithDeconvolution(ImageProcessor image, ImageNormalizer normalizer, TikhonovParams params)
+	{
+		QFunction tikhonov_denoise_deconvolution = function("tikhonov_denoise_dec(mat,mat,scalar,int)");
+
+		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
+		QValue noisyImageCube = normalize(image, normalizer, byteRange);
+
+		QValue blurKernel = blurKernel(TikhonovParams.blurKernelSize, params.sigma);
+
+		QValue denoisedImageCube = tikhonov_denoise_deconvolution.apply(noisyImageCube,
+												                        blurKernel,
+											                            new QValue(params.lambda),
+				                                                        new QValue(params.numIterations));
+
+		noisyImageCube.dispose();
+
+		ImageProcessor denoisedImage = denormalize(image, normalizer, denoisedImageCube, byteRange);
+
+		denoisedImageCube.dispose();
+
+		return denoisedImage;
+	}
+
+	@Override
+	public ImageProcessor totalVariation(ImageProcessor image, ImageNormalizer normalizer, TotalVariationParams params)
+	{
+		QFunction total_variation_denoise = function("total_variation_denoise(mat,scalar,int,scalar)");
+
+		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
+
+		QValue noisyImageCube = normalize(image, normalizer, byteRange);
+
+		QValue denoisedImageCube = total_variation_denoise.apply(noisyImageCube,
+                                                                 new QValue(params.lambda),
+				                                                 new QValue(params.numIterations),
+				                                                 new QValue(TotalVariationParams.alpha));
+
+		noisyImageCube.dispose();
+
+		ImageProcessor denoisedImage = denormalize(image, normalizer, denoisedImageCube, byteRange);
+
+		denoisedImageCube.dispose();
+
+		return denoisedImage;
+	}
+
+	@Override
+	public float estimateNoise(ImageProcessor image, ImageNormalizer normalizer)
+	{
+		final boolean toByteRange = true;  // the Quasar MAD noise estimator prefers a byte range as pixel data
+		QValue noisyImageCube = normalize(image, normalizer, toByteRange);
+
+		QFunction estimateNoise = function("estimate_noise_mad(mat,int)");
+		QValue noise = estimateNoise.apply(noisyImageCube, new QValue(2));
+
+		noisyImageCube.dispose();
+
+		return noise.getFloat() / 255.0f;  // Return the noise standard deviation, for image pixel intensities normalized to be in [0,1]
+	}
+
+	@Override
+	public float estimateBlur(ImageProcessor image)
+	{
+		QValue imageCube = ImageUtils.newCubeFromImage(image);
+
+		float r = ImageUtils.bitRange(image);
+
+		QUtils.inplaceDivide(imageCube, r);  // scale pixels values from [0, 255] or [0, 65535] down to [0, 1]
+
+		QFunction estimateBlur = function("blurMetric(mat)");
+		QValue blur = estimateBlur.apply(imageCube);
+
+		imageCube.dispose();
+
+		return blur.getFloat();
+	}
+}
@@ -0,0 +1,74 @@
+package be.vib.imagej;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import ij.process.ImageProcessor;
+
+// A SliceSink that streams the denoised slices to a raw file: the pixels of all slices, one after the other,
+// without any header. 16-bit pixels are written with the given byte order (ImageJ's File > Import > Raw...
+// assumes big-endian unless "Little-endian byte order" is checked).
+public class RawSliceSink implements SliceSink
+{
+	private final File file;
+	private final ByteOrder byteOrder;
+	private FileChannel channel;
+	
+	public RawSliceSink(File file, ByteOrder byteOrder)
+	{
+		this.file = file;
+		this.byteOrder = byteOrder;
+	}
+	
+	public RawSliceSink(File file)
+	{
+		this(file, ByteOrder.BIG_ENDIAN);
+	}
+	
+	@Override
+	public void open(int width, int height, int bitDepth, int numSlices, String info) throws IOException
+	{
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+	
+	@Override
+	public void addSlice(ImageProcessor slice) throws IOException
+	{
+		writeFully(channel, pixelBytes(slice, byteOrder));
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		if (channel != null)
+			channel.close();
+		channel = null;
+	}
+	
+	// Returns the pixels of an 8- or 16-bit image in a buffer, with 16-bit values in the given byte order.
+	static ByteBuffer pixelBytes(ImageProcessor slice, ByteOrder byteOrder)
+	{
+		Object pixels = slice.getPixels();
+		if (pixels instanceof byte[])
+		{
+			return ByteBuffer.wrap((byte[])pixels);
+		}
+		else
+		{
+			short[] shorts = (short[])pixels;
+			ByteBuffer buffer = ByteBuffer.allocate(2 * shorts.length).order(byteOrder);
+			buffer.asShortBuffer().put(shorts);
+			return buffer;
+		}
+	}
+	
+	static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+}
@@ -0,0 +1,13 @@
+package be.vib.imagej;
+
+import ij.process.ImageProcessor;
+
+// A SliceNormalization decides which ImageNormalizer the DenoiseEngine uses for each slice of a stack.
+// The normalizer maps the 8- or 16-bit pixel intensities to the range expected by the denoising algorithms,
+// and the denoised values back. See SliceNormalizations for the available strategies.
+public interface SliceNormalization
+{
+	// Returns the normalizer for the slice with the given (1-based) index, whose pixels are 'slice'.
+	// This method may be called from several threads at the same time.
+	public ImageNormalizer getNormalizer(int n, ImageProcessor slice);
+}
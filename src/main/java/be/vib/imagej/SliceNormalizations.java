@@ -0,0 +1,124 @@
+package be.vib.imagej;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+// SliceNormalizations creates the normalization strategies for denoising a stack:
+//
+// - REFERENCE_SLICE: all slices use the intensity percentiles of one reference slice (e.g. the slice shown in ImageJ).
+//   This is the classic behaviour, but it is fragile for stacks whose brightness drifts.
+// - PER_SLICE: each slice uses its own percentiles. They are computed when the slice is read for denoising,
+//   in the same pass, so no extra pass over the stack is needed.
+// - SAMPLED_SLICES: all slices use the percentiles of a few slices, evenly spread over the range.
+// - WHOLE_STACK: all slices use the percentiles of all slices in the range.
+//
+// The percentiles must be known before the first slice is normalized, so SAMPLED_SLICES and WHOLE_STACK read
+// a subsample of the slices up front: every k-th row of each slice (see SliceSource.getSampledRows()), so that
+// each slice contributes about samplesPerSlice pixels. The slice histograms are counted in parallel and merged
+// into one histogram. Only the sampled rows are held in memory.
+//
+// This pass is not free for WHOLE_STACK on a stack on disk: it reads a few rows of every slice in the range before
+// denoising starts, about max(samplesPerSlice pixels, one disk page per sampled row) per slice. For a stack of
+// 4096 x 4096 16-bit slices that is about 128 kB per slice (16 rows), instead of the 32 MB read for denoising it.
+// SAMPLED_SLICES reads the sampled rows of only a few slices.
+public class SliceNormalizations
+{
+	public enum Mode
+	{
+		REFERENCE_SLICE,
+		PER_SLICE,
+		SAMPLED_SLICES,
+		WHOLE_STACK
+	}
+	
+	// Number of slices used by SAMPLED_SLICES
+	private static final int numSampledSlices = 8;
+	
+	// Maximum total number of pixels counted for SAMPLED_SLICES and WHOLE_STACK, and the minimum per slice.
+	private static final long maxStackSamples = 1L << 26;
+	private static final long minSliceSamples = 1L << 16;
+	
+	private SliceNormalizations()
+	{
+	}
+	
+	// Returns a normalization that uses the same normalizer for all slices.
+	public static SliceNormalization fixed(ImageNormalizer normalizer)
+	{
+		return (n, slice) -> normalizer;
+	}
+	
+	// Returns a normalization where each slice is normalized based on its own intensities.
+	public static SliceNormalization perSlice()
+	{
+		return (n, slice) -> new ImageNormalizer(slice);
+	}
+	
+	// Returns a normalization based on the intensities of numSlices slices, evenly spread over the range.
+	public static SliceNormalization sampledSlices(SliceSource source, ImageRange range, int numSlices) throws IOException
+	{
+		final int rangeSize = range.getLast() - range.getFirst() + 1;
+		numSlices = Math.min(numSlices, rangeSize);
+		
+		int[] slices = new int[numSlices];
+		for (int i = 0; i < numSlices; i++)
+			slices[i] = range.getFirst() + (int)((2L * i + 1) * rangeSize / (2L * numSlices));  // the centers of numSlices equal parts of the range
+		
+		return fixed(new ImageNormalizer(stackHistogram(source, slices)));
+	}
+	
+	// Returns a normalization based on the intensities of all slices in the range.
+	public static SliceNormalization wholeStack(SliceSource source, ImageRange range) throws IOException
+	{
+		int[] slices = new int[range.getLast() - range.getFirst() + 1];
+		for (int i = 0; i < slices.length; i++)
+			slices[i] = range.getFirst() + i;
+		
+		return fixed(new ImageNormalizer(stackHistogram(source, slices)));
+	}
+	
+	// Returns the normalization for the given mode. referenceNormalizer is only used for REFERENCE_SLICE.
+	public static SliceNormalization create(Mode mode, SliceSource source, ImageRange range, ImageNormalizer referenceNormalizer) throws IOException
+	{
+		switch (mode)
+		{
+			case PER_SLICE:
+				return perSlice();
+			case SAMPLED_SLICES:
+				return sampledSlices(source, range, numSampledSlices);
+			case WHOLE_STACK:
+				return wholeStack(source, range);
+			default:
+				return fixed(referenceNormalizer);
+		}
+	}
+	
+	// Returns the merged intensity histogram of the given slices.
+	private static IntensityHistogram stackHistogram(SliceSource source, int[] slices) throws IOException
+	{
+		final long samplesPerSlice = Math.max(minSliceSamples, maxStackSamples / slices.length);
+		final long sliceSize = (long)source.getWidth() * source.getHeight();
+		final int rowStep = (int)Math.max(1, Math.min(source.getHeight(), sliceSize / samplesPerSlice));  // complete rows, about samplesPerSlice pixels
+		final IntensityHistogram histogram = new IntensityHistogram(source.getBitDepth() == 8 ? 256 : 65536);
+		
+		try
+		{
+			JavaImageOps.parallelFor(slices.length, i -> {
+				try
+				{
+					histogram.add(IntensityHistogram.compute(source.getSampledRows(slices[i], rowStep), samplesPerSlice));
+				}
+				catch (IOException e)
+				{
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+		catch (UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+		
+		return histogram;
+	}
+}
@@ -0,0 +1,22 @@
+package be.vib.imagej;
+
+import java.io.IOException;
+
+import ij.process.ImageProcessor;
+
+// A SliceSink receives the denoised slices from the DenoiseEngine, one at a time and in slice order.
+// Sinks that write the slices to a file (e.g. TiffSliceSink, RawSliceSink) allow denoising image stacks
+// that are larger than the available memory, since the engine only holds a few slices at any time.
+// ImageStackSink collects the slices in memory instead.
+public interface SliceSink
+{
+	// Called once, before the first slice is added. The slices are width x height pixels, with a bit depth of 8 or 16.
+	// info is a description of the denoising (e.g. the denoising parameters), it can be stored as meta-data.
+	public void open(int width, int height, int bitDepth, int numSlices, String info) throws IOException;
+	
+	// Receives the next denoised slice.
+	public void addSlice(ImageProcessor slice) throws IOException;
+	
+	// Called once, after the last slice was added, or when denoising was cancelled or failed.
+	public void close() throws IOException;
+}
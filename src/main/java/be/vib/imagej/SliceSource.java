@@ -0,0 +1,51 @@
+package be.vib.imagej;
+
+import java.io.IOException;
+
+import ij.process.ImageProcessor;
+
+// A SliceSource provides the noisy slices to the DenoiseEngine. The engine asks for each slice
+// only when it starts denoising it, and holds on to it only until the slice is denoised, so a source
+// does not need to keep the complete stack in memory (see MappedSliceSource).
+// ImageStackSource provides the slices of an ImageJ image instead.
+public interface SliceSource
+{
+	public int getWidth();
+	
+	public int getHeight();
+	
+	// Returns 8 or 16.
+	public int getBitDepth();
+	
+	public int getNumSlices();
+	
+	// Returns the slice with the given (1-based) index, as in ImageStack.getProcessor().
+	// The returned image must not be modified. This method may be called from several threads at the same time.
+	public ImageProcessor getSlice(int n) throws IOException;
+	
+	// Returns the slice like getSlice(), for a one-off read outside of a denoising run (e.g. the histogram of a few
+	// sampled slices). A source that reads ahead (see MappedSliceSource) does not read the following slices for it.
+	public default ImageProcessor getSliceWithoutPrefetch(int n) throws IOException
+	{
+		return getSlice(n);
+	}
+	
+	// Returns rows 0, rowStep, 2 * rowStep, ... of the slice, as an image of getWidth() x ceil(getHeight() / rowStep) pixels.
+	// This is meant for estimating intensity statistics without reading complete slices (see SliceNormalizations).
+	// The default implementation gets the complete slice and copies the rows; a source that reads from a file
+	// (see MappedSliceSource) only reads the requested rows.
+	public default ImageProcessor getSampledRows(int n, int rowStep) throws IOException
+	{
+		ImageProcessor slice = getSliceWithoutPrefetch(n);
+		final int width = slice.getWidth();
+		final int numRows = (slice.getHeight() + rowStep - 1) / rowStep;
+		
+		ImageProcessor rows = slice.createProcessor(width, numRows);
+		for (int r = 0; r < numRows; r++)
+			System.arraycopy(slice.getPixels(), r * rowStep * width, rows.getPixels(), r * width, width);
+		return rows;
+	}
+	
+	// Releases the resources (e.g. open files) held by the source.
+	public void close() throws IOException;
+}
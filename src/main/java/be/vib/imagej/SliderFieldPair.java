@@ -114,6 +114,14 @@ class SliderFieldPair implements ChangeListener, PropertyChangeListener
 		return value;
 	}
 	
+	// Returns the value at the slider position that is the given number of steps away from the current position,
+	// or NaN if that position is outside the slider.
+	public float getValueAtStep(int steps)
+	{
+		int position = slider.getValue() + steps;
+		return (position < sliderMin || position > sliderMax) ? Float.NaN : fromSlider.apply(position);
+	}
+	
 	private void updateSlider()
 	{
 		ignoreSlider = true;
@@ -93,6 +93,12 @@ class SliderSpinnerPair implements ChangeListener
 		return value;
 	}
 
+	// Returns true if the value the given number of steps away from the current value is inside the range of the slider.
+	public boolean hasValueAtStep(int steps)
+	{
+		return value + steps >= slider.getMinimum() && value + steps <= slider.getMaximum();
+	}
+
 	@Override
 	public void stateChanged(ChangeEvent e)
 	{
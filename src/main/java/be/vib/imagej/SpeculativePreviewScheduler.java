@@ -0,0 +1,107 @@
+package be.vib.imagej;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.process.ImageProcessor;
+
+// The SpeculativePreviewScheduler denoises the preview ahead of time for the parameter settings that the user
+// is likely to try next (the neighbouring slider positions, see Algorithm.getNeighbouringParams()), and stores
+// the results in the DenoisePreviewCache. When the user then moves a slider by a step or two, the preview is shown immediately.
+//
+// Speculative work only runs while the user is not waiting for a preview: preempt() must be called as soon as a real
+// preview is requested. This drops the remaining candidates and cancels the denoising task if it is still waiting for
+// the compute backend. A task that the backend has already started cannot be interrupted (Quasar offers no way to do so),
+// so a real preview waits for at most one speculative preview.
+//
+// The previews are only cached if the cache was not cleared (because the preview image changed) since the preview
+// that the candidates are neighbours of was requested, see DenoisePreviewCache.getGeneration().
+public class SpeculativePreviewScheduler
+{
+	private final DenoisePreviewCache previewCache;
+	
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "DenoisEM speculative preview");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	// Incremented by every schedule() and preempt(), a run stops as soon as it sees that it is no longer the current one.
+	private final AtomicInteger generation = new AtomicInteger(0);
+	
+	private volatile Future<?> backendTask;  // the speculative denoising task that was last submitted to the backend
+	
+	public SpeculativePreviewScheduler(DenoisePreviewCache previewCache)
+	{
+		this.previewCache = previewCache;
+	}
+	
+	// Denoises the image (the preview ROI) with each of the candidate parameters that are not cached yet, in order.
+	// Replaces the candidates of an earlier call. cacheGeneration is the generation of the preview cache when the image
+	// was taken from the model, the previews are not cached if the cache was cleared since.
+	public void schedule(Algorithm.Name algorithmName, List<DenoiseParams> candidates, ImageProcessor image, ImageNormalizer normalizer, int cacheGeneration)
+	{
+		final int runGeneration = generation.incrementAndGet();
+		executor.execute(() -> run(runGeneration, cacheGeneration, algorithmName, candidates, image, normalizer));
+	}
+	
+	// Stops the speculative work, because the user is waiting for a preview.
+	public void preempt()
+	{
+		generation.incrementAndGet();
+		
+		Future<?> task = backendTask;
+		if (task != null)
+			task.cancel(false);  // only has effect if the backend did not start it yet
+	}
+
+	
+	// Runs on the executor thread.
+	private void run(int runGeneration, int cacheGeneration, Algorithm.Name algorithmName, List<DenoiseParams> candidates, ImageProcessor image, ImageNormalizer normalizer)
+	{
+		try
+		{
+			for (DenoiseParams params : candidates)
+			{
+				if (generation.get() != runGeneration || previewCache.getGeneration() != cacheGeneration)
+					return;
+				
+				DenoisePreviewCacheKey cacheKey = new DenoisePreviewCacheKey(algorithmName, params);
+				if (previewCache.containsKey(cacheKey))
+					continue;
+				
+				Denoiser denoiser = Denoisers.newDenoiser(params);
+				denoiser.setImage(image, normalizer);
+				
+				Future<ImageProcessor> task = denoiser.getBackend().submit(denoiser);
+				backendTask = task;
+				if (generation.get() != runGeneration)  // preempt() may have missed the task
+					task.cancel(false);
+				
+				ImageProcessor denoisedImageProcessor = task.get();
+				ImageUtils.CopyDisplayRange(image, denoisedImageProcessor);
+				BufferedImage denoisedImage = denoisedImageProcessor.getBufferedImage();
+				
+				// Noise and blur are only estimated if the preview is actually shown.
+				previewCache.put(cacheKey, new DenoisePreviewCacheValue(denoisedImage, denoisedImageProcessor), cacheGeneration);
+			}
+		}
+		catch (CancellationException e)
+		{
+			// preempted
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			backendTask = null;
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package be.vib.imagej;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import ij.process.ImageProcessor;
+
+// A SliceSink that streams the denoised slices to an uncompressed, little-endian TIFF file that ImageJ can open.
+//
+// By default it writes a classic TIFF. Each slice is written as soon as it is received: first its pixels (as a single strip),
+// followed by its image file directory (IFD). The "next IFD" offset of the previous slice's IFD is then patched to point to it.
+// So the sink never holds more than one slice in memory.
+//
+// Classic TIFF files use 32-bit offsets, so they are limited to 4 GB. Larger stacks are written in the layout ImageJ itself uses
+// for stacks over 4 GB: a single IFD, followed by the pixels of all slices one after the other, with the number of slices
+// in the ImageJ image description. Only the offset of the first slice needs to fit in 32 bits then.
+//
+// Optionally the sink writes a BigTIFF file instead (64-bit offsets, one IFD per slice). ImageJ 1.x cannot open BigTIFF files,
+// they need Bio-Formats or another BigTIFF reader, so this is only used when asked for.
+//
+// The ImageJ image description holds the number of slices. It is only known when the sink is closed (a cancelled or
+// failed run writes fewer slices than planned), so close() writes the final description and patches the first IFD to point to it.
+public class TiffSliceSink implements SliceSink
+{
+	// TIFF tags
+	private static final int NEW_SUBFILE_TYPE = 254;
+	private static final int IMAGE_WIDTH = 256;
+	private static final int IMAGE_LENGTH = 257;
+	private static final int BITS_PER_SAMPLE = 258;
+	private static final int COMPRESSION = 259;
+	private static final int PHOTOMETRIC_INTERPRETATION = 262;
+	private static final int IMAGE_DESCRIPTION = 270;
+	private static final int STRIP_OFFSETS = 273;
+	private static final int SAMPLES_PER_PIXEL = 277;
+	private static final int ROWS_PER_STRIP = 278;
+	private static final int STRIP_BYTE_COUNTS = 279;
+	private static final int SAMPLE_FORMAT = 339;
+	
+	// TIFF field types
+	private static final int ASCII = 2;
+	private static final int SHORT = 3;
+	private static final int LONG = 4;
+	private static final int LONG8 = 16;
+	
+	private static final int MAX_ENTRIES = 12;  // number of entries in the first IFD, the other IFDs have no image description
+	private static final long MAX_CLASSIC_TIFF_SIZE = 0xFFFFFFFFL;
+	
+	private final File file;
+	private final boolean bigTiff;
+	private FileChannel channel;
+	
+	private int width, height, bitDepth;
+	private String info;
+	
+	private boolean contiguous; // true for ImageJ's layout for stacks over 4 GB: one IFD followed by all pixels
+	private int slicesWritten;
+	private long nextIfdOffsetPosition; // file position of the "offset of the next IFD" field that needs to be patched
+	private long descriptionEntryPosition; // file position of the image description entry in the first IFD
+	private long descriptionOffset; // file position of the image description, only used for the contiguous layout
+	private int descriptionCapacity; // bytes reserved for the image description, only used for the contiguous layout
+	
+	// Writes a classic TIFF file, in ImageJ's contiguous layout if it does not fit in 4 GB.
+	public TiffSliceSink(File file)
+	{
+		this(file, false);
+	}
+	
+	// Writes a BigTIFF file if bigTiff is true, or a classic TIFF file otherwise.
+	public TiffSliceSink(File file, boolean bigTiff)
+	{
+		this.file = file;
+		this.bigTiff = bigTiff;
+	}
+	
+	@Override
+	public void open(int width, int height, int bitDepth, int numSlices, String info) throws IOException
+	{
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		this.info = info;
+		this.slicesWritten = 0;
+		
+		// The description is written twice, see close().
+		final long sliceBytes = (long)width * height * (bitDepth / 8);
+		final long descriptionBytes = getImageJDescription(numSlices).length() + 1;
+		final long classicSize = 8 + numSlices * (sliceBytes + 1 + ifdSize(MAX_ENTRIES)) + 2 * descriptionBytes;
+		contiguous = !bigTiff && classicSize > MAX_CLASSIC_TIFF_SIZE;
+		
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		
+		ByteBuffer header = newBuffer(bigTiff ? 16 : 8);
+		header.put((byte)'I').put((byte)'I'); // little-endian
+		if (bigTiff)
+		{
+			header.putShort((short)43);  // BigTIFF version number
+			header.putShort((short)8);  // byte size of offsets
+			header.putShort((short)0);
+		}
+		else
+		{
+			header.putShort((short)42);  // TIFF version number
+		}
+		putOffset(header, 0);  // offset of the first IFD, patched when the first IFD is written
+		header.flip();
+		RawSliceSink.writeFully(channel, header);
+		
+		nextIfdOffsetPosition = header.limit() - offsetSize();
+		
+		if (contiguous)
+		{
+			// The single IFD and the image description come first, so that their offsets fit in 32 bits.
+			// Room is reserved for the description with the planned number of slices, close() overwrites it.
+			byte[] description = (getImageJDescription(numSlices) + '\0').getBytes(StandardCharsets.US_ASCII);
+			descriptionCapacity = description.length;
+			descriptionOffset = channel.position();
+			RawSliceSink.writeFully(channel, ByteBuffer.wrap(description));
+			
+			final long ifdOffset = channel.position() + channel.position() % 2;
+			final long stripOffset = ifdOffset + ifdSize(MAX_ENTRIES);
+			writeIfd(stripOffset, sliceBytes, description.length, descriptionOffset);
+		}
+	}
+	
+	@Override
+	public void addSlice(ImageProcessor slice) throws IOException
+	{
+		assert(slice.getWidth() == width && slice.getHeight() == height && slice.getBitDepth() == bitDepth);
+		
+		// Pixel data
+		final long stripOffset = channel.position();
+		ByteBuffer pixels = RawSliceSink.pixelBytes(slice, ByteOrder.LITTLE_ENDIAN);
+		final long stripByteCount = pixels.remaining();
+		RawSliceSink.writeFully(channel, pixels);
+		
+		if (contiguous)
+		{
+			slicesWritten++;
+			return;  // the IFD was written by open()
+		}
+		
+		// Image description (first slice only). ImageJ uses it to recognize the file as a stack.
+		// Until close() replaces it, it does not mention the number of slices.
+		int descriptionLength = 0;
+		long provisionalDescriptionOffset = 0;
+		if (slicesWritten == 0)
+		{
+			byte[] description = (getImageJDescription(0) + '\0').getBytes(StandardCharsets.US_ASCII);
+			descriptionLength = description.length;
+			provisionalDescriptionOffset = channel.position();
+			RawSliceSink.writeFully(channel, ByteBuffer.wrap(description));
+		}
+		
+		writeIfd(stripOffset, stripByteCount, descriptionLength, provisionalDescriptionOffset);
+		slicesWritten++;
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		if (channel == null)
+			return;
+		
+		try
+		{
+			if (slicesWritten > 0)
+				writeFinalDescription();
+		}
+		finally
+		{
+			channel.close();
+			channel = null;
+		}
+	}
+	
+	// Writes an IFD for a single strip at the current position (aligned to a word boundary), and links the previous IFD
+	// (or the header) to it. The IFD has an image description entry if descriptionLength is not 0.
+	private void writeIfd(long stripOffset, long stripByteCount, int descriptionLength, long descriptionOffset) throws IOException
+	{
+		if (channel.position() % 2 != 0)
+			RawSliceSink.writeFully(channel, ByteBuffer.wrap(new byte[1]));
+		
+		final long ifdOffset = channel.position();
+		final int numEntries = (descriptionLength != 0) ? MAX_ENTRIES : MAX_ENTRIES - 1;
+		final int offsetType = bigTiff ? LONG8 : LONG;
+		
+		ByteBuffer ifd = newBuffer(ifdSize(numEntries));
+		if (bigTiff)
+			ifd.putLong(numEntries);
+		else
+			ifd.putShort((short)numEntries);
+		putEntry(ifd, NEW_SUBFILE_TYPE, LONG, 1, 0);
+		putEntry(ifd, IMAGE_WIDTH, LONG, 1, width);
+		putEntry(ifd, IMAGE_LENGTH, LONG, 1, height);
+		putEntry(ifd, BITS_PER_SAMPLE, SHORT, 1, bitDepth);
+		putEntry(ifd, COMPRESSION, SHORT, 1, 1);  // no compression
+		putEntry(ifd, PHOTOMETRIC_INTERPRETATION, SHORT, 1, 1);  // black is zero
+		if (descriptionLength != 0)
+		{
+			descriptionEntryPosition = ifdOffset + ifd.position();
+			putEntry(ifd, IMAGE_DESCRIPTION, ASCII, descriptionLength, descriptionOffset);
+		}
+		putEntry(ifd, STRIP_OFFSETS, offsetType, 1, stripOffset);
+		putEntry(ifd, SAMPLES_PER_PIXEL, SHORT, 1, 1);
+		putEntry(ifd, ROWS_PER_STRIP, LONG, 1, height);
+		putEntry(ifd, STRIP_BYTE_COUNTS, offsetType, 1, stripByteCount);
+		putEntry(ifd, SAMPLE_FORMAT, SHORT, 1, 1);  // unsigned integer
+		putOffset(ifd, 0);  // offset of the next IFD, patched when the next slice is written
+		ifd.flip();
+		RawSliceSink.writeFully(channel, ifd);
+		
+		// Link the previous IFD (or the header) to this IFD
+		ByteBuffer offset = newBuffer(offsetSize());
+		putOffset(offset, ifdOffset);
+		offset.flip();
+		writeAt(offset, nextIfdOffsetPosition);
+		
+		nextIfdOffsetPosition = ifdOffset + ifd.limit() - offsetSize();
+	}
+	
+	// Writes the image description with the number of slices that were actually written, and points the image description
+	// entry of the first IFD to it. It is appended to the file, or overwrites the reserved room for the contiguous layout.
+	private void writeFinalDescription() throws IOException
+	{
+		byte[] description = (getImageJDescription(slicesWritten) + '\0').getBytes(StandardCharsets.US_ASCII);
+		final long offset = contiguous ? descriptionOffset : channel.size();
+		assert(!contiguous || description.length <= descriptionCapacity);
+		writeAt(ByteBuffer.wrap(description), offset);
+		
+		ByteBuffer entry = newBuffer(2 * offsetSize());  // the count and value fields of the entry
+		putOffset(entry, description.length);
+		putOffset(entry, offset);
+		entry.flip();
+		writeAt(entry, descriptionEntryPosition + 4);
+	}
+	
+	// Returns the ImageJ image description for a stack of numSlices slices, or without the number of slices if numSlices is 0.
+	private String getImageJDescription(int numSlices)
+	{
+		String description = "ImageJ=\n";
+		if (numSlices > 0)
+			description += "images=" + numSlices + "\nslices=" + numSlices + "\n";
+		if (numSlices > 1)
+			description += "loop=false\n";
+		if (info != null)
+			description += info;
+		return description;
+	}
+	
+	private static ByteBuffer newBuffer(int size)
+	{
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	private int offsetSize()
+	{
+		return bigTiff ? 8 : 4;
+	}
+	
+	// Returns the size of an IFD with numEntries entries, including the entry count and the offset of the next IFD.
+	private int ifdSize(int numEntries)
+	{
+		return bigTiff ? 8 + numEntries * 20 + 8 : 2 + numEntries * 12 + 4;
+	}
+	
+	// Appends an offset (or a count), 8 bytes in a BigTIFF file and 4 bytes in a classic TIFF file.
+	private void putOffset(ByteBuffer buffer, long offset)
+	{
+		if (bigTiff)
+			buffer.putLong(offset);
+		else
+			buffer.putInt((int)offset);
+	}
+	
+	private void writeAt(ByteBuffer buffer, long position) throws IOException
+	{
+		final long start = position - buffer.position();
+		while (buffer.hasRemaining())
+			channel.write(buffer, start + buffer.position());
+	}
+	
+	// Appends an IFD entry. The value (or the offset of the values) is left-justified in the value field,
+	// which is 8 bytes in a BigTIFF file and 4 bytes in a classic TIFF file.
+	private void putEntry(ByteBuffer ifd, int tag, int type, long count, long value)
+	{
+		ifd.putShort((short)tag);
+		ifd.putShort((short)type);
+		putOffset(ifd, count);
+		
+		int start = ifd.position();
+		if (type == SHORT)
+			ifd.putShort((short)value);
+		else if (type == LONG)
+			ifd.putInt((int)value);
+		else
+			putOffset(ifd, value);  // LONG8, or an offset to the values
+		
+		while (ifd.position() < start + offsetSize())
+			ifd.put((byte)0);
+	}
+}
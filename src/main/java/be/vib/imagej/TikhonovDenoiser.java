@@ -1,7 +1,5 @@
 package be.vib.imagej;
 
-import be.vib.bits.QFunction;
-import be.vib.bits.QValue;
 import ij.process.ImageProcessor;
 
 public class TikhonovDenoiser extends Denoiser
@@ -12,60 +10,28 @@ public class TikhonovDenoiser extends Denoiser
 	}
 
 	@Override
-	public ImageProcessor call()
+	public ImageProcessor denoise(ImageProcessor image, ImageNormalizer normalizer)
 	{
-		TikhonovParams params = (TikhonovParams)this.params;
-		
-		return params.deconvolution ? tikhonovDenoisingWithDeconvolution() : tikhonovDenoising();						
+		return backend.tikhonov(image, normalizer, (TikhonovParams)params);
 	}
-
-	public ImageProcessor tikhonovDenoising()
+	
+	@Override
+	public int imageMargin()
 	{
-		QFunction tikhonov_denoise = new QFunction("tikhonov_denoise(mat,scalar,int)");
-		
-		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
-		QValue noisyImageCube = normalizer.normalize(image, byteRange);
-		
 		TikhonovParams params = (TikhonovParams)this.params;
 		
-		QValue denoisedImageCube = tikhonov_denoise.apply(noisyImageCube,
-										    	          new QValue(params.lambda),
-				                                          new QValue(params.numIterations));
+		int margin = TilePlanner.iterativeMargin(params.numIterations, 2);  // the operator L.L has a 5x5 support
 		
-		noisyImageCube.dispose();
-
-		ImageProcessor denoisedImage = normalizer.denormalize(image, denoisedImageCube, byteRange);
+		if (params.deconvolution)
+			margin += (int)Math.ceil(3 * params.sigma);  // extent of the blur kernel
 		
-		denoisedImageCube.dispose();
-
-		return denoisedImage;
+		return margin;
 	}
-
-	public ImageProcessor tikhonovDenoisingWithDeconvolution()
+	
+	@Override
+	public int memoryCostPerPixel()
 	{
-		QFunction tikhonov_denoise_deconvolution = new QFunction("tikhonov_denoise_dec(mat,mat,scalar,int)");
-		
-		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
-		QValue noisyImageCube = normalizer.normalize(image, byteRange);
-		
 		TikhonovParams params = (TikhonovParams)this.params;
-		
-		QFunction fgaussian = new QFunction("fgaussian(int,scalar)");
-		
-		QValue blurKernel = fgaussian.apply(new QValue(TikhonovParams.blurKernelSize), new QValue(params.sigma)); 
-		
-		QValue denoisedImageCube = tikhonov_denoise_deconvolution.apply(noisyImageCube,
-												                        blurKernel,
-											                            new QValue(params.lambda),
-				                                                        new QValue(params.numIterations));
-		
-		noisyImageCube.dispose();
-		blurKernel.dispose();
-
-		ImageProcessor denoisedImage = normalizer.denormalize(image, denoisedImageCube, byteRange);
-
-		denoisedImageCube.dispose();
-
-		return denoisedImage;
+		return params.deconvolution ? 64 : 48;  // the conjugate gradient solver keeps several images around
 	}
-}
\ No newline at end of file
+}
@@ -59,6 +59,15 @@ public class TikhonovParams extends DenoiseParams
     	return props;
     }
 
+	@Override
+	public void setParameterList(Properties props)
+	{
+		deconvolution = getBoolean(props, "tikhonov.deconvolution", deconvolution);
+		lambda = getFloat(props, "tikhonov.lambda", lambda);
+		numIterations = getInt(props, "tikhonov.numiterations", numIterations);
+		sigma = getFloat(props, "tikhonov.sigma", sigma);
+	}
+
 	@Override
 	public String toString()
 	{
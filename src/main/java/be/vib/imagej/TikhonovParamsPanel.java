@@ -41,6 +41,7 @@ class TikhonovParamsPanel extends DenoiseParamsPanelBase
 		lambdaPair = new SliderFieldPair(0, 100, floatFormat, TikhonovParams.lambdaMin, TikhonovParams.lambdaMax);
 		lambdaPair.setValue(params.lambda);
 		lambdaPair.addPropertyChangeListener(e -> { params.lambda = lambdaPair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(lambdaPair, (p, value) -> ((TikhonovParams)p).lambda = value);
 		
 		JSlider lambdaSlider = lambdaPair.getSlider();
 		
@@ -52,6 +53,7 @@ class TikhonovParamsPanel extends DenoiseParamsPanelBase
 		iterationsPair = new SliderSpinnerPair(TikhonovParams.iterationsMin, TikhonovParams.iterationsMax);
 		iterationsPair.setValue(params.numIterations);
 		iterationsPair.addPropertyChangeListener(e -> { params.numIterations = iterationsPair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(iterationsPair, (p, value) -> ((TikhonovParams)p).numIterations = value);
 		
 		JSlider iterationsSlider = iterationsPair.getSlider();
 		
@@ -65,6 +67,7 @@ class TikhonovParamsPanel extends DenoiseParamsPanelBase
 		SliderFieldPair sigmaPair = new SliderFieldPair(0, 100, floatFormat, TikhonovParams.sigmaMin, TikhonovParams.sigmaMax);
 		sigmaPair.setValue(params.sigma);
 		sigmaPair.addPropertyChangeListener(e -> { params.sigma = sigmaPair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(sigmaPair, (p, value) -> ((TikhonovParams)p).sigma = value);
 		
 		sigmaSlider = sigmaPair.getSlider();
 		
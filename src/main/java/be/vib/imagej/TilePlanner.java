@@ -0,0 +1,60 @@
+package be.vib.imagej;
+
+// TilePlanner decides how images are split into tiles for denoising.
+//
+// The margin around each tile is chosen by the denoiser (Denoiser.imageMargin()) based on the
+// support of its algorithm for the current parameters. The tile size is then chosen as large as possible
+// such that a tile, including its margins, fits in the memory budget of the compute backend, given the
+// denoiser's estimated memory use per pixel (Denoiser.memoryCostPerPixel()). Larger tiles mean
+// fewer tiles, less overhead per tile and less time spent on denoising margins that are thrown away.
+public class TilePlanner
+{
+	public static final int minTileSize = 128;
+	public static final int maxTileSize = 4096;
+	public static final int tileSizeGranularity = 64;  // tile sizes are rounded down to a multiple of this
+	
+	// Beyond this distance the influence of a pixel on the denoised result is negligible
+	// for all our algorithms, even if their formal support is larger.
+	public static final int maxMargin = 64;
+	
+	private TilePlanner()
+	{
+	}
+	
+	// Returns an ImageTiler for denoising a width x height image with the given denoiser.
+	public static ImageTiler createTiler(Denoiser denoiser, int width, int height)
+	{
+		final int margin = margin(denoiser);
+		final int tileSize = tileSize(denoiser.memoryCostPerPixel(), margin, denoiser.getBackend().getMemoryBudget(), width, height);
+		return new ImageTiler(width, height, tileSize, tileSize, margin);
+	}
+	
+	public static int margin(Denoiser denoiser)
+	{
+		return Math.max(0, Math.min(denoiser.imageMargin(), maxMargin));
+	}
+	
+	// Returns the size of the largest square tile (without margins) for which the tile including the margins
+	// needs at most memoryBudget bytes, given the number of bytes needed per tile pixel.
+	// If the complete width x height image fits in the budget, the image is not tiled at all.
+	public static int tileSize(int bytesPerPixel, int margin, long memoryBudget, int width, int height)
+	{
+		final long maxPixels = memoryBudget / Math.max(1, bytesPerPixel);
+		
+		if ((long)width * height <= maxPixels)
+			return Math.max(width, height);  // a single tile
+		
+		int tileSizeWithMargins = (int)Math.min(Math.sqrt(maxPixels), Integer.MAX_VALUE);
+		int tileSize = tileSizeWithMargins - 2 * margin;
+		tileSize = (tileSize / tileSizeGranularity) * tileSizeGranularity;
+		return Math.max(minTileSize, Math.min(tileSize, maxTileSize));
+	}
+	
+	// Helper for iterative algorithms that only look at a small neighbourhood (of the given radius) in each iteration.
+	// Formally their support grows by that radius with each iteration, but in practice the influence
+	// of a pixel spreads like in diffusion, proportional to the square root of the number of iterations.
+	public static int iterativeMargin(int numIterations, int radiusPerIteration)
+	{
+		return (int)Math.ceil(2 * radiusPerIteration * Math.sqrt(numIterations)) + radiusPerIteration;
+	}
+}
@@ -1,7 +1,5 @@
 package be.vib.imagej;
 
-import be.vib.bits.QFunction;
-import be.vib.bits.QValue;
 import ij.process.ImageProcessor;
 
 public class TotalVariationDenoiser extends Denoiser
@@ -12,27 +10,21 @@ public class TotalVariationDenoiser extends Denoiser
 	}
 
 	@Override
-	public ImageProcessor call()
+	public ImageProcessor denoise(ImageProcessor image, ImageNormalizer normalizer)
+	{
+		return backend.totalVariation(image, normalizer, (TotalVariationParams)params);
+	}
+	
+	@Override
+	public int imageMargin()
 	{
-		QFunction total_variation_denoise = new QFunction("total_variation_denoise(mat,scalar,int,scalar)");
-		
-		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
-		
-		QValue noisyImageCube = normalizer.normalize(image, byteRange);
-				
 		TotalVariationParams params = (TotalVariationParams)this.params;
-		
-		QValue denoisedImageCube = total_variation_denoise.apply(noisyImageCube,
-                                                                 new QValue(params.lambda),
-				                                                 new QValue(params.numIterations),
-				                                                 new QValue(TotalVariationParams.alpha));
-		
-		noisyImageCube.dispose();
-
-		ImageProcessor denoisedImage = normalizer.denormalize(image, denoisedImageCube, byteRange);
-
-		denoisedImageCube.dispose();
-
-		return denoisedImage;
+		return TilePlanner.iterativeMargin(params.numIterations, 1);  // each iteration uses finite differences with the neighbouring pixels
+	}
+	
+	@Override
+	public int memoryCostPerPixel()
+	{
+		return 32;
 	}
-}
\ No newline at end of file
+}
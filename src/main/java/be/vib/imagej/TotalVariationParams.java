@@ -43,6 +43,13 @@ public class TotalVariationParams extends DenoiseParams
     	return props;
     }
 
+	@Override
+	public void setParameterList(Properties props)
+	{
+		lambda = getFloat(props, "totalvariation.lambda", lambda);
+		numIterations = getInt(props, "totalvariation.numiterations", numIterations);
+	}
+
 	@Override
 	public String toString()
 	{
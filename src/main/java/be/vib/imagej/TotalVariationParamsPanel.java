@@ -35,6 +35,7 @@ class TotalVariationParamsPanel extends DenoiseParamsPanelBase
 		lambdaPair = new SliderFieldPair(0, 100, floatFormat, TotalVariationParams.lambdaMin, TotalVariationParams.lambdaMax);
 		lambdaPair.setValue(params.lambda);
 		lambdaPair.addPropertyChangeListener(e -> { params.lambda = lambdaPair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(lambdaPair, (p, value) -> ((TotalVariationParams)p).lambda = value);
 		
 		JSlider lambdaSlider = lambdaPair.getSlider();
 		
@@ -46,6 +47,7 @@ class TotalVariationParamsPanel extends DenoiseParamsPanelBase
 		iterationsPair = new SliderSpinnerPair(TotalVariationParams.iterationsMin, TotalVariationParams.iterationsMax);
 		iterationsPair.setValue(params.numIterations);
 		iterationsPair.addPropertyChangeListener(e -> { params.numIterations = iterationsPair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(iterationsPair, (p, value) -> ((TotalVariationParams)p).numIterations = value);
 		
 		JSlider iterationsSlider = iterationsPair.getSlider();
 		
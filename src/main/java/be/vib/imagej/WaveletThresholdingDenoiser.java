@@ -1,7 +1,5 @@
 package be.vib.imagej;
 
-import be.vib.bits.QFunction;
-import be.vib.bits.QValue;
 import ij.process.ImageProcessor;
 
 public class WaveletThresholdingDenoiser extends Denoiser
@@ -12,38 +10,23 @@ public class WaveletThresholdingDenoiser extends Denoiser
 	}
 	
 	@Override
-	public ImageProcessor call()
-	{		
-		QFunction waveletThresholding = new QFunction("wav_denoise(mat,int,mat,mat,string,scalar)");
-				
-		final boolean byteRange = false;  // normalize pixel values to/from [0,1] before/after denoising
-		QValue noisyImageCube = normalizer.normalize(image, byteRange);
-		
-		WaveletThresholdingParams params = (WaveletThresholdingParams)this.params;
-
-		QValue w1 = QValue.readhostVariable("filtercoeff_farras");          // wavelet for the first scale (a 2x10 matrix)
-		QValue w2 = QValue.readhostVariable("filtercoeff_selcw").at(3, 1);  // wavelet for the other scales (a 2x12 matrix)
-
-		QValue denoisedImageCube = waveletThresholding.apply(noisyImageCube,
-							                                 new QValue(WaveletThresholdingParams.J),
-							                                 w1,
-							                                 w2,
-							                                 new QValue(WaveletThresholdingParams.thresholdType),
-							                                 new QValue(params.threshold));
-		
-		noisyImageCube.dispose();
-
-		ImageProcessor denoisedImage = normalizer.denormalize(image, denoisedImageCube, byteRange);
-		
-		denoisedImageCube.dispose();
-
-		return denoisedImage;
+	public ImageProcessor denoise(ImageProcessor image, ImageNormalizer normalizer)
+	{
+		return backend.waveletThresholding(image, normalizer, (WaveletThresholdingParams)params);
+	}
+	
+	@Override
+	public int imageMargin()
+	{
+		// The wavelet filters at scale j have a support of about 12 * 2^(j-1) pixels.
+		return 6 * ((1 << WaveletThresholdingParams.J) - 1);
 	}
 	
 	@Override
-	public int imageTileSize()
+	public int memoryCostPerPixel()
 	{
-		// wavelet_thresholding.q seems to be a bit memory hungry - use smaller tiles for now
-		return 512;
+		// wavelet_thresholding.q seems to be a bit memory hungry (the dual-tree complex wavelet transform
+		// is redundant, and the subbands of all scales are kept in memory)
+		return 192;
 	}
-}
\ No newline at end of file
+}
@@ -41,6 +41,12 @@ public class WaveletThresholdingParams extends DenoiseParams
     	return props;
     }
 
+	@Override
+	public void setParameterList(Properties props)
+	{
+		threshold = getFloat(props, "waveletthresholding.threshold", threshold);
+	}
+
 	@Override
 	public String toString()
 	{
@@ -29,6 +29,7 @@ class WaveletThresholdingParamsPanel extends DenoiseParamsPanelBase
 		thresholdPair = new SliderFieldPair(0, 100, floatFormat, params.thresholdMin, params.thresholdMax);
 		thresholdPair.setValue(params.threshold);
 		thresholdPair.addPropertyChangeListener(e -> { params.threshold = thresholdPair.getValue(); fireParamsChangeEvent(); });
+		addSteppableParameter(thresholdPair, (p, value) -> ((WaveletThresholdingParams)p).threshold = value);
 		
 		JSlider thresholdSlider = thresholdPair.getSlider();
 		
@@ -1,7 +1,9 @@
 package be.vib.imagej;
 
+import java.awt.Rectangle;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import be.vib.imagej.Algorithm.Name;
 import ij.ImagePlus;
@@ -23,10 +25,16 @@ public class WizardModel
 	private ImageRange range; // the range of image slices that need to be denoised
 
 	private ImageProcessor noisyPreview; // a small region of interest cropped from the original noisy image
+	private int noisyPreviewSlice; // the slice (1-based) and region of interest of the image that noisyPreview was cropped from
+	private Rectangle noisyPreviewRoi;
 	
 	private float noiseEstimate;  // estimated standard deviation of the noise in the ([0, 1] normalized) noisy input image (< 0 means noise not estimated yet)
 	
-	private ImageNormalizer imageNormalizer;  // helper to normalize image pixels values from their native 8- or 16-bit range to [0, 1]
+	private CompletableFuture<ImageNormalizer> imageNormalizer;  // helper to normalize image pixels values from their native 8- or 16-bit range to [0, 1], computed in the background
+	
+	private ImageEstimateCache estimateCache = new ImageEstimateCache();  // noise and blur estimates of the input images
+	
+	private ComputeBackend blurKernelsBackend;  // the backend whose blur kernels are kept for the previews while an image is chosen, or null
 	
 	public static final int maxPreviewSize = 512; // max size of the denoising preview windows, and thus of the ROI selected on the image
 	
@@ -94,9 +102,26 @@ public class WizardModel
 		return noisyPreview;
 	}
 
-	public void setNoisyPreview(ImageProcessor preview)
+	public void setNoisyPreview(ImageProcessor preview, int slice, Rectangle roi)
 	{
 		this.noisyPreview = preview;
+		this.noisyPreviewSlice = slice;
+		this.noisyPreviewRoi = roi;
+	}
+	
+	public int getNoisyPreviewSlice()
+	{
+		return noisyPreviewSlice;
+	}
+	
+	public Rectangle getNoisyPreviewRoi()
+	{
+		return noisyPreviewRoi;
+	}
+	
+	public ImageEstimateCache getEstimateCache()
+	{
+		return estimateCache;
 	}
 
 	public ImagePlus getImage()
@@ -104,7 +129,9 @@ public class WizardModel
 		return image;
 	}
 	
-	public ImageNormalizer getImageNormalizer()
+	// The normalizer is computed asynchronously (see setImage()). Swing code must not wait for it,
+	// but handle it with for example thenAcceptAsync(..., SwingUtilities::invokeLater).
+	public CompletableFuture<ImageNormalizer> getImageNormalizer()
 	{
 		return imageNormalizer;
 	}
@@ -134,6 +161,19 @@ public class WizardModel
 
 		this.image = image;
 		
+		// The previews (and denoising runs) of this image can share the blur kernels that the backend caches
+		// for deconvolution, so keep them as long as an image is chosen.
+		if (image != null && blurKernelsBackend == null)
+		{
+			blurKernelsBackend = ComputeBackends.getCurrent();
+			blurKernelsBackend.acquireBlurKernels();
+		}
+		else if (image == null && blurKernelsBackend != null)
+		{
+			blurKernelsBackend.releaseBlurKernels();
+			blurKernelsBackend = null;
+		}
+		
 		// Lock the image (stack) so that if the user closes the image window,
 		// the underlying image slices remain in memory. Unfortunately locked
 		// image stacks are not very user friendly in ImageJ: it is not obvious that 
@@ -141,8 +181,17 @@ public class WizardModel
 		// in a locked stack but then does not actually show the correct slice, etc.
 		lockImage(true);
 		
-		// Do some preparatory work for image normalization lateron.
-		this.imageNormalizer = (image != null) ? new ImageNormalizer(image) : null;
+		// Do some preparatory work for image normalization lateron. For 16-bit images this needs an intensity histogram
+		// of the current slice, which takes a while on huge images, so it is not done here on the EDT.
+		if (image != null)
+		{
+			ImageProcessor slice = ImageUtils.currentProcessor(image);
+			this.imageNormalizer = CompletableFuture.supplyAsync(() -> new ImageNormalizer(slice));
+		}
+		else
+		{
+			this.imageNormalizer = null;
+		}
 				
 		// Remember to re-estimate the noise level
 		this.noiseEstimate = -1.0f;
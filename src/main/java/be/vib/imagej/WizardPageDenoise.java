@@ -92,6 +92,7 @@ public class WizardPageDenoise extends WizardPage implements ImageRangeChangeEve
 		progressBar.setMaximum(100);
 		progressBar.setValue(0);
 		progressBar.setStringPainted(true); // show percentage progress as text in the progress bar
+		progressBar.setString(null);        // the default percentage text, until DenoiseSwingWorker has an estimate of the remaining time
 		progressBar.setVisible(true);
 		
 		Runnable whenDone = () -> {
@@ -106,7 +107,9 @@ public class WizardPageDenoise extends WizardPage implements ImageRangeChangeEve
 			
 		WizardModel model = wizard.getModel();
 
-		worker = new DenoiseSwingWorker(model.getAlgorithm(), model.getImage(), model.getImageNormalizer(), model.getRange(), progressBar, whenDone);
+		SliceNormalizations.Mode normalizationMode = PreferencesDialog.getNormalizationMode(wizard.getPreferences());
+		
+		worker = new DenoiseSwingWorker(model.getAlgorithm(), model.getImage(), model.getImageNormalizer(), normalizationMode, model.getRange(), progressBar, whenDone);
 		
 		// Run the denoising on a separate worker thread and return here immediately.
 		// Once denoising has completed, the worker will automatically update the user interface
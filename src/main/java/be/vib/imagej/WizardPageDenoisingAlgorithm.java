@@ -2,12 +2,17 @@ package be.vib.imagej;
 
 import java.awt.CardLayout;
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
@@ -17,7 +22,7 @@ import javax.swing.JPanel;
 import javax.swing.JRadioButton;
 import javax.swing.SwingUtilities;
 
-import be.vib.bits.QExecutor;
+import ij.ImagePlus;
 import ij.process.ImageProcessor;
 
 public class WizardPageDenoisingAlgorithm extends WizardPage 
@@ -33,10 +38,32 @@ public class WizardPageDenoisingAlgorithm extends WizardPage
 			
 	private Map<Algorithm.Name, JRadioButton> buttonsMap;
 	
-	// We maintain a cache of 100 denoised results for different parameter settings.
-	// Assuming a 512x512 ROI and 8 bit/pixel grayscale previews, a full cache requires
-	// about 100 * (1 MB / 4) = 25 MB storage. This seems acceptable.
-	private DenoisePreviewCache previewCache = new DenoisePreviewCache(100);
+	// We maintain a cache of denoised results for different parameter settings.
+	// Its size is limited by the memory taken by the previews (see DenoisePreviewCache).
+	private DenoisePreviewCache previewCache = new DenoisePreviewCache();
+	
+	// While the user looks at a preview, the previews for the neighbouring slider positions are denoised ahead of time.
+	private SpeculativePreviewScheduler speculativeScheduler = new SpeculativePreviewScheduler(previewCache);
+	
+	// Number of slider steps (up and down, for each parameter) for which previews are denoised ahead of time.
+	private static final int speculativeSteps = 2;
+	
+	// Previews larger than coarsePreviewSize x coarsePreviewSize pixels are first denoised subsampled to about that size,
+	// and shown scaled up, before the full resolution preview is denoised. For a 512 x 512 preview this is 16 times less work,
+	// so even the slow algorithms show a first result quickly while the user moves a slider.
+	// Can be changed with -Dbe.vib.denoisem.coarsePreviewSize=n, 0 disables the coarse previews.
+	private static final int coarsePreviewSize = Integer.getInteger("be.vib.denoisem.coarsePreviewSize", 128);
+	
+	// Incremented for every requested preview. A task that is no longer the latest request does not refine its coarse preview.
+	private AtomicInteger latestPreviewRequest = new AtomicInteger(0);
+	
+	// Noise and blur estimates of the denoised preview are computed on this thread, after the preview is shown,
+	// and only if the user wants to see them.
+	private ExecutorService estimationExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "DenoisEM preview estimates");
+		thread.setDaemon(true);
+		return thread;
+	});
 		
  	public WizardPageDenoisingAlgorithm(Wizard wizard, String name)
 	{
@@ -66,6 +93,19 @@ public class WizardPageDenoisingAlgorithm extends WizardPage
 		add(previewsPanel);
 		add(Box.createRigidArea(new Dimension(0, 5)));
 		add(algorithmPanel);
+		
+		addPreferencesListener();
+	}
+	
+	private void addPreferencesListener()
+	{
+		// When the user asks to see the noise or blur estimate, compute it for the preview that is shown.
+		wizard.getPreferences().addPreferenceChangeListener(e -> {
+			if (e.getKey().startsWith("imagestats.") && Boolean.valueOf(e.getNewValue()))
+			{
+				SwingUtilities.invokeLater(() -> { if (isShowing()) updateDenoisedPreview(); });  // the preview is cached, so this is cheap
+			}
+		});
 	}
 	
 	private JPanel createAlgorithmChoicePanel(Algorithm[] algorithms)
@@ -152,18 +192,41 @@ public class WizardPageDenoisingAlgorithm extends WizardPage
 	{
 		private Algorithm algorithm;
 		private ImageProcessor image;
+		private Future<ImageNormalizer> normalizerFuture; // computed in the background (see WizardModel.setImage())
 		private ImageNormalizer normalizer; // IMPROVEME? This could/should perhaps become part of Algorithm?
+		private List<DenoiseParams> neighbouringParams; // parameters to denoise speculatively once this preview is shown
+		private int previewRequest; // value of latestPreviewRequest when this task was created
+		private int cacheGeneration; // generation of the preview cache when this task was created (see DenoisePreviewCache.getGeneration())
 				
-		public DenoisingTask(Algorithm algorithm, ImageProcessor image, ImageNormalizer normalizer)
+		public DenoisingTask(Algorithm algorithm, ImageProcessor image, Future<ImageNormalizer> normalizer, List<DenoiseParams> neighbouringParams, int previewRequest, int cacheGeneration)
 		{
 			this.algorithm = algorithm;
+			this.previewRequest = previewRequest;
+			this.cacheGeneration = cacheGeneration;
+			this.neighbouringParams = neighbouringParams;
 			this.image = image.duplicate(); // deep copy
 
 			// Note: we deep copy the noisy input image (since the denoising happens asynchronously
 			// and we don't want surprises if the input image gets changed meanwhile...)
 			// CHECKME: is this really needed?
 			
-			this.normalizer = normalizer;
+			this.normalizerFuture = normalizer;
+		}
+		
+		// Denoises a version of the image that is subsampled by the given factor, and returns it scaled up to the size of the full preview.
+		// The algorithm parameters are not adapted to the lower resolution, so the coarse preview is an approximation:
+		// noise related parameters keep their meaning (subsampling does not change the noise level), but spatial parameters
+		// (sigma, window sizes) cover a larger part of the image. Noise and blur are not estimated for the coarse preview.
+		private BufferedImage denoiseCoarsePreview(DenoiseParams params, int factor) throws InterruptedException, ExecutionException
+		{
+			ImageProcessor coarseImage = ImageUtils.subsample(image, factor);
+			
+			Denoiser denoiser = Denoisers.newDenoiser(params);
+			denoiser.setImage(coarseImage, normalizer);
+			
+			ImageProcessor denoisedImageProcessor = denoiser.getBackend().submit(denoiser).get();
+			ImageUtils.CopyDisplayRange(image, denoisedImageProcessor);
+			return ImageUtils.scaleImage(denoisedImageProcessor.getBufferedImage(), image.getWidth(), image.getHeight());
 		}
 		
 		@Override
@@ -171,12 +234,20 @@ public class WizardPageDenoisingAlgorithm extends WizardPage
 		{
 			// Note: this is not executed on the Java EDT (Event Dispatching Thread),
 			// so SwingUtils.invokeLater() is needed to update the UI.
-
-			Denoiser denoiser = algorithm.getDenoiserCopy();
-			denoiser.setImage(image, normalizer);
 			
+			// If the cache was cleared since this task was created, the user left the page and the preview image
+			// may have changed. The cached previews are for the new image, and ours is no longer wanted.
+			if (previewCache.getGeneration() != cacheGeneration)
+				return;
+
 			try
 			{
+				// Only waits right after the user chose a huge image.
+				normalizer = normalizerFuture.get();
+				
+				Denoiser denoiser = algorithm.getDenoiserCopy();
+				denoiser.setImage(image, normalizer);
+				
 				// Note: we have to copy the cache key and value (the denoising parameters object and preview image object)
 				// to ensure they are not modified after we stored them in the cache.
 				DenoisePreviewCacheKey cacheKey = new DenoisePreviewCacheKey(algorithm);
@@ -185,42 +256,55 @@ public class WizardPageDenoisingAlgorithm extends WizardPage
 				if (cached != null)
 				{
 					BufferedImage cachedImage = cached.denoisedPreview;
-					float blurEstimate = cached.blurEstimate;
+					float blurEstimate = cached.blurEstimate;  // NaN if not estimated yet
 					float noiseEstimate = cached.noiseEstimate;
 
 					BufferedImage imageCopy = ImageUtils.deepCopy(cachedImage); // copy image, to avoid it losing it if it gets ejected from the cache before it was set on the denoisedImagePanel (CHECKME: copy really needed?)
-					SwingUtilities.invokeLater(() -> { denoisedPreviewPanel.setImage(imageCopy);
+					SwingUtilities.invokeLater(() -> { denoisedPreviewPanel.imagePanel.setBusy(false);  // an earlier task may have left a coarse preview
+					                                   denoisedPreviewPanel.setImage(imageCopy);
 					                                   denoisedPreviewPanel.setBlurEstimate(blurEstimate);
                                                        denoisedPreviewPanel.setNoiseEstimate(noiseEstimate); }); 
+					
+					estimateDenoisedPreview(cached, normalizer, previewRequest);
 				}
 				else
 				{
 					SwingUtilities.invokeLater(() -> { denoisedPreviewPanel.imagePanel.setBusy(true); });
 					
+					// First show a quick, coarse preview
+					int factor = coarsePreviewFactor(image);
+					if (factor > 1)
+					{
+						BufferedImage coarseImage = denoiseCoarsePreview(denoiser.getParams(), factor);
+						SwingUtilities.invokeLater(() -> { denoisedPreviewPanel.setImage(coarseImage); });
+						
+						// Only refine the preview if the user did not change the parameters in the meantime.
+						// If they did, a newer task is waiting already.
+						if (latestPreviewRequest.get() != previewRequest)
+							return;
+					}
+					
 					// Denoise the preview
-					ImageProcessor denoisedImageProcessor = QExecutor.getInstance().submit(denoiser).get();
+					ImageProcessor denoisedImageProcessor = denoiser.getBackend().submit(denoiser).get();
 					ImageUtils.CopyDisplayRange(image, denoisedImageProcessor);					
 					BufferedImage denoisedImage = denoisedImageProcessor.getBufferedImage();
 					
-					// Estimate noise in the denoised preview.
-					float noiseEstimate = QExecutor.getInstance().submit(new NoiseEstimator(denoisedImageProcessor, normalizer)).get();
-					
-					// Estimate blur in the denoised preview.
-					float blurEstimate = QExecutor.getInstance().submit(new BlurEstimator(denoisedImageProcessor)).get();
-					
-					// Note: right now we always estimate noise and blur, even if the user decided not to show it in the user interface.
-					// So perhaps we should not calculate it in that case? It would make the caching mechanism a bit more complex though.
-					
-					// Cache image and noise and blur estimates.
-					DenoisePreviewCacheValue cacheValue = new DenoisePreviewCacheValue(denoisedImage, noiseEstimate, blurEstimate);
-					previewCache.put(cacheKey, cacheValue);
+					// Cache the image. Its noise and blur estimates are added when they are computed.
+					DenoisePreviewCacheValue cacheValue = new DenoisePreviewCacheValue(denoisedImage, denoisedImageProcessor);
+					previewCache.put(cacheKey, cacheValue, cacheGeneration);  // not cached if the preview image changed in the meantime
                     
 					// Update UI
 					SwingUtilities.invokeLater(() -> { denoisedPreviewPanel.imagePanel.setBusy(false); 
 					                                   denoisedPreviewPanel.setImage(denoisedImage);
-                                                       denoisedPreviewPanel.setBlurEstimate(blurEstimate);
-                                                       denoisedPreviewPanel.setNoiseEstimate(noiseEstimate); });
+                                                       denoisedPreviewPanel.setBlurEstimate(Float.NaN);
+                                                       denoisedPreviewPanel.setNoiseEstimate(Float.NaN); });
+					
+					// Estimate noise and blur in the denoised preview, if the user wants to see them.
+					estimateDenoisedPreview(cacheValue, normalizer, previewRequest);
 				}
+				
+				// The user will probably try a neighbouring setting next, use the idle time to denoise those previews.
+				speculativeScheduler.schedule(algorithm.getName(), neighbouringParams, image, normalizer, cacheGeneration);
 			}
 			catch (Exception e)
 			{
@@ -229,25 +313,77 @@ public class WizardPageDenoisingAlgorithm extends WizardPage
 		}
 	}
 	
+	// Computes the noise and blur estimates of a denoised preview that the user wants to see and that are not known yet,
+	// and stores them in the cached value. This runs on the estimationExecutor, so the preview image is shown without waiting
+	// for the estimates. The estimates are skipped if the user requested another preview in the meantime.
+	private void estimateDenoisedPreview(DenoisePreviewCacheValue value, ImageNormalizer normalizer, int previewRequest)
+	{
+		boolean estimateNoise = denoisedPreviewPanel.isNoiseEstimateShown() && !value.hasNoiseEstimate();
+		boolean estimateBlur = denoisedPreviewPanel.isBlurEstimateShown() && !value.hasBlurEstimate();
+		if (!estimateNoise && !estimateBlur)
+			return;
+		
+		estimationExecutor.execute(() -> {
+			try
+			{
+				if (estimateNoise && latestPreviewRequest.get() == previewRequest)
+					value.noiseEstimate = ComputeBackends.getCurrent().submit(new NoiseEstimator(value.denoisedImage, normalizer)).get();
+				
+				if (estimateBlur && latestPreviewRequest.get() == previewRequest)
+					value.blurEstimate = ComputeBackends.getCurrent().submit(new BlurEstimator(value.denoisedImage)).get();
+				
+				SwingUtilities.invokeLater(() -> {
+					if (latestPreviewRequest.get() != previewRequest)
+						return;  // another preview is shown by now
+					if (value.hasNoiseEstimate())
+						denoisedPreviewPanel.setNoiseEstimate(value.noiseEstimate);
+					if (value.hasBlurEstimate())
+						denoisedPreviewPanel.setBlurEstimate(value.blurEstimate); });
+			}
+			catch (InterruptedException | ExecutionException e)
+			{
+				e.printStackTrace();
+			}
+		});
+	}
+	
+	// Returns the subsampling factor for the coarse preview of the given image, or 1 if the image is small enough
+	// to denoise at full resolution right away.
+	private static int coarsePreviewFactor(ImageProcessor image)
+	{
+		if (coarsePreviewSize <= 0)
+			return 1;
+		
+		int factor = 1;
+		while ((long)image.getWidth() * image.getHeight() > (long)coarsePreviewSize * coarsePreviewSize * factor * factor)
+			factor++;
+		
+		return factor;
+	}
+	
 	private void updateNoisyPreview()
 	{
 		// Calculate an estimate for the amount of noise and blur in the user-selected region-of-interest
-		// on the original (=noisy) image.
+		// on the original (=noisy) image. The estimates are cached, and computed asynchronously so the page shows up
+		// immediately, with the labels filled in when the estimates are known.
 		
-		try
-		{	
-			WizardModel model = wizard.getModel();
-			ImageProcessor noisyImageProcessor = model.getNoisyPreview();
-			ImageNormalizer normalizer = model.getImageNormalizer();
-			float noiseEstimate = QExecutor.getInstance().submit(new NoiseEstimator(noisyImageProcessor, normalizer)).get();
-			float blurEstimate = QExecutor.getInstance().submit(new BlurEstimator(noisyImageProcessor)).get();
-			origPreviewPanel.setNoiseEstimate(noiseEstimate);
-			origPreviewPanel.setBlurEstimate(blurEstimate);
-		}
-		catch (InterruptedException | ExecutionException e)
-		{
-			e.printStackTrace();
-		}			
+		WizardModel model = wizard.getModel();
+		ImagePlus image = model.getImage();
+		ImageProcessor noisyImageProcessor = model.getNoisyPreview();
+		int slice = model.getNoisyPreviewSlice();
+		Rectangle roi = model.getNoisyPreviewRoi();
+		ImageEstimateCache estimateCache = model.getEstimateCache();
+		
+		origPreviewPanel.setNoiseEstimate(Float.NaN);
+		origPreviewPanel.setBlurEstimate(Float.NaN);
+		
+		model.getImageNormalizer().thenCompose(normalizer -> estimateCache.getNoiseEstimate(image, slice, roi, normalizer, () -> noisyImageProcessor))
+		                          .thenAcceptAsync(noiseEstimate -> { if (model.getNoisyPreview() == noisyImageProcessor) origPreviewPanel.setNoiseEstimate(noiseEstimate); }, SwingUtilities::invokeLater)
+		                          .exceptionally(e -> { e.printStackTrace(); return null; });
+		
+		estimateCache.getBlurEstimate(image, slice, roi, () -> noisyImageProcessor)
+		             .thenAcceptAsync(blurEstimate -> { if (model.getNoisyPreview() == noisyImageProcessor) origPreviewPanel.setBlurEstimate(blurEstimate); }, SwingUtilities::invokeLater)
+		             .exceptionally(e -> { e.printStackTrace(); return null; });
 	}
 	
 	private void updateDenoisedPreview()
@@ -264,22 +400,28 @@ public class WizardPageDenoisingAlgorithm extends WizardPage
 		// and newer tasks will replace older queued tasks. This avoids building up a Quasar work backlog
 		// but still guarantees that the denoised preview will correspond to the latest parameters chosen by the user.
 		
+		// Speculative previews (see SpeculativePreviewScheduler) must not delay the preview that the user is waiting for.
+		speculativeScheduler.preempt();
+		
 		WizardModel model = wizard.getModel();
-		DenoisingTask task = new DenoisingTask(model.getAlgorithm(), model.getNoisyPreview(), model.getImageNormalizer());
+		Algorithm algorithm = model.getAlgorithm();
+		DenoisingTask task = new DenoisingTask(algorithm, model.getNoisyPreview(), model.getImageNormalizer(), algorithm.getNeighbouringParams(speculativeSteps),
+		                                       latestPreviewRequest.incrementAndGet(), previewCache.getGeneration());
 		saturatingExecutor.Submit(task);                                                                    	
 	}
 	
 	@Override
 	public void goingToNextPage() 
 	{
-		// Nothing to be done.
 		// Model contains required denoising parameters for use in next page.
+		// Stop denoising previews ahead of time, the compute backend is needed for the real work now.
+		speculativeScheduler.preempt();
 	}
 	
 	@Override
 	public void goingToPreviousPage()
 	{
-		// Nothing to be done
+		speculativeScheduler.preempt();
 	}
 
 	@Override
@@ -295,6 +437,8 @@ public class WizardPageDenoisingAlgorithm extends WizardPage
 		assert(model.getImage() != null);
 				
 		// Always clear the cache, just in case the user switched to a different image or ROI.
+		// Previews for the old image that are still being denoised are not cached (see DenoisePreviewCache.getGeneration()).
+		speculativeScheduler.preempt();
 		previewCache.clear();
 		
 		JRadioButton button = buttonsMap.get(model.getAlgorithm().getName());
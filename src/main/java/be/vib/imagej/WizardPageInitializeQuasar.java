@@ -25,15 +25,34 @@ public class WizardPageInitializeQuasar extends WizardPage
 	{
 		Runnable onSuccess = () -> {
 			initialized = true;
-			statusLabel.setText("The graphics card is ready for denoising calculations.");
+			if (ComputeBackends.getCurrent() == ComputeBackends.getJavaBackend())
+				statusLabel.setText("Denoising calculations will run on the CPU.");
+			else
+				statusLabel.setText("The graphics card is ready for denoising calculations.");
 			wizard.updateButtons();
 		};
 		
 		Runnable onFailure = () -> {
-			initialized = false;
-			statusLabel.setText("<html><center>The graphics card is not ready for denoising calculations. Failed to initialize Quasar.<br><br>" +
-			                    "If you did not install Quasar yet, then please consult the plugin's installation instructions and do so first.<br><br>" + 
-					            "If you did install Quasar and this problem persists, then please contact the plugin maintainer for help.</center></html>");
+			// Fall back to the pure Java backend, which is slower but does not need Quasar or a graphics card.
+			ComputeBackend javaBackend = ComputeBackends.getJavaBackend();
+			try
+			{
+				javaBackend.initialize();
+				ComputeBackends.setCurrent(javaBackend);
+				initialized = true;
+				statusLabel.setText("<html><center>Failed to initialize Quasar, so the graphics card cannot be used for denoising calculations.<br><br>" +
+				                    "Denoising will run on the CPU instead (" + javaBackend.getReadableName() + "), which is considerably slower.<br><br>" +
+				                    "If you did not install Quasar yet, then please consult the plugin's installation instructions and do so first.<br><br>" + 
+						            "If you did install Quasar and this problem persists, then please contact the plugin maintainer for help.</center></html>");
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+				initialized = false;
+				statusLabel.setText("<html><center>The graphics card is not ready for denoising calculations. Failed to initialize Quasar.<br><br>" +
+				                    "If you did not install Quasar yet, then please consult the plugin's installation instructions and do so first.<br><br>" + 
+						            "If you did install Quasar and this problem persists, then please contact the plugin maintainer for help.</center></html>");
+			}
 			wizard.updateButtons();
 		};
 
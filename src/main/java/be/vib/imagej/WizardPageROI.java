@@ -4,7 +4,6 @@ import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Rectangle;
 import java.util.Arrays;
-import java.util.concurrent.ExecutionException;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
@@ -17,10 +16,8 @@ import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
 import javax.swing.border.EmptyBorder;
 
-import be.vib.bits.QExecutor;
 import ij.ImageListener;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.gui.RoiListener;
 import ij.process.ImageProcessor;
 
@@ -296,22 +293,42 @@ public class WizardPageROI extends WizardPage implements ImageListener, RoiListe
 		
 		// Use the region of interest as a little preview image.
 		ImageProcessor preview = ImageUtils.cropImage(model.getImage());
-		model.setNoisyPreview(preview);
+		Rectangle roi = (image.getRoi() != null) ? image.getRoi().getBounds() : null;
+		model.setNoisyPreview(preview, image.getCurrentSlice(), roi);
 
 		// Set default denoising parameters (and ranges) based on an estimate
-		// of the noise level of our input image.
-		float noise = model.getNoiseEstimate();
-		if (noise < 0)
+		// of the noise level of our input image. The estimate may take a while on huge images,
+		// so it is done asynchronously (and remembered in the estimate cache). The next page
+		// updates its preview when the defaults change.
+		if (model.getNoiseEstimate() < 0)
 		{
-			noise = estimateNoise(model.getImage(), model.getImageNormalizer());
-			model.setNoiseEstimate(noise);
+			// The user may already change the parameters on the next page while the noise is being estimated.
+			// Those changes win over the defaults.
+			for (Algorithm algorithm : model.getAlgorithms())
+				algorithm.setParametersEdited(false);
 			
-			if (noise >= 0)
-			{
-				for (Algorithm algorithm : model.getAlgorithms())
-					algorithm.setDefaultParameters(noise);
-			}
-		}	
+			ImagePlus noisyImage = model.getImage();
+			int slice = noisyImage.getCurrentSlice();
+			model.getImageNormalizer().thenCompose(normalizer -> model.getEstimateCache().getNoiseEstimate(noisyImage, slice, null, normalizer, () -> noisyImage.getStack().getProcessor(slice)))
+			                          .thenAcceptAsync(noise -> setDefaultParameters(noisyImage, noise), SwingUtilities::invokeLater)
+			                          .exceptionally(e -> { e.printStackTrace(); return null; });
+		}
+	}
+	
+	private void setDefaultParameters(ImagePlus image, float noise)
+	{
+		assert(SwingUtilities.isEventDispatchThread());
+		
+		WizardModel model = wizard.getModel();
+		if (model.getImage() != image || model.getNoiseEstimate() >= 0)
+			return;  // the user switched to another image in the meantime, or the defaults were set already
+		
+		System.out.println("Estimated (normalized) std deviation of noise in " + image.getTitle() + " = " + noise);
+		model.setNoiseEstimate(noise);
+		
+		for (Algorithm algorithm : model.getAlgorithms())
+			if (!algorithm.areParametersEdited())
+				algorithm.setDefaultParameters(noise);
 	}
 	
 	@Override
@@ -369,27 +386,6 @@ public class WizardPageROI extends WizardPage implements ImageListener, RoiListe
 		ij.gui.Roi.addRoiListener(this);
 	}
 	
-	private static float estimateNoise(ImagePlus image, ImageNormalizer normalizer)
-	{
-		float noise = -1.0f; // noise level unknown still
-		
-		try
-		{				
-			int slice = image.getCurrentSlice();
-			ImageStack stack = image.getStack();
-			ImageProcessor ip = stack.getProcessor(slice);
-			
-			noise = QExecutor.getInstance().submit(new NoiseEstimator(ip, normalizer)).get();
-			System.out.println("Estimated (normalized) std deviation of noise in " + image.getTitle() + " = " + noise);
-		}
-		catch (InterruptedException | ExecutionException e)
-		{
-			e.printStackTrace();
-		}
-		
-		return noise;
-	}
-
 	// Guess the image that the user probably wants to denoise
 	// (preferably the image in our model)
 	// or null if no image is currently open.